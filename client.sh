@@ -5,8 +5,10 @@ MAIN="pa3.Client"
 
 SERVERIP=$1
 SERVERPORT=$2
+MODE=$3
+KEYSPEC=$4
 
 # start client
-java -cp $CP $MAIN  $SERVERIP $SERVERPORT
+java -cp $CP $MAIN  $SERVERIP $SERVERPORT $MODE ${KEYSPEC:+"$KEYSPEC"}
 
 
@@ -0,0 +1,17 @@
+package pa3;
+
+import java.io.IOException;
+
+/**
+ * BlockSink
+ * Takes the blocks of a sorted run one at a time, in order, such as a run
+ * file being written or a reply being streamed out. A block is a sorted
+ * DataPackage that the sink may keep.
+ */
+public interface BlockSink {
+
+    /**
+     * Take the next block of the run
+     */
+    void accept(DataPackage block) throws IOException;
+}
@@ -1,10 +1,11 @@
 package pa3;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.OutputStreamWriter;
 import java.net.UnknownHostException;
+import java.util.LinkedList;
 import java.util.Scanner;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -18,9 +19,34 @@ public class Client {
     
     private String serverIP;
     private int serverPort;
-    private Socket serverSocket;
+    private Connection server;
     
-    private static Logger log;
+    // where the client's share of the job's time goes
+    private final Metrics metrics = new Metrics();
+    
+    // send the file and get the result back in chunks rather than whole
+    private boolean streaming;
+    
+    // codec of the packages sent to the server, and asked for back
+    private DataPackageCodec.Codec codec = DataPackageCodec.Codec.AUTO;
+    
+    // how the rows of the file are keyed, which travels with every package
+    private KeySpec keySpec = KeySpec.INT;
+    
+    // job to run over the file, null to sort it
+    private JobSpec job;
+    
+    private static Logger log = Logger.getLogger(Client.class);
+    
+    // bytes of input file per chunk sent in a streaming sort
+    public static final int STREAM_CHUNK_BYTES = 1 << 20;
+    // rows per chunk of output fetched in a streaming sort
+    public static final int STREAM_FETCH_ROWS = 128 * 1024;
+    // most chunks a streaming sort has in flight each way, which bounds the
+    // client's memory to a few chunks whatever the size of the file
+    public static final int STREAM_WINDOW = 4;
+    // how the rows of a job's input are kept, whole and as they are
+    public static final KeySpec JOB_INPUT_KEY_SPEC = KeySpec.parse("string");
 
     /**
      * Client constructor
@@ -28,25 +54,59 @@ public class Client {
      * @param serverPort: port number of the server
      */
     public Client(String serverIP, String serverPort) {
+        this(serverIP, serverPort, true);
+    }
+    
+    /**
+     * Client constructor
+     * @param streaming: whether to stream the file to and from the server
+     */
+    public Client(String serverIP, String serverPort, boolean streaming) {
         this.serverIP = serverIP;
         this.serverPort = Integer.valueOf(serverPort);
+        this.streaming = streaming;
     }
     
     /**
      * main
      * args[0]: Server IP address
      * args[1]: Server port number
+     * args[2]: (optional) "stream" (the default) to send the file in chunks,
+     *          or "whole" to load it and send it all at once, or "job" to
+     *          run a job other than sort over it (sent whole)
+     * args[3]: (optional) KeySpec of the rows, e.g. "string" or "long:2"
+     *          (see KeySpec), the whole row as an int by default, or for
+     *          "job" the JobSpec, e.g. "wordcount" or "groupbysum:1,2"
      */
     public static void main(String args[]) {
         // check params
         if (args.length < 2) {
-            System.err.println("Usage: Client <serverIP> <serverPort>");
+            System.err.println("Usage: Client <serverIP> <serverPort> "
+                    + "[stream|whole|job] [keySpec|jobSpec]");
             System.exit(1);
         }
         PropertyConfigurator.configure("log4j.properties");
-        log = Logger.getLogger(Client.class);
         log.info("Starting Client");
-        Client client = new Client(args[0], args[1]);
+        boolean runJob = args.length > 2 && args[2].equalsIgnoreCase("job");
+        boolean streaming = args.length < 3 
+                || !(runJob || args[2].equalsIgnoreCase("whole"));
+        Client client = new Client(args[0], args[1], streaming);
+        if (runJob && args.length < 4) {
+            System.err.println("Which job? e.g. wordcount (see JobSpec)");
+            System.exit(1);
+        }
+        if (args.length > 3) {
+            try {
+                if (runJob) {
+                    client.setJob(JobSpec.parse(args[3]));
+                } else {
+                    client.setKeySpec(KeySpec.parse(args[3]));
+                }
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+            }
+        }
         try {
             client.getServerSocket();
         } catch (UnknownHostException ex) {
@@ -66,73 +126,260 @@ public class Client {
             System.exit(1);
         }
         NetworkLocation serverLocation = new NetworkLocation(serverIP, serverPort);
-        serverSocket = new Socket(serverIP, serverPort);
-        if (serverSocket == null) {
-            log.error("Could not contact Server");
+        server = new Connection(serverLocation, metrics, codec);
+    }
+    
+    /**
+     * Run this client's job over a file into outFileName without asking the
+     * user anything, sent whole
+     * @return the number of rows output
+     */
+    public int runJobOnFile(String fileName, String outFileName) throws IOException {
+        if (job == null) {
+            return sortFile(fileName, outFileName);
+        }
+        getServerSocket();
+        try {
+            DataPackage output = runJob(loadFile(fileName));
+            if (output == null) {
+                throw new IOException("Job " + job + " failed");
+            }
+            long start = System.nanoTime();
+            output.writeToFile(outFileName);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
+            return output.getSize();
+        } finally {
+            server.close();
+        }
+    }
+    
+    /**
+     * Sort a file into outFileName without asking the user anything, as a
+     * streaming or whole sort per this client's mode
+     * @return the number of rows sorted
+     */
+    public int sortFile(String fileName, String outFileName) throws IOException {
+        getServerSocket();
+        try {
+            if (streaming) {
+                int streamId = server.call(Protocol.Type.STREAMBEGIN, new byte[0])
+                        .bodyStream().readInt();
+                sendChunks(streamId, fileName);
+                Frame.BodyWriter end = new Frame.BodyWriter();
+                end.writeInt(streamId);
+                int numRows = server.call(Protocol.Type.STREAMEND, 
+                        end.toByteArray()).bodyStream().readInt();
+                fetchRows(streamId, numRows, outFileName);
+                return numRows;
+            }
+            DataPackage sortedDataPackage = sortDataPackage(loadFile(fileName));
+            if (sortedDataPackage == null) {
+                throw new IOException("Data package was not sorted");
+            }
+            long start = System.nanoTime();
+            sortedDataPackage.writeToFile(outFileName);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
+            return sortedDataPackage.getSize();
+        } finally {
+            server.close();
         }
     }
     
+    /**
+     * Set the codec of the packages sent to the server and asked for back
+     */
+    public void setCodec(DataPackageCodec.Codec codec) {
+        this.codec = codec;
+    }
+    
+    /**
+     * Set how the rows of the files this client sorts are keyed
+     */
+    public void setKeySpec(KeySpec keySpec) {
+        this.keySpec = keySpec;
+    }
+    
+    /**
+     * Set the job this client runs over its files. Sort is kept as a sort
+     * by its KeySpec, so it can still stream.
+     * @throws IllegalArgumentException if the job's key or range is bad
+     */
+    public void setJob(JobSpec job) {
+        if (job.isSort()) {
+            setKeySpec(job.getSortKeySpec());
+            this.job = null;
+            return;
+        }
+        if (job.isSelection()) {
+            // a selection's rows are keyed as for a sort
+            setKeySpec(job.getSortKeySpec());
+            job.getSelection(0);
+        }
+        this.job = job;
+    }
+    
+    /**
+     * Where this client's time went, over every sort it has run
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Talk to the user. Ask them what they want.
      */
     private void socialize() {
-        println("Where is the file to sort? ");
+        println((job == null) ? "Where is the file to sort? " 
+                : "Where is the file to run " + job + " over? ");
         String fileName = readln();
+        if (streaming) {
+            socializeStreaming(fileName);
+            return;
+        }
         DataPackage dataPackage = loadFile(fileName);
         
         // keep track of time for reporting
         long startTime = System.currentTimeMillis();
-        DataPackage sortedDataPackage = submitDataPackageForSort(dataPackage);
+        DataPackage sortedDataPackage = (job == null) 
+                ? submitDataPackageForSort(dataPackage) 
+                : submitDataPackageForJob(dataPackage);
         long endTime = System.currentTimeMillis();
         log.info("Time for Map/Reduce sort: " + (endTime - startTime));
         
         if (sortedDataPackage != null) {
             println("Where would you like to write the sorted file?");
             fileName = readln();
+            long start = System.nanoTime();
             sortedDataPackage.writeToFile(fileName);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
             println("File has been written to " + fileName);
         } else {
             log.error("Unsuccessul attempt at sorted data package!!");
         }
+        log.info("Client phases:\n" + metrics);
         println("Goodbye.");
     }
     
+    /**
+     * Sort the file as a streaming sort, asking where to write the result
+     * once the server has it
+     */
+    private void socializeStreaming(String fileName) {
+        if (server == null) {
+            log.error("The Server has not been initialized properly");
+            println("Goodbye.");
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            int streamId = server.call(Protocol.Type.STREAMBEGIN, new byte[0])
+                    .bodyStream().readInt();
+            sendChunks(streamId, fileName);
+            Frame.BodyWriter end = new Frame.BodyWriter();
+            end.writeInt(streamId);
+            int numRows = server.call(Protocol.Type.STREAMEND, end.toByteArray())
+                    .bodyStream().readInt();
+            long endTime = System.currentTimeMillis();
+            log.info("Time for Map/Reduce sort: " + (endTime - startTime));
+            
+            println("Where would you like to write the sorted file?");
+            String outFileName = readln();
+            fetchRows(streamId, numRows, outFileName);
+            println("File has been written to " + outFileName);
+        } catch (IOException ex) {
+            log.error("Unsuccessul attempt at streaming sort: " + ex);
+        } finally {
+            server.close();
+        }
+        log.info("Client phases:\n" + metrics);
+        println("Goodbye.");
+    }
+    
+    /**
+     * Send the file to the server a chunk at a time, with at most
+     * STREAM_WINDOW chunks waiting to be sorted
+     */
+    private void sendChunks(int streamId, String fileName) throws IOException {
+        FileIngest.ChunkReader reader = new FileIngest.ChunkReader(fileName, keySpec);
+        LinkedList<Connection.Reply> inFlight = new LinkedList<Connection.Reply>();
+        int chunkNumber = 0;
+        long rows = 0;
+        try {
+            DataPackage chunk;
+            long start = System.nanoTime();
+            while ((chunk = reader.next(STREAM_CHUNK_BYTES)) != null) {
+                metrics.record(Metrics.Phase.INGEST, start);
+                if (inFlight.size() == STREAM_WINDOW) {
+                    inFlight.removeFirst().get();
+                }
+                start = System.nanoTime();
+                Frame.BodyWriter request = new Frame.BodyWriter();
+                request.writeInt(streamId);
+                request.writeInt(chunkNumber++);
+                DataPackageCodec.write(request, chunk, codec, metrics);
+                byte[] body = request.toByteArray();
+                metrics.record(Metrics.Phase.SERIALIZE, start);
+                inFlight.add(server.send(Protocol.Type.STREAMCHUNK, body));
+                rows += chunk.getSize();
+                start = System.nanoTime();
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.removeFirst().get();
+            }
+        } finally {
+            reader.close();
+        }
+        log.info("Sent " + rows + " rows in " + chunkNumber + " chunks");
+    }
+    
+    /**
+     * Fetch the sorted rows a chunk at a time and write each one to the
+     * output file as it arrives
+     */
+    private void fetchRows(int streamId, int numRows, String fileName) 
+            throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(fileName), DataPackage.TEXT_CHARSET));
+        LinkedList<Connection.Reply> inFlight = new LinkedList<Connection.Reply>();
+        try {
+            int next = 0;
+            while (next < numRows || !inFlight.isEmpty()) {
+                while (next < numRows && inFlight.size() < STREAM_WINDOW) {
+                    Frame.BodyWriter request = new Frame.BodyWriter();
+                    request.writeInt(streamId);
+                    request.writeInt(next);
+                    next = (int) Math.min((long) next + STREAM_FETCH_ROWS, numRows);
+                    request.writeInt(next);
+                    inFlight.add(server.send(
+                            Protocol.Type.STREAMFETCH, request.toByteArray()));
+                }
+                Frame reply = inFlight.removeFirst().get();
+                long start = System.nanoTime();
+                DataPackage rows = 
+                        DataPackageCodec.read(reply.bodyStream(), metrics);
+                rows.writeRows(writer);
+                metrics.record(Metrics.Phase.RESULT_RETURN, start);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
     /**
      * Sent a data package to the server to be sorted
      * @param dataPackage 
      */
     private DataPackage submitDataPackageForSort(DataPackage dataPackage) {
-        if (serverSocket == null) {
+        if (server == null) {
             log.error("The Server has not been initialized properly");
         }
         {
-            ObjectOutputStream oos = null;
             try {
-                Protocol protocol = new Protocol(Protocol.Type.SORTDATA);
-                oos = new ObjectOutputStream(serverSocket.getOutputStream());
-                // send protocol type
-                oos.writeObject(protocol);
-                oos.flush();
-                // send datapackage to sort
-                oos.writeObject(dataPackage);
-                oos.flush();
-                ObjectInputStream ois 
-                        = new ObjectInputStream(serverSocket.getInputStream());
-                DataPackage sortedDataPackage = (DataPackage) ois.readObject();
-                if (sortedDataPackage == null) {
-                    log.error("Data package was not sorted!!");
-                }
-                return sortedDataPackage;
-            } catch (ClassNotFoundException ex) {
-                log.error("Class not found: " + ex);
+                return sortDataPackage(dataPackage);
             } catch (IOException ex) {
                 log.error("IO Exception: "+ ex);
             } finally {
-                try {
-                    oos.close();
-                } catch (IOException ex) {
-                    log.error("IO Exception: " + ex);
-                }
+                server.close();
             }
         }
         log.error("Unable to sort data package. Returning unsorted version!!");
@@ -140,11 +387,77 @@ public class Client {
     }
     
     /**
-     * Load a requested file for sorting into a DataPackage object
+     * Send a data package to the server to run the job over, returns the
+     * job's output or null if it failed
+     */
+    private DataPackage submitDataPackageForJob(DataPackage dataPackage) {
+        if (server == null) {
+            log.error("The Server has not been initialized properly");
+            return null;
+        }
+        try {
+            return runJob(dataPackage);
+        } catch (IOException ex) {
+            log.error("IO Exception: "+ ex);
+        } finally {
+            server.close();
+        }
+        return null;
+    }
+    
+    /**
+     * Send a data package to the server with the job to run over it, and
+     * wait for the job's output, null if the job failed
+     */
+    private DataPackage runJob(DataPackage dataPackage) throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        request.writeUTF(job.toString());
+        DataPackageCodec.write(request, dataPackage, codec, metrics);
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        Frame reply = server.call(Protocol.Type.JOBDATA, body);
+        start = System.nanoTime();
+        DataPackage output = DataPackageCodec.read(reply.bodyStream(), metrics);
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        if (output == null) {
+            log.error("Job " + job + " failed!!");
+        }
+        return output;
+    }
+    
+    /**
+     * Send a data package to the server and wait for it to come back sorted,
+     * null if the server couldn't sort it
+     */
+    private DataPackage sortDataPackage(DataPackage dataPackage) 
+            throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        // send datapackage to sort
+        DataPackageCodec.write(request, dataPackage, codec, metrics);
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        Frame reply = server.call(Protocol.Type.SORTDATA, body);
+        start = System.nanoTime();
+        DataPackage sortedDataPackage = 
+                DataPackageCodec.read(reply.bodyStream(), metrics);
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        if (sortedDataPackage == null) {
+            log.error("Data package was not sorted!!");
+        }
+        return sortedDataPackage;
+    }
+    
+    /**
+     * Load a requested file for sorting (or a job) into a DataPackage object
      */
     private DataPackage loadFile(String fileName) {
-        DataPackage dataPackage = new DataPackage();
+        long start = System.nanoTime();
+        DataPackage dataPackage = new DataPackage(1, 
+                (job == null || job.isSelection()) ? keySpec : JOB_INPUT_KEY_SPEC);
         dataPackage.addFromFile(fileName);
+        metrics.record(Metrics.Phase.INGEST, start);
         return dataPackage;
     }
     
@@ -0,0 +1,95 @@
+package pa3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * CodecBenchmark
+ * Compares the size and encode/decode time of a DataPackage sent with Java
+ * object serialization against each DataPackageCodec codec, for the rows
+ * as loaded and once sorted (as the nodes send them back). The ratio and
+ * cost of each codec show which one pays off on a link of a given speed.
+ *
+ * Usage: CodecBenchmark [file to load] [iterations]
+ */
+public class CodecBenchmark {
+
+    public static void main(String args[]) throws Exception {
+        String fileName = (args.length > 0) ? args[0] : "test/test1000k.txt";
+        int iterations = (args.length > 1) ? Integer.valueOf(args[1]) : 5;
+
+        DataPackage dp = new DataPackage();
+        dp.addFromFile(fileName);
+        System.out.println("Loaded " + dp.getSize() + " rows from " + fileName);
+        DataPackage sorted = dp.slice(0, dp.getSize());
+        sorted.sort();
+        sorted.sorted(true);
+
+        System.out.println("rows      format         bytes       encode(ms)  decode(ms)  ratio");
+        for (DataPackage rows : new DataPackage[] {dp, sorted}) {
+            String order = rows.isSorted() ? "sorted" : "unsorted";
+            // one untimed round to warm up the JIT
+            decodeSerialized(encodeSerialized(rows));
+            long serBytes = 0, serEncode = 0, serDecode = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                byte[] ser = encodeSerialized(rows);
+                long mid = System.nanoTime();
+                decodeSerialized(ser);
+                long end = System.nanoTime();
+                serBytes = ser.length;
+                serEncode += mid - start;
+                serDecode += end - mid;
+            }
+            long rawBytes = DataPackageCodec.encode(rows).length;
+            report(order, "serialization", serBytes, serEncode, serDecode,
+                    iterations, rawBytes);
+
+            for (DataPackageCodec.Codec codec : DataPackageCodec.Codec.values()) {
+                if (codec == DataPackageCodec.Codec.AUTO) {
+                    continue;
+                }
+                DataPackageCodec.decode(DataPackageCodec.encode(rows, codec, null));
+                long codecBytes = 0, codecEncode = 0, codecDecode = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    byte[] encoded = DataPackageCodec.encode(rows, codec, null);
+                    long mid = System.nanoTime();
+                    DataPackageCodec.decode(encoded);
+                    long end = System.nanoTime();
+                    codecBytes = encoded.length;
+                    codecEncode += mid - start;
+                    codecDecode += end - mid;
+                }
+                report(order, codec.name().toLowerCase(), codecBytes,
+                        codecEncode, codecDecode, iterations, rawBytes);
+            }
+        }
+        System.out.println("ratio is the size of the raw codec over the format's size");
+    }
+
+    private static void report(String order, String name, long bytes,
+            long encodeNanos, long decodeNanos, int iterations, long rawBytes) {
+        System.out.println(String.format("%-9s %-14s %-11d %-11.2f %-11.2f %.2f",
+                order, name, bytes, encodeNanos / 1e6 / iterations,
+                decodeNanos / 1e6 / iterations, (double) rawBytes / bytes));
+    }
+
+    private static byte[] encodeSerialized(DataPackage dp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(dp);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    private static DataPackage decodeSerialized(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream ois =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return (DataPackage) ois.readObject();
+    }
+}
@@ -0,0 +1,16 @@
+package pa3;
+
+/**
+ * Combiner
+ * Optional for a job whose values per key can be folded into one value as
+ * they are emitted, e.g. counts or sums. The fold has to be associative,
+ * since pairs are combined on the map side in whatever order they come and
+ * the Reducer then gets one combined value per map task and key.
+ */
+public interface Combiner {
+
+    /**
+     * Fold two values of key into one
+     */
+    String combine(String key, String a, String b);
+}
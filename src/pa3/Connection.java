@@ -0,0 +1,260 @@
+package pa3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Connection
+ * Long-lived connection to a Server or Node. Any number of threads can send
+ * requests over it at the same time; a reader thread matches each reply to
+ * its request by request id, in whatever order the replies arrive.
+ */
+public class Connection {
+
+    private static final Logger log = Logger.getLogger(Connection.class);
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // longest a request waits for its reply, a whole job included
+    public static final long REPLY_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // frame length field plus the header, sent ahead of every body
+    private static final int FRAME_PREFIX_BYTES = 4 + Frame.HEADER_BYTES;
+
+    private final NetworkLocation location;
+    private final Metrics metrics;
+    // codec the replies' DataPackages are asked for in
+    private final DataPackageCodec.Codec replyCodec;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Reply> pending =
+            new ConcurrentHashMap<Integer, Reply>();
+    private volatile boolean open;
+
+    /**
+     * Open a connection to the given location
+     */
+    public Connection(NetworkLocation location) throws IOException {
+        this(location, new Metrics());
+    }
+
+    /**
+     * Open a connection to the given location, counting the bytes sent and
+     * received in metrics
+     */
+    public Connection(NetworkLocation location, Metrics metrics) throws IOException {
+        this(location, metrics, DataPackageCodec.Codec.AUTO);
+    }
+
+    /**
+     * Open a connection to the given location, counting the bytes sent and
+     * received in metrics and asking for replies in replyCodec
+     */
+    public Connection(NetworkLocation location, Metrics metrics,
+            DataPackageCodec.Codec replyCodec) throws IOException {
+        this.location = location;
+        this.metrics = metrics;
+        this.replyCodec = replyCodec;
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(location.ip, location.port),
+                CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        open = true;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "Connection-" + location);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request without waiting for its reply
+     */
+    public Reply send(Protocol.Type type, byte[] body) throws IOException {
+        int requestId = nextRequestId.getAndIncrement();
+        Reply reply = new Reply(new Protocol(type, requestId, replyCodec), pending);
+        pending.put(requestId, reply);
+        if (!open) {
+            pending.remove(requestId);
+            throw new IOException("Connection to " + location + " is closed");
+        }
+        try {
+            synchronized (out) {
+                Frame.write(out, reply.request, (byte) 0, body, body.length);
+                out.flush();
+            }
+            metrics.addBytesOut(FRAME_PREFIX_BYTES + body.length);
+        } catch (IOException ex) {
+            pending.remove(requestId);
+            close(ex);
+            throw ex;
+        }
+        return reply;
+    }
+
+    /**
+     * Send a request and wait for its reply, for up to REPLY_TIMEOUT_MILLIS
+     */
+    public Frame call(Protocol.Type type, byte[] body) throws IOException {
+        return send(type, body).get();
+    }
+
+    /**
+     * Whether requests can still be sent on this connection
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Getter for the remote location
+     */
+    public NetworkLocation getLocation() {
+        return location;
+    }
+
+    /**
+     * Close the connection, failing any requests still waiting for replies
+     */
+    public void close() {
+        close(new IOException("Connection to " + location + " was closed"));
+    }
+
+    private void close(IOException cause) {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            log.debug("error closing connection to " + location + ": " + ex);
+        }
+        for (Integer requestId : pending.keySet()) {
+            Reply reply = pending.remove(requestId);
+            if (reply != null) {
+                reply.fail(cause);
+            }
+        }
+    }
+
+    /**
+     * Reader thread: hand each incoming reply to whoever is waiting for it
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                Frame frame = Frame.read(in);
+                metrics.addBytesIn(FRAME_PREFIX_BYTES + frame.getBody().length);
+                int requestId = frame.getProtocol().getRequestId();
+                Reply reply = pending.remove(requestId);
+                if (reply == null) {
+                    log.warn("Reply from " + location + " to unknown request "
+                            + frame.getProtocol());
+                } else {
+                    reply.complete(frame);
+                }
+            }
+        } catch (IOException ex) {
+            if (open) {
+                log.debug("connection to " + location + " lost: " + ex);
+            }
+            close(ex);
+        }
+    }
+
+    /**
+     * Handle on the reply to a request that has been sent
+     */
+    public static class Reply {
+        private final Protocol request;
+        // the connection's requests waiting for replies, this one included
+        private final ConcurrentHashMap<Integer, Reply> pending;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Frame frame;
+        private volatile IOException failure;
+
+        Reply(Protocol request, ConcurrentHashMap<Integer, Reply> pending) {
+            this.request = request;
+            this.pending = pending;
+        }
+
+        void complete(Frame frame) {
+            this.frame = frame;
+            done.countDown();
+        }
+
+        void fail(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Getter for the request this is the reply to
+         */
+        public Protocol getRequest() {
+            return request;
+        }
+
+        /**
+         * Whether the reply (or a failure) has arrived
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Wait for the reply, for up to REPLY_TIMEOUT_MILLIS
+         */
+        public Frame get() throws IOException {
+            return get(REPLY_TIMEOUT_MILLIS);
+        }
+
+        /**
+         * Wait for the reply, failing with a SocketTimeoutException if it
+         * hasn't arrived within timeoutMillis
+         */
+        public Frame get(long timeoutMillis) throws IOException {
+            try {
+                if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    // a reply arriving after this is dropped
+                    pending.remove(request.getRequestId());
+                    throw new SocketTimeoutException("No reply to " + request 
+                            + " within " + timeoutMillis + "ms");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted waiting for reply to " + request);
+            }
+            if (failure != null) {
+                throw new IOException("No reply to " + request + ": "
+                        + failure.getMessage(), failure);
+            }
+            if (frame.isError()) {
+                throw new IOException("Request " + request + " failed remotely: "
+                        + frame.errorMessage());
+            }
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pa3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ConnectionPool
+ * Keeps one long-lived Connection per NetworkLocation so requests reuse an
+ * open socket instead of connecting (and leaving a TIME_WAIT socket) each
+ * time. A connection that has failed is replaced on the next request.
+ * Connecting is done outside of any pool-wide lock, so a dead or slow
+ * location only holds up the callers that want that location.
+ */
+public class ConnectionPool {
+
+    private final ConcurrentHashMap<NetworkLocation, Connection> connections =
+            new ConcurrentHashMap<NetworkLocation, Connection>();
+    // connects in progress, shared by every caller waiting on the location
+    private final ConcurrentHashMap<NetworkLocation, FutureTask<Connection>> connecting =
+            new ConcurrentHashMap<NetworkLocation, FutureTask<Connection>>();
+
+    // counts the bytes of every connection in the pool
+    private final Metrics metrics;
+    // codec every connection asks for replies in
+    private final DataPackageCodec.Codec replyCodec;
+
+    public ConnectionPool() {
+        this(new Metrics());
+    }
+
+    public ConnectionPool(Metrics metrics) {
+        this(metrics, DataPackageCodec.Codec.AUTO);
+    }
+
+    public ConnectionPool(Metrics metrics, DataPackageCodec.Codec replyCodec) {
+        this.metrics = metrics;
+        this.replyCodec = replyCodec;
+    }
+
+    /**
+     * Get an open connection to the location, connecting if needed
+     */
+    public Connection get(final NetworkLocation location) throws IOException {
+        Connection connection = connections.get(location);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        FutureTask<Connection> connect = new FutureTask<Connection>(
+                new Callable<Connection>() {
+                    @Override
+                    public Connection call() throws IOException {
+                        Connection current = connections.get(location);
+                        if (current != null && current.isOpen()) {
+                            // someone else connected in the meantime
+                            return current;
+                        }
+                        Connection opened = 
+                                new Connection(location, metrics, replyCodec);
+                        connections.put(location, opened);
+                        return opened;
+                    }
+                });
+        FutureTask<Connection> inProgress = connecting.putIfAbsent(location, connect);
+        if (inProgress == null) {
+            inProgress = connect;
+            connect.run();
+        }
+        try {
+            return inProgress.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted connecting to " + location);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to connect to " + location + ": " 
+                    + ex.getCause());
+        } finally {
+            // the next caller after a failure tries again
+            connecting.remove(location, inProgress);
+        }
+    }
+
+    /**
+     * Send a request to the location and wait for its reply
+     */
+    public Frame call(NetworkLocation location, Protocol.Type type, byte[] body)
+            throws IOException {
+        return get(location).call(type, body);
+    }
+
+    /**
+     * Drop (and close) the connection to a location
+     */
+    public void invalidate(NetworkLocation location) {
+        Connection connection = connections.remove(location);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close every connection in the pool
+     */
+    public void closeAll() {
+        for (NetworkLocation location : connections.keySet()) {
+            invalidate(location);
+        }
+    }
+}
@@ -1,67 +1,116 @@
 package pa3;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
 
 
 /**
  * DataPackage class
  * This class is the abstraction for the "data work package" that is passed from
  * Server to Node and vice versa.
- * 
+ *
+ * Rows are kept as a primitive column of normalized keys plus an optional
+ * payload column holding the original text of rows whose text is not just
+ * the key (e.g. "007", or any row with a string or column key), so sorting
+ * and merging never need to create a DataRow per row. The package's KeySpec
+ * says how keys are taken from the text and how rows compare.
+ *
  * @author mark
  */
 public class DataPackage implements Serializable {
-    
-    private ArrayList<DataRow> row;
-    
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // charset of the rows in input and output files
+    public static final String TEXT_CHARSET = "UTF-8";
+
+    private long[] keys;
+
+    // null until some row needs its original text kept
+    private String[] payload;
+
+    private int size;
+
     private boolean sorted;
-    
+
+    private KeySpec keySpec = KeySpec.INT;
+
     /**
      * Constructor for DataPackage
      */
-    public DataPackage() { 
-        row = new ArrayList<DataRow>();
+    public DataPackage() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for an empty DataPackage with room for capacity rows
+     */
+    public DataPackage(int capacity) {
+        keys = new long[Math.max(capacity, 1)];
+        payload = null;
+        size = 0;
         sorted = false;
     }
-    
+
+    /**
+     * Constructor for an empty DataPackage whose rows are keyed by keySpec
+     */
+    public DataPackage(int capacity, KeySpec keySpec) {
+        this(capacity);
+        this.keySpec = keySpec;
+    }
+
     /*
      * Constructor from existing rows
      */
-    public DataPackage(ArrayList<DataRow> rows) {
-        row = new ArrayList<DataRow>(rows);
-        sorted = false;
+    public DataPackage(List<DataRow> rows) {
+        this(rows.size());
+        if (!rows.isEmpty()) {
+            keySpec = rows.get(0).getKeySpec();
+        }
+        for (DataRow r : rows) {
+            add(r.getKey(), r.getStringVal());
+        }
     }
-    
+
     /**
      * Constructor from existing array of rows
      */
     public DataPackage(DataRow[] r) {
         this(DataPackage.drArrayToList(r));
     }
-    
+
+    /**
+     * Constructor wrapping existing columns (not copied).
+     * payload may be null, as may any of its entries.
+     */
+    DataPackage(long[] keys, String[] payload, int size, KeySpec keySpec) {
+        this.keys = keys;
+        this.payload = payload;
+        this.size = size;
+        this.sorted = false;
+        this.keySpec = keySpec;
+    }
+
     /**
-     * Get data package from file
+     * Get data package from file, parsed in parallel by FileIngest with
+     * this package's KeySpec
      */
     public void addFromFile(String fileName) {
         try {
-            BufferedReader reader =
-                    new BufferedReader(new FileReader(fileName));
-            if(reader == null){
-                 System.out.println("File reader is null");
-            }
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                row.add(new DataRow(line));
-            }
+            FileIngest.load(this, fileName);
         } catch (IOException e) {
             System.err.println("ERROR: Unable to parse words file: " + e);
-        }    
+        }
     }
 
     /**
@@ -70,39 +119,347 @@ public class DataPackage implements Serializable {
     public void writeToFile(String fileName) {
         BufferedWriter writer;
         try {
-            writer = new BufferedWriter(new FileWriter(fileName));
-            for (DataRow r : row) {
-                writer.write(r.getStringVal() + "\n");
-            }
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(fileName), TEXT_CHARSET));
+            writeRows(writer);
             writer.close();
         } catch (IOException ex) {
             System.err.print("Error writing DataPackage: " + ex);
         }
     }
-    
+
+    /**
+     * Write every row's text, one per line, to an open writer
+     */
+    public void writeRows(Writer writer) throws IOException {
+        for (int i = 0; i < size; i++) {
+            writer.write(getText(i));
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Add a row parsed from a line of input
+     */
+    public void add(String line) {
+        String text = line.trim();
+        add(keySpec.normalize(text), text);
+    }
+
+    /**
+     * Add a row with the given normalized key. text may be null when the
+     * row's text is just the key.
+     */
+    public void add(long key, String text) {
+        ensureCapacity(size + 1);
+        keys[size] = key;
+        if (text != null && !keySpec.isCanonical(key, text)) {
+            if (payload == null) {
+                payload = new String[keys.length];
+            }
+            payload[size] = text;
+        } else if (payload != null) {
+            payload[size] = null;
+        }
+        size++;
+    }
+
     /**
      * Getter for size
      */
     public int getSize() {
-        return row.size();
+        return size;
+    }
+
+    /**
+     * Normalized key of the row at index
+     */
+    public long getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * How the rows are keyed
+     */
+    public KeySpec getKeySpec() {
+        return keySpec;
+    }
+
+    /**
+     * Key the rows by keySpec. Only for a package that has no rows yet, as
+     * the keys already in it aren't recomputed.
+     */
+    public void setKeySpec(KeySpec keySpec) {
+        this.keySpec = keySpec;
+    }
+
+    /**
+     * Order of row i of this package and row j of other
+     */
+    public int compareRows(int i, DataPackage other, int j) {
+        return keySpec.compare(keys[i], getText(i), other.keys[j], other.getText(j));
+    }
+
+    /**
+     * Original text of the row at index
+     */
+    public String getText(int index) {
+        if (payload != null && payload[index] != null) {
+            return payload[index];
+        }
+        return keySpec.format(keys[index]);
+    }
+
+    /**
+     * Whether any row carries text other than its key
+     */
+    public boolean hasPayload() {
+        if (payload != null) {
+            for (int i = 0; i < size; i++) {
+                if (payload[i] != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Raw normalized key column, may be longer than getSize()
+     */
+    long[] keyColumn() {
+        return keys;
     }
-    
+
+    /**
+     * Raw payload column, may be null
+     */
+    String[] payloadColumn() {
+        return payload;
+    }
+
     /**
-     * Getter for all rows in this data package
+     * Getter for all rows in this data package.
+     * This is a view: DataRows are created as they are read and writes go
+     * back into the package, so prefer getKey/getText in hot paths.
      */
-    public ArrayList<DataRow> getRows() {
-        return row;
+    public List<DataRow> getRows() {
+        return new RowView();
     }
-    
+
     /**
      * append another data package on to this one
      */
     public void append(DataPackage dp) {
-        ArrayList<DataRow> rows = dp.getRows();
-        this.row.addAll(rows);
+        appendRange(dp, 0, dp.getSize());
+    }
+
+    /**
+     * append rows [from, to) of another data package on to this one. An
+     * empty package takes on the other's KeySpec.
+     */
+    public void appendRange(DataPackage dp, int from, int to) {
+        if (size == 0) {
+            keySpec = dp.keySpec;
+        }
+        int count = to - from;
+        ensureCapacity(size + count);
+        System.arraycopy(dp.keys, from, keys, size, count);
+        if (dp.payload != null) {
+            if (payload == null) {
+                payload = new String[keys.length];
+            }
+            System.arraycopy(dp.payload, from, payload, size, count);
+        } else if (payload != null) {
+            Arrays.fill(payload, size, size + count, null);
+        }
+        size += count;
+    }
+
+    /**
+     * Copy of rows [from, to) as a new data package
+     */
+    public DataPackage slice(int from, int to) {
+        DataPackage dp = new DataPackage(to - from, keySpec);
+        dp.appendRange(this, from, to);
+        return dp;
     }
-    
-        /**
+
+    /**
+     * Sort the rows of this package in place by key.
+     * Equal keys keep their relative order.
+     */
+    public void sort() {
+        if (keySpec.isExact() && !hasPayload()) {
+            Arrays.sort(keys, 0, size);
+            return;
+        }
+        /*
+         * sort row indexes instead, comparing the normalized keys and only
+         * looking at the text on ties, then permute both columns. A merge
+         * sort keeps it stable.
+         */
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order.clone(), order, 0, size);
+        long[] sortedKeys = new long[keys.length];
+        String[] sortedPayload = new String[keys.length];
+        for (int i = 0; i < size; i++) {
+            sortedKeys[i] = keys[order[i]];
+            if (payload != null) {
+                sortedPayload[i] = payload[order[i]];
+            }
+        }
+        keys = sortedKeys;
+        payload = (payload == null) ? null : sortedPayload;
+    }
+
+    /**
+     * The count smallest rows (or the count largest), in order, as a new
+     * package. Rows are kept in a bounded heap whose root is the worst row
+     * kept, so most rows cost one key comparison and the whole selection
+     * O(n log count) rather than a sort of every row.
+     */
+    public DataPackage select(int count, boolean largest) {
+        count = Math.min(count, size);
+        if (keySpec.isExact() && !hasPayload()) {
+            return selectKeys(count, largest);
+        }
+        int[] heap = new int[count];
+        int direction = largest ? -1 : 1;
+        for (int i = 0; i < size && count > 0; i++) {
+            if (i < count) {
+                // sift up
+                int c = i;
+                while (c > 0 && direction * compareIndexes(
+                        i, heap[(c - 1) >>> 1]) > 0) {
+                    heap[c] = heap[(c - 1) >>> 1];
+                    c = (c - 1) >>> 1;
+                }
+                heap[c] = i;
+            } else if (direction * compareIndexes(i, heap[0]) < 0) {
+                // replace the worst kept row and sift down
+                int c = 0;
+                while (true) {
+                    int child = 2 * c + 1;
+                    if (child >= count) {
+                        break;
+                    }
+                    if (child + 1 < count && direction * compareIndexes(
+                            heap[child + 1], heap[child]) > 0) {
+                        child++;
+                    }
+                    if (direction * compareIndexes(heap[child], i) <= 0) {
+                        break;
+                    }
+                    heap[c] = heap[child];
+                    c = child;
+                }
+                heap[c] = i;
+            }
+        }
+        DataPackage selected = new DataPackage(count, keySpec);
+        for (int row : heap) {
+            selected.add(keys[row], (payload == null) ? null : payload[row]);
+        }
+        selected.sort();
+        selected.sorted(true);
+        return selected;
+    }
+
+    /**
+     * select for rows that are just their keys, with a heap of the keys
+     * themselves (complemented to find the largest, which reverses their
+     * order)
+     */
+    private DataPackage selectKeys(int count, boolean largest) {
+        long flip = largest ? -1L : 0L;
+        long[] heap = new long[count];
+        for (int i = 0; i < size && count > 0; i++) {
+            long key = keys[i] ^ flip;
+            if (i < count) {
+                int c = i;
+                while (c > 0 && key > heap[(c - 1) >>> 1]) {
+                    heap[c] = heap[(c - 1) >>> 1];
+                    c = (c - 1) >>> 1;
+                }
+                heap[c] = key;
+            } else if (key < heap[0]) {
+                int c = 0;
+                while (true) {
+                    int child = 2 * c + 1;
+                    if (child >= count) {
+                        break;
+                    }
+                    if (child + 1 < count && heap[child + 1] > heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] <= key) {
+                        break;
+                    }
+                    heap[c] = heap[child];
+                    c = child;
+                }
+                heap[c] = key;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            heap[i] ^= flip;
+        }
+        Arrays.sort(heap);
+        DataPackage selected = new DataPackage(heap, null, count, keySpec);
+        selected.sorted(true);
+        return selected;
+    }
+
+    // runs this short are insertion sorted
+    private static final int INSERTION_SORT_ROWS = 16;
+
+    /**
+     * Stable sort of the row indexes in dst[from, to), using src (a copy of
+     * the same range) as scratch
+     */
+    private void mergeSort(int[] src, int[] dst, int from, int to) {
+        if (to - from <= INSERTION_SORT_ROWS) {
+            for (int i = from + 1; i < to; i++) {
+                int row = dst[i];
+                int j = i;
+                while (j > from && compareIndexes(dst[j - 1], row) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dst, src, from, mid);
+        mergeSort(dst, src, mid, to);
+        if (compareIndexes(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, from, dst, from, to - from);
+            return;
+        }
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && compareIndexes(src[p], src[q]) <= 0)) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
+            }
+        }
+    }
+
+    private int compareIndexes(int a, int b) {
+        long keyA = keys[a];
+        long keyB = keys[b];
+        if (keyA != keyB) {
+            return (keyA < keyB) ? -1 : 1;
+        }
+        return keySpec.isExact() ? 0 : keySpec.compareText(getText(a), getText(b));
+    }
+
+    /**
      * Convert from DataRow array to a list
      */
     public static ArrayList<DataRow> drArrayToList(DataRow[] arr) {
@@ -112,19 +469,74 @@ public class DataPackage implements Serializable {
         }
         return li;
     }
-    
+
     /**
      * Returns whether this data package has been sorted
      */
     public boolean isSorted() {
         return sorted;
     }
-    
+
     /**
      * Setter for "sorted", indicating whether this DP is sorted or not
      */
     public void sorted(boolean isSorted) {
         sorted = isSorted;
     }
-    
+
+    private void ensureCapacity(int needed) {
+        if (needed > keys.length) {
+            int newCapacity = Math.max(needed, keys.length + (keys.length >> 1));
+            keys = Arrays.copyOf(keys, newCapacity);
+            if (payload != null) {
+                payload = Arrays.copyOf(payload, newCapacity);
+            }
+        }
+    }
+
+    /**
+     * List view over the columns for callers that want DataRows
+     */
+    private class RowView extends AbstractList<DataRow> implements RandomAccess {
+
+        @Override
+        public DataRow get(int index) {
+            checkIndex(index);
+            return new DataRow(keys[index],
+                    (payload == null) ? null : payload[index], keySpec);
+        }
+
+        @Override
+        public DataRow set(int index, DataRow row) {
+            DataRow old = get(index);
+            keys[index] = row.getKey();
+            if (!keySpec.isCanonical(keys[index], row.getStringVal())) {
+                if (payload == null) {
+                    payload = new String[keys.length];
+                }
+                payload[index] = row.getStringVal();
+            } else if (payload != null) {
+                payload[index] = null;
+            }
+            return old;
+        }
+
+        @Override
+        public boolean add(DataRow row) {
+            DataPackage.this.add(row.getKey(), row.getStringVal());
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(
+                        "Index: " + index + ", Size: " + size);
+            }
+        }
+    }
 }
@@ -0,0 +1,537 @@
+package pa3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * DataPackageCodec
+ * Compact binary wire format for DataPackages. Replaces Java object
+ * serialization of every DataRow with a length-prefixed frame of primitive
+ * keys. The original text of a row is only sent when it can't be rebuilt
+ * from its key (e.g. "007" or "+5", or any row with a string key).
+ *
+ * Frame layout (all big-endian):
+ *   int   frame length (bytes following this field)
+ *   byte  version
+ *   byte  flags (FLAG_NULL, FLAG_SORTED, FLAG_DELTA, FLAG_DEFLATE,
+ *         FLAG_LONG_KEYS, FLAG_KEY_SPEC)
+ *   int   row count
+ *   with FLAG_KEY_SPEC, the package's KeySpec as a UTF string
+ *   int[] keys, long[] with FLAG_LONG_KEYS, or with FLAG_DELTA the zigzag
+ *         varint of each key's difference from the key before it
+ *   int   payload count, then (int row index, int length, UTF-8 bytes)
+ *         per payload, so a row's text has no length limit
+ * With FLAG_DEFLATE everything after the row count is deflated, preceded
+ * by an int giving its length before deflating.
+ *
+ * A sorted run too big to build in one piece travels as a block stream:
+ *   long  row count of the whole run
+ *   a frame per block of up to BLOCK_ROWS rows, in order
+ *   a null frame to end it
+ *
+ * Every frame says how it was encoded, so a reader never needs to be told
+ * which Codec the writer picked. Packages keyed by anything but KeySpec.INT
+ * carry their KeySpec, so a node sorts the rows of a job the way the job's
+ * client asked.
+ */
+public class DataPackageCodec {
+
+    public static final byte VERSION = 4;
+
+    static final byte FLAG_NULL = 0x01;
+    static final byte FLAG_SORTED = 0x02;
+    static final byte FLAG_DELTA = 0x04;
+    static final byte FLAG_DEFLATE = 0x08;
+    static final byte FLAG_LONG_KEYS = 0x10;
+    static final byte FLAG_KEY_SPEC = 0x20;
+
+    // rows per frame of a block stream
+    public static final int BLOCK_ROWS = 8192;
+
+    // version + flags + row count + payload count
+    private static final int FIXED_HEADER_BYTES = 1 + 1 + 4 + 4;
+
+    // frame length + version + flags + row count
+    private static final int PREFIX_BYTES = 4 + 1 + 1 + 4;
+
+    // most bytes the varint of a long takes
+    private static final int MAX_VARINT_BYTES = 10;
+
+    /**
+     * How the keys and text of a package are encoded:
+     * AUTO    DELTA for sorted packages and RAW for the rest
+     * RAW     each key as it is: four bytes for int keys, or eight with
+     *         FLAG_LONG_KEYS for the normalized long keys of other KeySpecs
+     * DELTA   each key as the zigzag varint of its difference from the one
+     *         before, a byte or two per key once the keys are sorted
+     * DEFLATE the DELTA encoding for sorted packages (RAW for the rest),
+     *         deflated, for links where bytes cost more than CPU
+     */
+    public static enum Codec {AUTO, RAW, DELTA, DEFLATE};
+
+    private static final Codec[] CODECS = Codec.values();
+
+    /**
+     * Codec with the given ordinal, as carried in a frame header
+     */
+    public static Codec codecOf(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= CODECS.length) {
+            throw new IOException("Unknown codec: " + ordinal);
+        }
+        return CODECS[ordinal];
+    }
+
+    /**
+     * The codec a package is actually written in, never AUTO
+     */
+    public static Codec resolve(Codec codec, DataPackage dp) {
+        if (codec == Codec.AUTO) {
+            return dp.isSorted() ? Codec.DELTA : Codec.RAW;
+        }
+        return codec;
+    }
+
+    /**
+     * Write a data package (which may be null) to the output as one frame,
+     * with its keys as they are
+     */
+    public static void write(DataOutput out, DataPackage dp) throws IOException {
+        write(out, dp, Codec.RAW, null);
+    }
+
+    /**
+     * Write a data package (which may be null) to the output as one frame
+     * in the given codec, recording its sizes and the time taken in
+     * metrics (if not null)
+     */
+    public static void write(DataOutput out, DataPackage dp, Codec codec,
+            Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        if (dp == null) {
+            out.writeInt(FIXED_HEADER_BYTES);
+            out.writeByte(VERSION);
+            out.writeByte(FLAG_NULL);
+            out.writeInt(0);
+            out.writeInt(0);
+            return;
+        }
+        int numRows = dp.getSize();
+        long[] keys = dp.keyColumn();
+        String[] payload = dp.payloadColumn();
+        KeySpec keySpec = dp.getKeySpec();
+        byte[] keySpecText = keySpec.equals(KeySpec.INT) ? null
+                : keySpec.toString().getBytes("UTF-8");
+        int keyBytes = keySpec.hasIntKeys() ? 4 : 8;
+        Codec used = resolve(codec, dp);
+        boolean delta = used == Codec.DELTA
+                || (used == Codec.DEFLATE && dp.isSorted());
+        byte flags = (byte) ((dp.isSorted() ? FLAG_SORTED : 0)
+                | (delta ? FLAG_DELTA : 0)
+                | ((used == Codec.DEFLATE) ? FLAG_DEFLATE : 0)
+                | ((keyBytes == 8) ? FLAG_LONG_KEYS : 0)
+                | ((keySpecText != null) ? FLAG_KEY_SPEC : 0));
+
+        // rows whose text isn't the canonical form of their key
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payloadBytes);
+        int payloadCount = 0;
+
+        int keySpecBytes = (keySpecText == null) ? 0 : 2 + keySpecText.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + FIXED_HEADER_BYTES
+                + keySpecBytes + (delta ? MAX_VARINT_BYTES : keyBytes) * numRows);
+        frame.putInt(0); // patched below
+        frame.put(VERSION);
+        frame.put(flags);
+        frame.putInt(numRows);
+        if (keySpecText != null) {
+            frame.putShort((short) keySpecText.length);
+            frame.put(keySpecText);
+        }
+        if (delta) {
+            putDeltas(frame, keys, numRows);
+        } else if (keyBytes == 8) {
+            frame.asLongBuffer().put(keys, 0, numRows);
+            frame.position(frame.position() + 8 * numRows);
+        } else {
+            // narrowed into an array first so the copy into the frame is bulk
+            int[] intKeys = new int[numRows];
+            for (int i = 0; i < numRows; i++) {
+                intKeys[i] = (int) keys[i];
+            }
+            frame.asIntBuffer().put(intKeys);
+            frame.position(frame.position() + 4 * numRows);
+        }
+        if (payload != null) {
+            for (int i = 0; i < numRows; i++) {
+                if (payload[i] != null) {
+                    byte[] text = payload[i].getBytes(DataPackage.TEXT_CHARSET);
+                    payloadOut.writeInt(i);
+                    payloadOut.writeInt(text.length);
+                    payloadOut.write(text);
+                    payloadCount++;
+                }
+            }
+        }
+        frame.putInt(payloadCount);
+        payloadOut.flush();
+
+        long encodedBytes;
+        if (used == Codec.DEFLATE) {
+            int sectionLength = frame.position() - PREFIX_BYTES + payloadBytes.size();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream deflaterOut =
+                    new DeflaterOutputStream(deflated, deflater);
+            deflaterOut.write(frame.array(), PREFIX_BYTES,
+                    frame.position() - PREFIX_BYTES);
+            payloadBytes.writeTo(deflaterOut);
+            deflaterOut.finish();
+            deflater.end();
+            frame.putInt(0, PREFIX_BYTES - 4 + 4 + deflated.size());
+            out.write(frame.array(), 0, PREFIX_BYTES);
+            out.writeInt(sectionLength);
+            out.write(deflated.toByteArray());
+            encodedBytes = PREFIX_BYTES + 4 + deflated.size();
+        } else {
+            frame.putInt(0, frame.position() - 4 + payloadBytes.size());
+            out.write(frame.array(), 0, frame.position());
+            if (payloadCount > 0) {
+                out.write(payloadBytes.toByteArray());
+            }
+            encodedBytes = frame.position() + payloadBytes.size();
+        }
+        if (metrics != null) {
+            metrics.recordEncode(used, 4 + FIXED_HEADER_BYTES + keySpecBytes
+                    + (long) keyBytes * numRows + payloadBytes.size(),
+                    encodedBytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Put each key as the zigzag varint of its difference from the key
+     * before it
+     */
+    private static void putDeltas(ByteBuffer frame, long[] keys, int numRows) {
+        byte[] buf = frame.array();
+        int pos = frame.position();
+        long previous = 0;
+        for (int i = 0; i < numRows; i++) {
+            long delta = keys[i] - previous;
+            previous = keys[i];
+            long v = (delta << 1) ^ (delta >> 63);
+            while ((v & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+        frame.position(pos);
+    }
+
+    /**
+     * Get numRows keys put by putDeltas. Version 2 frames held int keys,
+     * whose differences wrapped around as ints.
+     */
+    private static long[] getDeltas(ByteBuffer frame, int numRows,
+            boolean intKeys) throws IOException {
+        long[] keys = new long[numRows];
+        byte[] buf = frame.array();
+        int pos = frame.position();
+        int limit = frame.limit();
+        long previous = 0;
+        for (int i = 0; i < numRows; i++) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos >= limit || shift > 63) {
+                    throw new IOException("Bad delta encoded key at row " + i);
+                }
+                b = buf[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += (v >>> 1) ^ -(v & 1);
+            if (intKeys) {
+                previous = (int) previous;
+            }
+            keys[i] = previous;
+        }
+        frame.position(pos);
+        return keys;
+    }
+
+    /**
+     * Read one frame from the input, returns null if a null package was sent
+     */
+    public static DataPackage read(DataInput in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Read one frame from the input, recording the time taken in metrics
+     * (if not null). Returns null if a null package was sent.
+     */
+    public static DataPackage read(DataInput in, Metrics metrics)
+            throws IOException {
+        int length = in.readInt();
+        if (length < FIXED_HEADER_BYTES) {
+            throw new IOException("Bad DataPackage frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        long start = System.nanoTime();
+        ByteBuffer frame = ByteBuffer.wrap(body);
+
+        byte version = frame.get();
+        // version 1 frames have raw int keys only, version 2 adds
+        // FLAG_DELTA and FLAG_DEFLATE (with deltas that wrap as ints),
+        // version 3 adds FLAG_LONG_KEYS and FLAG_KEY_SPEC, and version 4
+        // sends each payload with an int length instead of writeUTF
+        if (version < 1 || version > VERSION) {
+            throw new IOException(
+                    "Unsupported DataPackage wire version: " + version);
+        }
+        byte flags = frame.get();
+        int numRows = frame.getInt();
+        if ((flags & FLAG_NULL) != 0) {
+            return null;
+        }
+
+        Codec used = ((flags & FLAG_DELTA) != 0) ? Codec.DELTA : Codec.RAW;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            int sectionLength = frame.getInt();
+            frame = ByteBuffer.wrap(
+                    inflate(body, frame.position(), sectionLength));
+            used = Codec.DEFLATE;
+        }
+        KeySpec keySpec = KeySpec.INT;
+        if ((flags & FLAG_KEY_SPEC) != 0) {
+            byte[] keySpecText = new byte[frame.getShort()];
+            frame.get(keySpecText);
+            try {
+                keySpec = KeySpec.parse(new String(keySpecText, "UTF-8"));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Bad KeySpec in DataPackage frame: " + ex);
+            }
+        }
+        long[] keys;
+        if ((flags & FLAG_DELTA) != 0) {
+            keys = getDeltas(frame, numRows, version < 3);
+        } else if ((flags & FLAG_LONG_KEYS) != 0) {
+            keys = new long[numRows];
+            frame.asLongBuffer().get(keys);
+            frame.position(frame.position() + 8 * numRows);
+        } else {
+            int[] intKeys = new int[numRows];
+            frame.asIntBuffer().get(intKeys);
+            frame.position(frame.position() + 4 * numRows);
+            keys = new long[numRows];
+            for (int i = 0; i < numRows; i++) {
+                keys[i] = intKeys[i];
+            }
+        }
+        String[] payload = null;
+        int payloadCount = frame.getInt();
+        if (payloadCount > 0) {
+            payload = new String[numRows];
+            DataInputStream payloadIn = new DataInputStream(new ByteArrayInputStream(
+                    frame.array(), frame.position(), frame.limit() - frame.position()));
+            for (int p = 0; p < payloadCount; p++) {
+                int idx = payloadIn.readInt();
+                if (version < 4) {
+                    // writeUTF, which limits a row to 65535 bytes
+                    payload[idx] = payloadIn.readUTF();
+                    continue;
+                }
+                int textLength = payloadIn.readInt();
+                if (textLength < 0) {
+                    throw new IOException("Bad payload length at row " + idx);
+                }
+                byte[] text = new byte[textLength];
+                payloadIn.readFully(text);
+                payload[idx] = new String(text, DataPackage.TEXT_CHARSET);
+            }
+        }
+
+        DataPackage dp = new DataPackage(keys, payload, numRows, keySpec);
+        dp.sorted((flags & FLAG_SORTED) != 0);
+        if (metrics != null) {
+            metrics.recordDecode(used, System.nanoTime() - start);
+        }
+        return dp;
+    }
+
+    /**
+     * Inflate the deflated section of a frame, which starts at offset
+     */
+    private static byte[] inflate(byte[] body, int offset, int sectionLength)
+            throws IOException {
+        byte[] section = new byte[sectionLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body, offset, body.length - offset);
+            int inflated = 0;
+            while (inflated < sectionLength) {
+                int n = inflater.inflate(section, inflated, sectionLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflated DataPackage frame");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt deflated DataPackage frame: " + ex);
+        } finally {
+            inflater.end();
+        }
+        return section;
+    }
+
+    /**
+     * Write a sorted package as a block stream
+     */
+    public static void writeBlocks(DataOutput out, DataPackage dp, Codec codec,
+            Metrics metrics) throws IOException {
+        BlockWriter writer = new BlockWriter(out, dp.getSize(), codec, metrics);
+        writer.accept(dp);
+        writer.finish();
+    }
+
+    /**
+     * Row count at the start of a block stream, the blocks follow and are
+     * read with read until it returns null
+     */
+    public static long readBlockCount(DataInput in) throws IOException {
+        long rows = in.readLong();
+        if (rows < 0 || rows > Integer.MAX_VALUE) {
+            throw new IOException("Bad block stream row count: " + rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Read a whole block stream back into one sorted package
+     */
+    public static DataPackage readBlocks(DataInput in, Metrics metrics)
+            throws IOException {
+        return readBlocks(in, readBlockCount(in), metrics);
+    }
+
+    /**
+     * Read the blocks of a block stream whose row count has been read
+     * already into one sorted package
+     */
+    public static DataPackage readBlocks(DataInput in, long rowCount,
+            Metrics metrics) throws IOException {
+        int total = (int) rowCount;
+        long[] keys = new long[total];
+        String[] payload = null;
+        KeySpec keySpec = KeySpec.INT;
+        int rows = 0;
+        DataPackage block;
+        while ((block = read(in, metrics)) != null) {
+            int n = block.getSize();
+            if (rows + n > total) {
+                throw new IOException("Block stream has more than " + total + " rows");
+            }
+            System.arraycopy(block.keyColumn(), 0, keys, rows, n);
+            if (block.payloadColumn() != null) {
+                if (payload == null) {
+                    payload = new String[total];
+                }
+                System.arraycopy(block.payloadColumn(), 0, payload, rows, n);
+            }
+            keySpec = block.getKeySpec();
+            rows += n;
+        }
+        if (rows != total) {
+            throw new IOException("Block stream ended after " + rows + " of "
+                    + total + " rows");
+        }
+        DataPackage dp = new DataPackage(keys, payload, total, keySpec);
+        dp.sorted(true);
+        return dp;
+    }
+
+    /**
+     * Writes the blocks of a sorted run to the output as a block stream,
+     * as they are produced
+     */
+    public static class BlockWriter implements BlockSink {
+        private final DataOutput out;
+        private final Codec codec;
+        private final Metrics metrics;
+
+        /**
+         * Start a block stream of the given number of rows
+         */
+        public BlockWriter(DataOutput out, long rows, Codec codec, Metrics metrics)
+                throws IOException {
+            this.out = out;
+            this.codec = codec;
+            this.metrics = metrics;
+            out.writeLong(rows);
+        }
+
+        /**
+         * Write a sorted package, as frames of up to BLOCK_ROWS rows
+         */
+        @Override
+        public void accept(DataPackage block) throws IOException {
+            if (block.getSize() <= BLOCK_ROWS) {
+                write(out, block, codec, metrics);
+                return;
+            }
+            for (int from = 0; from < block.getSize(); from += BLOCK_ROWS) {
+                DataPackage slice = block.slice(from, 
+                        Math.min(from + BLOCK_ROWS, block.getSize()));
+                slice.sorted(true);
+                write(out, slice, codec, metrics);
+            }
+        }
+
+        /**
+         * End the block stream
+         */
+        public void finish() throws IOException {
+            write(out, null, codec, metrics);
+        }
+    }
+
+    /**
+     * Encode a data package to a byte array
+     */
+    public static byte[] encode(DataPackage dp) throws IOException {
+        return encode(dp, Codec.RAW, null);
+    }
+
+    /**
+     * Encode a data package to a byte array in the given codec
+     */
+    public static byte[] encode(DataPackage dp, Codec codec, Metrics metrics)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, dp, codec, metrics);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a data package from a byte array
+     */
+    public static DataPackage decode(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
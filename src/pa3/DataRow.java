@@ -11,38 +11,67 @@ import java.io.Serializable;
 public class DataRow implements Comparable <DataRow>, Serializable {
 
     private String stringVal;
-    private Integer intVal;
-    
+    private long key;
+    private KeySpec keySpec;
+
     /**
      * Constructor for DataRow
-     * @param line 
+     * @param line
      */
     DataRow(String line) {
+        this(line, KeySpec.INT);
+    }
+
+    /**
+     * Constructor for a DataRow keyed by keySpec
+     * @param line
+     * @param keySpec
+     */
+    DataRow(String line, KeySpec keySpec) {
         stringVal = line.trim();
-        intVal = new Integer(stringVal);
+        this.keySpec = keySpec;
+        key = keySpec.normalize(stringVal);
+    }
+
+    /**
+     * Constructor from an already normalized key, used when decoding from
+     * the wire
+     * @param key
+     * @param line original text, or null if it is just the key's string form
+     * @param keySpec
+     */
+    DataRow(long key, String line, KeySpec keySpec) {
+        this.key = key;
+        this.keySpec = keySpec;
+        stringVal = (line == null) ? keySpec.format(key) : line;
     }
 
     @Override
     public int compareTo(DataRow t) {
-//        return this.stringVal.compareToIgnoreCase(t.getStringVal());
-        return intVal.compareTo(t.getIntVal());
+        return keySpec.compare(key, stringVal, t.getKey(), t.getStringVal());
     }
-    
+
     public String getStringVal() {
         return stringVal;
     }
-    
-    public Integer getIntVal() {
-        return intVal;
+
+    /**
+     * Normalized key, see KeySpec
+     */
+    public long getKey() {
+        return key;
     }
-    
+
+    public KeySpec getKeySpec() {
+        return keySpec;
+    }
+
     /**
      * Generic "getter" for whatever type the value ends up being
-     * @return 
+     * @return
      */
-    public Integer get() {
-///        return stringVal;
-        return intVal;
+    public String get() {
+        return stringVal;
     }
-    
+
 }
@@ -0,0 +1,14 @@
+package pa3;
+
+/**
+ * Emitter
+ * Where a Mapper or Reducer puts the key/value pairs it produces.
+ */
+public interface Emitter {
+
+    /**
+     * Emit one pair. The key may not contain a tab or a line break, the
+     * value may not contain a line break.
+     */
+    void emit(String key, String value);
+}
@@ -0,0 +1,400 @@
+package pa3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.log4j.Logger;
+
+/**
+ * ExternalSorter
+ * Sorts and merges packages that are bigger than a node's memory budget by
+ * spilling sorted runs to local run files and merging the runs back in a
+ * streaming fashion, a block at a time.
+ *
+ * A split to sort arrives whole in its request, so it is sorted a
+ * budget-sized run at a time and the runs are merged back into its own
+ * columns: the sort needs at most a run on top of the split itself. The
+ * inputs of a merge are spilled one at a time as they arrive (see
+ * MergeInputs), and the merged rows go out a block at a time to whatever
+ * takes them, a reply or a run file held for the next reduce level, so a
+ * merge holds one input and a block per run rather than every row.
+ *
+ * A run file is a sequence of blocks, each written through a FileChannel as
+ *   int  raw length
+ *   int  stored length (the same unless the block is compressed)
+ *   byte[] a DataPackageCodec frame of up to BLOCK_ROWS rows, deflated
+ *          when compression is on
+ */
+public class ExternalSorter {
+
+    private static final Logger log = Logger.getLogger(ExternalSorter.class);
+
+    // rough bytes held in memory per row while a run is sorted
+    // (key, sorted copy of the key, index and payload references)
+    public static final int BYTES_PER_ROW = 32;
+
+    // rows per block in a run file, also the smallest run size
+    public static final int BLOCK_ROWS = DataPackageCodec.BLOCK_ROWS;
+
+    private final long memoryBudget;
+    private final File spillDirectory;
+    private final boolean compress;
+
+    /**
+     * Constructor
+     * @param memoryBudget bytes a run may use while it is being sorted
+     * @param spillDirectory where run files go
+     * @param compress whether run blocks are deflated
+     */
+    public ExternalSorter(long memoryBudget, File spillDirectory, boolean compress) {
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+        this.compress = compress;
+    }
+
+    /**
+     * Whether this many rows are too many to sort or merge in memory
+     */
+    public boolean exceedsBudget(long rows) {
+        return rows * BYTES_PER_ROW > memoryBudget;
+    }
+
+    /**
+     * Rows per sorted run
+     */
+    int getRunRows() {
+        return (int) Math.min(Integer.MAX_VALUE,
+                Math.max(BLOCK_ROWS, memoryBudget / BYTES_PER_ROW));
+    }
+
+    /**
+     * Sort dp in place: sort budget sized runs and spill them, then merge
+     * the runs back into dp's own columns
+     */
+    public void sortInPlace(DataPackage dp) throws IOException {
+        int size = dp.getSize();
+        int runRows = getRunRows();
+        ArrayList<File> runs = new ArrayList<File>();
+        try {
+            for (int from = 0; from < size; from += runRows) {
+                int to = (int) Math.min((long) from + runRows, size);
+                DataPackage run = dp.slice(from, to);
+                run.sort();
+                runs.add(spill(run));
+            }
+            log.debug("spilled " + runs.size() + " runs of up to " + runRows
+                    + " rows");
+            // the runs hold every row now, so dp's columns can take the output
+            new RunMerger(runs, dp.getKeySpec()).mergeInto(dp.keyColumn(),
+                    dp.payloadColumn());
+        } finally {
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * Merge sorted run files, handing the merged rows to sink a block at a
+     * time. The runs are deleted once they have been merged.
+     */
+    public static void mergeRuns(List<File> runs, KeySpec keySpec, BlockSink sink)
+            throws IOException {
+        try {
+            if (!runs.isEmpty()) {
+                new RunMerger(runs, keySpec).mergeTo(sink, BLOCK_ROWS);
+            }
+        } finally {
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * Hand every block of a run file to sink, in order
+     */
+    public static void readRun(File run, BlockSink sink) throws IOException {
+        RunReader reader = new RunReader(run);
+        try {
+            DataPackage block;
+            while ((block = reader.nextBlock()) != null) {
+                block.sorted(true);
+                sink.accept(block);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write a sorted package to a new run file
+     */
+    File spill(DataPackage sorted) throws IOException {
+        RunWriter writer = newRun();
+        try {
+            writer.accept(sorted);
+        } catch (IOException ex) {
+            writer.discard();
+            throw ex;
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Start a new run file, its blocks are written as they are accepted
+     */
+    public RunWriter newRun() throws IOException {
+        return new RunWriter(File.createTempFile("pa3-run", ".run", spillDirectory),
+                compress);
+    }
+
+    /**
+     * Writes the blocks of a sorted run to a run file as they come, in
+     * blocks of at most BLOCK_ROWS rows
+     */
+    public static class RunWriter implements BlockSink {
+        private final File runFile;
+        private final FileOutputStream fos;
+        private final FileChannel channel;
+        private final Deflater deflater;
+        private final ByteBuffer header = ByteBuffer.allocate(8);
+        private long rows;
+        private KeySpec keySpec;
+
+        RunWriter(File runFile, boolean compress) throws IOException {
+            this.runFile = runFile;
+            runFile.deleteOnExit();
+            fos = new FileOutputStream(runFile);
+            channel = fos.getChannel();
+            deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+
+        @Override
+        public void accept(DataPackage block) throws IOException {
+            if (keySpec == null) {
+                keySpec = block.getKeySpec();
+            }
+            for (int from = 0; from < block.getSize(); from += BLOCK_ROWS) {
+                int to = Math.min(from + BLOCK_ROWS, block.getSize());
+                writeBlock(DataPackageCodec.encode(
+                        (from == 0 && to == block.getSize()) ? block 
+                        : block.slice(from, to)));
+            }
+            rows += block.getSize();
+        }
+
+        private void writeBlock(byte[] raw) throws IOException {
+            byte[] stored = raw;
+            int storedLength = raw.length;
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                stored = new byte[raw.length + 64];
+                storedLength = deflater.deflate(stored);
+                if (!deflater.finished()) {
+                    // incompressible, keep it raw
+                    stored = raw;
+                    storedLength = raw.length;
+                }
+            }
+            header.clear();
+            header.putInt(raw.length).putInt(storedLength).flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(stored, 0, storedLength));
+        }
+
+        /**
+         * Rows written so far
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Key spec of the rows written, or null if there were none
+         */
+        public KeySpec getKeySpec() {
+            return keySpec;
+        }
+
+        /**
+         * Close the run file and return it
+         */
+        public File finish() throws IOException {
+            close();
+            return runFile;
+        }
+
+        /**
+         * Close and delete the run file, after a failure
+         */
+        public void discard() {
+            try {
+                close();
+            } catch (IOException ex) {
+                log.debug("error closing run file: " + ex);
+            }
+            if (!runFile.delete()) {
+                log.warn("Unable to delete run file " + runFile);
+            }
+        }
+
+        private void close() throws IOException {
+            if (deflater != null) {
+                deflater.end();
+            }
+            fos.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void deleteAll(List<File> runs) {
+        for (File run : runs) {
+            if (!run.delete()) {
+                log.warn("Unable to delete run file " + run);
+            }
+        }
+    }
+
+    /**
+     * Reads a run file back one block at a time
+     */
+    private static class RunReader {
+        private final FileInputStream fis;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(8);
+        private final Inflater inflater = new Inflater();
+
+        RunReader(File runFile) throws IOException {
+            fis = new FileInputStream(runFile);
+            channel = fis.getChannel();
+        }
+
+        /**
+         * Next block of the run, or null at the end of the run
+         */
+        DataPackage nextBlock() throws IOException {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    if (header.position() == 0) {
+                        return null;
+                    }
+                    throw new IOException("Truncated run file block header");
+                }
+            }
+            header.flip();
+            int rawLength = header.getInt();
+            int storedLength = header.getInt();
+            ByteBuffer stored = ByteBuffer.allocate(storedLength);
+            while (stored.hasRemaining()) {
+                if (channel.read(stored) < 0) {
+                    throw new IOException("Truncated run file block");
+                }
+            }
+            byte[] raw = stored.array();
+            if (storedLength != rawLength) {
+                raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(stored.array());
+                try {
+                    int inflated = 0;
+                    while (inflated < rawLength) {
+                        int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput()
+                                || inflater.needsDictionary())) {
+                            throw new IOException("Truncated run file block, "
+                                    + inflated + " of " + rawLength + " bytes");
+                        }
+                        inflated += n;
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Corrupt run file block: " + ex);
+                }
+                if (!inflater.finished()) {
+                    throw new IOException("Run file block longer than its "
+                            + rawLength + " bytes");
+                }
+            }
+            return DataPackageCodec.decode(raw);
+        }
+
+        void close() {
+            inflater.end();
+            try {
+                fis.close();
+            } catch (IOException ex) {
+                log.debug("error closing run file: " + ex);
+            }
+        }
+    }
+
+    /**
+     * k-way merge over run files, pulling the next block of a run as its
+     * current one runs out
+     */
+    private static class RunMerger extends PartitionMerger {
+        private final RunReader[] readers;
+
+        RunMerger(List<File> runs, KeySpec keySpec) throws IOException {
+            super(runs.size(), keySpec);
+            readers = new RunReader[k];
+            for (int s = 0; s < k; s++) {
+                readers[s] = new RunReader(runs.get(s));
+                refill(s);
+            }
+        }
+
+        @Override
+        protected boolean refill(int s) throws IOException {
+            DataPackage block = readers[s].nextBlock();
+            if (block == null) {
+                sizes[s] = 0;
+                cursors[s] = 0;
+                return false;
+            }
+            keys[s] = block.keyColumn();
+            payloads[s] = block.payloadColumn();
+            sizes[s] = block.getSize();
+            cursors[s] = 0;
+            return true;
+        }
+
+        @Override
+        protected int mergeInto(long[] outKeys, String[] outPayload)
+                throws IOException {
+            try {
+                return super.mergeInto(outKeys, outPayload);
+            } finally {
+                closeReaders();
+            }
+        }
+
+        @Override
+        protected void mergeTo(BlockSink sink, int blockRows) throws IOException {
+            try {
+                super.mergeTo(sink, blockRows);
+            } finally {
+                closeReaders();
+            }
+        }
+
+        private void closeReaders() {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
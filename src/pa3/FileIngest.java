@@ -0,0 +1,321 @@
+package pa3;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * FileIngest
+ * Fast path for loading a file of integer rows into a DataPackage. The file
+ * is memory-mapped and cut into newline-aligned chunks, and each chunk is
+ * parsed straight from its bytes into key columns on its own thread, so
+ * ordinary rows never become a String.
+ *
+ * Rows parse the same way DataRow did: the line is trimmed and must hold an
+ * int. Rows whose text isn't the canonical form of their key (e.g. "007")
+ * keep their trimmed text as payload. Packages keyed by any other KeySpec
+ * make a String of every line and key it with DataPackage.add.
+ */
+public class FileIngest {
+
+    private static final Logger log = Logger.getLogger(FileIngest.class);
+
+    // chunks smaller than this aren't worth a thread
+    public static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName(DataPackage.TEXT_CHARSET);
+
+    // largest region mapped at once
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * Load every row of the file onto the end of dp using all processors,
+     * keyed by dp's KeySpec
+     */
+    public static void load(DataPackage dp, String fileName) throws IOException {
+        load(dp, fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Load every row of the file onto the end of dp using up to numThreads
+     */
+    public static void load(DataPackage dp, String fileName, int numThreads)
+            throws IOException {
+        long start = System.nanoTime();
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long[] bounds = chunkBounds(channel, size, numThreads);
+            int numChunks = bounds.length - 1;
+            KeySpec keySpec = dp.getKeySpec();
+
+            ArrayList<DataPackage> chunks = new ArrayList<DataPackage>(numChunks);
+            if (numChunks == 1) {
+                chunks.add(parseChunk(channel, bounds[0], bounds[1], keySpec));
+            } else {
+                chunks.addAll(parseInParallel(channel, bounds, numThreads, keySpec));
+            }
+
+            int rowsBefore = dp.getSize();
+            for (DataPackage chunk : chunks) {
+                dp.append(chunk);
+            }
+            int rows = dp.getSize() - rowsBefore;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.info("Loaded " + rows + " rows from " + fileName + " in "
+                    + String.format("%.1f", seconds * 1000) + "ms using "
+                    + numChunks + " chunks ("
+                    + String.format("%.0f", rows / Math.max(seconds, 1e-9))
+                    + " rows/sec)");
+        } finally {
+            file.close();
+        }
+    }
+
+    private static ArrayList<DataPackage> parseInParallel(final FileChannel channel,
+            long[] bounds, int numThreads, final KeySpec keySpec) throws IOException {
+        int numChunks = bounds.length - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(numThreads, numChunks));
+        try {
+            ArrayList<Future<DataPackage>> parsed =
+                    new ArrayList<Future<DataPackage>>(numChunks);
+            for (int c = 0; c < numChunks; c++) {
+                final long from = bounds[c];
+                final long to = bounds[c + 1];
+                parsed.add(pool.submit(new Callable<DataPackage>() {
+                    @Override
+                    public DataPackage call() throws IOException {
+                        return parseChunk(channel, from, to, keySpec);
+                    }
+                }));
+            }
+            ArrayList<DataPackage> chunks = new ArrayList<DataPackage>(numChunks);
+            for (Future<DataPackage> chunk : parsed) {
+                chunks.add(chunk.get());
+            }
+            return chunks;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading file: " + ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                // e.g. NumberFormatException for a row that has no key
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Unable to load file: " + cause, cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Byte offsets where chunks start, plus the file size at the end.
+     * Every chunk starts just after a newline.
+     */
+    private static long[] chunkBounds(FileChannel channel, long size, int numThreads)
+            throws IOException {
+        long wanted = Math.max(1, Math.min(numThreads, size / MIN_CHUNK_BYTES));
+        wanted = Math.max(wanted, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+        int numChunks = (int) wanted;
+
+        long[] bounds = new long[numChunks + 1];
+        bounds[numChunks] = size;
+        ByteBuffer scan = ByteBuffer.allocate(4096);
+        for (int c = 1; c < numChunks; c++) {
+            long pos = Math.max(bounds[c - 1], c * (size / numChunks));
+            bounds[c] = nextLineStart(channel, pos, size, scan);
+        }
+        return bounds;
+    }
+
+    /**
+     * First offset at or after pos that starts a line
+     */
+    private static long nextLineStart(FileChannel channel, long pos, long size,
+            ByteBuffer scan) throws IOException {
+        if (pos == 0) {
+            return 0;
+        }
+        // the line starts at pos if the byte before it is a newline
+        long at = pos - 1;
+        while (at < size) {
+            scan.clear();
+            int read = channel.read(scan, at);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += read;
+        }
+        return size;
+    }
+
+    /**
+     * Parse the rows in bytes [from, to) of the file
+     */
+    private static DataPackage parseChunk(FileChannel channel, long from, long to,
+            KeySpec keySpec) throws IOException {
+        int length = (int) (to - from);
+        if (length == 0) {
+            return new DataPackage(1, keySpec);
+        }
+        return parseBytes(channel.map(FileChannel.MapMode.READ_ONLY, from, length),
+                length, keySpec);
+    }
+
+    /**
+     * Parse the rows in the first length bytes of a mapped region
+     */
+    private static DataPackage parseBytes(MappedByteBuffer bytes, int length,
+            KeySpec keySpec) {
+        // about 3 bytes per row for the test data, grows if needed
+        DataPackage chunk = new DataPackage(Math.max(16, length / 4), keySpec);
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes.get(i) == '\n') {
+                parseLine(bytes, lineStart, i, chunk);
+                lineStart = i + 1;
+            }
+        }
+        // a last line with no newline after it
+        if (lineStart < length) {
+            parseLine(bytes, lineStart, length, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads a file a bounded chunk at a time, for callers that can't hold the
+     * whole file in memory. Each chunk ends on a line boundary.
+     */
+    public static class ChunkReader {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long size;
+        private final KeySpec keySpec;
+        private long position;
+
+        public ChunkReader(String fileName) throws IOException {
+            this(fileName, KeySpec.INT);
+        }
+
+        /**
+         * Reader whose chunks are keyed by keySpec
+         */
+        public ChunkReader(String fileName, KeySpec keySpec) throws IOException {
+            this.keySpec = keySpec;
+            file = new RandomAccessFile(fileName, "r");
+            channel = file.getChannel();
+            size = channel.size();
+            position = 0;
+        }
+
+        /**
+         * Rows of the next chunk of about chunkBytes bytes (more only if a
+         * single line is longer), or null at the end of the file
+         */
+        public DataPackage next(int chunkBytes) throws IOException {
+            while (position < size) {
+                int length = (int) Math.min(chunkBytes, size - position);
+                MappedByteBuffer bytes = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, length);
+                int cut = length;
+                if (position + length < size) {
+                    // stop after the last whole line in the region
+                    while (cut > 0 && bytes.get(cut - 1) != '\n') {
+                        cut--;
+                    }
+                }
+                if (cut == 0) {
+                    // no line ends in this region, try a bigger one
+                    chunkBytes = (int) Math.min(Integer.MAX_VALUE, 2L * chunkBytes);
+                    continue;
+                }
+                position += cut;
+                return parseBytes(bytes, cut, keySpec);
+            }
+            return null;
+        }
+
+        /**
+         * Bytes read so far
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Parse the line in bytes [from, to) and add it to the chunk
+     */
+    private static void parseLine(ByteBuffer bytes, int from, int to, DataPackage chunk) {
+        // trim the same characters String.trim() does
+        while (from < to && (bytes.get(from) & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes.get(to - 1) & 0xff) <= ' ') {
+            to--;
+        }
+
+        if (!chunk.getKeySpec().isPlainInt()) {
+            chunk.add(text(bytes, from, to));
+            return;
+        }
+
+        int p = from;
+        boolean negative = false;
+        if (p < to && bytes.get(p) == '-') {
+            negative = true;
+            p++;
+        }
+        int digits = to - p;
+        // canonical ints of up to 9 digits can't overflow, so parse directly
+        boolean fast = digits >= 1 && digits <= 9
+                && !(bytes.get(p) == '0' && (digits > 1 || negative));
+        int value = 0;
+        for (int i = p; fast && i < to; i++) {
+            int d = bytes.get(i) - '0';
+            if (d < 0 || d > 9) {
+                fast = false;
+            }
+            value = value * 10 + d;
+        }
+        if (fast) {
+            chunk.add(negative ? -value : value, null);
+            return;
+        }
+
+        // anything unusual goes the slow way, and fails the way it used to
+        String line = text(bytes, from, to);
+        chunk.add(Integer.parseInt(line), line);
+    }
+
+    private static String text(ByteBuffer bytes, int from, int to) {
+        byte[] text = new byte[to - from];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = bytes.get(from + i);
+        }
+        return new String(text, UTF8);
+    }
+}
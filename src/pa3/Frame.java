@@ -0,0 +1,142 @@
+package pa3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Frame
+ * One message on a connection: a Protocol header followed by an opaque body.
+ * Requests and their replies share the request id of the header, so several
+ * requests can be in flight on the same connection at once.
+ *
+ * Layout (all big-endian):
+ *   int   frame length (bytes following this field)
+ *   byte  version
+ *   byte  protocol type
+ *   byte  flags (FLAG_RESPONSE, FLAG_ERROR)
+ *   byte  codec the requester wants the reply's DataPackages in
+ *   int   request id
+ *   byte[] body
+ */
+public class Frame {
+
+    public static final byte VERSION = 2;
+
+    static final byte FLAG_RESPONSE = 0x01;
+    static final byte FLAG_ERROR = 0x02;
+
+    // version + type + flags + codec + request id
+    static final int HEADER_BYTES = 1 + 1 + 1 + 1 + 4;
+
+    private static final Protocol.Type[] TYPES = Protocol.Type.values();
+
+    private final Protocol protocol;
+    private final byte flags;
+    private final byte[] body;
+
+    Frame(Protocol protocol, byte flags, byte[] body) {
+        this.protocol = protocol;
+        this.flags = flags;
+        this.body = body;
+    }
+
+    /**
+     * Getter for the protocol header
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Whether this frame is the reply to a request
+     */
+    public boolean isResponse() {
+        return (flags & FLAG_RESPONSE) != 0;
+    }
+
+    /**
+     * Whether this frame reports that its request failed remotely
+     */
+    public boolean isError() {
+        return (flags & FLAG_ERROR) != 0;
+    }
+
+    /**
+     * Getter for the raw body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Stream to read the body from
+     */
+    public DataInputStream bodyStream() {
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Error message carried by an error frame
+     */
+    public String errorMessage() throws IOException {
+        return bodyStream().readUTF();
+    }
+
+    /**
+     * Write one frame. Callers sharing the stream must synchronize on it.
+     */
+    public static void write(DataOutputStream out, Protocol protocol, byte flags,
+            byte[] body, int bodyLength) throws IOException {
+        out.writeInt(HEADER_BYTES + bodyLength);
+        out.writeByte(VERSION);
+        out.writeByte(protocol.getType().ordinal());
+        out.writeByte(flags);
+        out.writeByte(protocol.getCodec().ordinal());
+        out.writeInt(protocol.getRequestId());
+        out.write(body, 0, bodyLength);
+    }
+
+    /**
+     * Read one frame
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_BYTES) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+        int type = in.readByte();
+        if (type < 0 || type >= TYPES.length) {
+            throw new IOException("Unknown protocol type: " + type);
+        }
+        byte flags = in.readByte();
+        DataPackageCodec.Codec codec = DataPackageCodec.codecOf(in.readByte());
+        int requestId = in.readInt();
+        byte[] body = new byte[length - HEADER_BYTES];
+        in.readFully(body);
+        return new Frame(new Protocol(TYPES[type], requestId, codec), flags, body);
+    }
+
+    /**
+     * Stream for building a frame body
+     */
+    public static class BodyWriter extends DataOutputStream {
+
+        public BodyWriter() {
+            super(new ByteArrayOutputStream());
+        }
+
+        /**
+         * The bytes written so far
+         */
+        public byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+}
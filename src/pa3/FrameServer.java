@@ -0,0 +1,465 @@
+package pa3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.log4j.Logger;
+
+/**
+ * FrameServer
+ * Accepting side of every Connection to a Server or Node. One selector
+ * thread accepts, reads and writes all connections without blocking, so the
+ * number of connections doesn't cost a thread each. Frames have the same
+ * layout as Frame.write and may arrive or leave in any number of pieces.
+ *
+ * Each complete request is handed to the component's RequestExecutor and
+ * its reply is queued back onto the connection, tagged with the request id.
+ * Requests that never wait on another component run on a separate
+ * unbounded pool, so they are answered even when every worker is busy;
+ * a connection's STREAMFETCHes run there one at a time, in the order they
+ * arrived. SORTFORPEER sorts a whole package, so it gets its own pool,
+ * bounded like the main one. Otherwise a node whose workers all wait on a
+ * peer's SORTFORPEER could deadlock with a peer doing the same.
+ *
+ * The selector thread reads and writes through two direct buffers that it
+ * reuses for every connection, so no direct memory is allocated per frame.
+ */
+public class FrameServer {
+
+    private static final Logger log = Logger.getLogger(FrameServer.class);
+
+    // size of the reused direct read and write buffers
+    public static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    // frame length field plus the header fields that follow it
+    private static final int PREFIX_BYTES = 4 + Frame.HEADER_BYTES;
+
+    private static final Protocol.Type[] TYPES = Protocol.Type.values();
+
+    // requests that are answered without waiting on another component
+    private static final EnumSet<Protocol.Type> CONTROL_TYPES = EnumSet.of(
+            Protocol.Type.NODEJOIN, Protocol.Type.STATS,
+            Protocol.Type.STREAMBEGIN, Protocol.Type.STREAMFETCH,
+            Protocol.Type.HEARTBEAT, Protocol.Type.NODELEAVE,
+            Protocol.Type.FETCHRESULT, Protocol.Type.CANCELSPLIT);
+
+    // control requests run one at a time per connection, in arrival order
+    private static final EnumSet<Protocol.Type> ORDERED_TYPES = EnumSet.of(
+            Protocol.Type.STREAMFETCH);
+
+    private final RequestHandler handler;
+    private final RequestExecutor executor;
+    private final Metrics metrics;
+    private final ExecutorService controlExecutor;
+    private final RequestExecutor peerExecutor;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+
+    // owned by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
+    // connections with replies queued by worker threads
+    private final ConcurrentLinkedQueue<ChannelState> pendingWrites =
+            new ConcurrentLinkedQueue<ChannelState>();
+
+    /**
+     * Open a server channel on any free port
+     */
+    public FrameServer(RequestHandler handler, RequestExecutor executor)
+            throws IOException {
+        this(handler, executor, new Metrics());
+    }
+
+    /**
+     * Open a server channel on any free port, counting the bytes read and
+     * written in metrics
+     */
+    public FrameServer(RequestHandler handler, RequestExecutor executor,
+            Metrics metrics) throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.metrics = metrics;
+        controlExecutor = Executors.newCachedThreadPool();
+        peerExecutor = new RequestExecutor("PeerRequest", 
+                executor.getMaximumPoolSize());
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(0));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Port the server channel listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Serve connections on the calling thread until the server is closed
+     */
+    public void serve() throws IOException {
+        try {
+            serveUntilClosed();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((ChannelState) key.attachment()).close();
+                }
+            }
+            selector.close();
+            controlExecutor.shutdown();
+            peerExecutor.shutdown();
+        }
+    }
+
+    private void serveUntilClosed() throws IOException {
+        while (true) {
+            selector.select();
+            if (!serverChannel.isOpen()) {
+                return;
+            }
+            flushPendingWrites();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write((ChannelState) key.attachment());
+                    }
+                } catch (IOException ex) {
+                    ChannelState state = (ChannelState) key.attachment();
+                    log.debug("connection to " + state.remote + " lost: " + ex);
+                    state.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop serving, serve returns once the selector thread notices
+     */
+    public void close() throws IOException {
+        serverChannel.close();
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        ChannelState state = new ChannelState(channel);
+        state.key = channel.register(selector, SelectionKey.OP_READ, state);
+        log.debug("accepted connection from " + state.remote);
+    }
+
+    /**
+     * Read whatever has arrived and dispatch every frame it completes
+     */
+    private void read(SelectionKey key) throws IOException {
+        ChannelState state = (ChannelState) key.attachment();
+        readBuffer.clear();
+        int n = state.channel.read(readBuffer);
+        if (n < 0) {
+            log.debug("connection closed by " + state.remote);
+            state.close();
+            return;
+        }
+        metrics.addBytesIn(n);
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            Frame request = state.consume(readBuffer);
+            if (request != null) {
+                dispatch(state, request);
+            }
+        }
+    }
+
+    /**
+     * Hand a request to the right pool
+     */
+    private void dispatch(final ChannelState state, final Frame request) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                handle(state, request);
+            }
+        };
+        Protocol.Type type = request.getProtocol().getType();
+        try {
+            if (ORDERED_TYPES.contains(type)) {
+                if (state.queueOrdered(task)) {
+                    controlExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runOrdered(state);
+                        }
+                    });
+                }
+            } else if (CONTROL_TYPES.contains(type)) {
+                controlExecutor.execute(task);
+            } else if (type == Protocol.Type.SORTFORPEER) {
+                peerExecutor.execute(task);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException ex) {
+            log.error("Unable to queue request " + request.getProtocol() + ": " + ex);
+            reply(state, request.getProtocol(),
+                    (byte) (Frame.FLAG_RESPONSE | Frame.FLAG_ERROR), errorBody(ex));
+        }
+    }
+
+    /**
+     * Run a connection's ordered requests until none are left
+     */
+    private static void runOrdered(ChannelState state) {
+        Runnable task;
+        while ((task = state.nextOrdered()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Dispatch one request and queue its reply, run on a worker thread
+     */
+    private void handle(ChannelState state, Frame request) {
+        Protocol protocol = request.getProtocol();
+        Frame.BodyWriter reply = new Frame.BodyWriter();
+        try {
+            handler.dispatch(protocol, request.bodyStream(), reply);
+        } catch (Exception ex) {
+            log.error("Unable to handle request " + protocol + ": " + ex);
+            reply(state, protocol, (byte) (Frame.FLAG_RESPONSE | Frame.FLAG_ERROR),
+                    errorBody(ex));
+            return;
+        }
+        reply(state, protocol, Frame.FLAG_RESPONSE, reply.toByteArray());
+    }
+
+    /**
+     * Body of an error reply, the exception's description
+     */
+    private static byte[] errorBody(Exception ex) {
+        Frame.BodyWriter body = new Frame.BodyWriter();
+        try {
+            body.writeUTF(String.valueOf(ex));
+        } catch (IOException ioex) {
+            log.error("io exception: " + ioex);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Queue a reply on its connection and wake the selector to send it
+     */
+    private void reply(ChannelState state, Protocol protocol, byte flags, byte[] body) {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_BYTES);
+        prefix.putInt(Frame.HEADER_BYTES + body.length);
+        prefix.put(Frame.VERSION);
+        prefix.put((byte) protocol.getType().ordinal());
+        prefix.put(flags);
+        prefix.put((byte) protocol.getCodec().ordinal());
+        prefix.putInt(protocol.getRequestId());
+        prefix.flip();
+        if (state.enqueue(prefix, ByteBuffer.wrap(body))) {
+            pendingWrites.add(state);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Start sending the replies worker threads have queued
+     */
+    private void flushPendingWrites() {
+        ChannelState state;
+        while ((state = pendingWrites.poll()) != null) {
+            try {
+                write(state);
+            } catch (IOException ex) {
+                log.debug("unable to reply to " + state.remote + ": " + ex);
+                state.close();
+            }
+        }
+    }
+
+    /**
+     * Write queued replies until they are gone or the socket is full,
+     * staging them through the reused direct buffer
+     */
+    private void write(ChannelState state) throws IOException {
+        synchronized (state) {
+            while (!state.writes.isEmpty()) {
+                ByteBuffer next = state.writes.getFirst();
+                writeBuffer.clear();
+                int staged = Math.min(next.remaining(), writeBuffer.remaining());
+                int limit = next.limit();
+                next.limit(next.position() + staged);
+                writeBuffer.put(next);
+                next.limit(limit);
+                writeBuffer.flip();
+                int written = state.channel.write(writeBuffer);
+                metrics.addBytesOut(written);
+                // give back whatever the socket didn't take
+                next.position(next.position() - (staged - written));
+                if (next.hasRemaining()) {
+                    // socket is full, finish when it becomes writable
+                    state.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                state.writes.removeFirst();
+            }
+            state.writeQueued = false;
+            if (state.key.isValid()) {
+                state.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Per-connection read progress and queued replies
+     */
+    private static class ChannelState {
+        final SocketChannel channel;
+        final String remote;
+        SelectionKey key;
+
+        // the frame being read: its length and header, then its body
+        private final ByteBuffer prefix = ByteBuffer.allocate(PREFIX_BYTES);
+        private byte[] body;
+        private int bodyRead;
+
+        // replies waiting to be written, guarded by this
+        final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+        boolean writeQueued;
+
+        // ordered requests waiting their turn, guarded by this
+        private final LinkedList<Runnable> ordered = new LinkedList<Runnable>();
+        private boolean orderedRunning;
+
+        ChannelState(SocketChannel channel) {
+            this.channel = channel;
+            this.remote = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        /**
+         * Take bytes from in towards the current frame, returns the frame
+         * once it is complete
+         */
+        Frame consume(ByteBuffer in) throws IOException {
+            if (body == null) {
+                while (prefix.hasRemaining() && in.hasRemaining()) {
+                    prefix.put(in.get());
+                }
+                if (prefix.hasRemaining()) {
+                    return null;
+                }
+                int length = prefix.getInt(0);
+                if (length < Frame.HEADER_BYTES) {
+                    throw new IOException("Bad frame length: " + length);
+                }
+                byte version = prefix.get(4);
+                if (version != Frame.VERSION) {
+                    throw new IOException("Unsupported frame version: " + version);
+                }
+                body = new byte[length - Frame.HEADER_BYTES];
+                bodyRead = 0;
+            }
+            int n = Math.min(in.remaining(), body.length - bodyRead);
+            in.get(body, bodyRead, n);
+            bodyRead += n;
+            if (bodyRead < body.length) {
+                return null;
+            }
+
+            int type = prefix.get(5);
+            if (type < 0 || type >= TYPES.length) {
+                throw new IOException("Unknown protocol type: " + type);
+            }
+            Frame frame = new Frame(new Protocol(TYPES[type], prefix.getInt(8),
+                    DataPackageCodec.codecOf(prefix.get(7))), prefix.get(6), body);
+            prefix.clear();
+            body = null;
+            return frame;
+        }
+
+        /**
+         * Queue the buffers of one reply, returns true if the selector
+         * needs to be told about the connection
+         */
+        synchronized boolean enqueue(ByteBuffer prefix, ByteBuffer body) {
+            writes.add(prefix);
+            if (body.hasRemaining()) {
+                writes.add(body);
+            }
+            if (writeQueued) {
+                return false;
+            }
+            writeQueued = true;
+            return true;
+        }
+
+        /**
+         * Queue an ordered request, returns true if nothing is running them
+         * and the caller has to start a worker
+         */
+        synchronized boolean queueOrdered(Runnable task) {
+            ordered.add(task);
+            if (orderedRunning) {
+                return false;
+            }
+            orderedRunning = true;
+            return true;
+        }
+
+        /**
+         * Next ordered request to run, or null once there are none left,
+         * in which case the worker running them stops
+         */
+        synchronized Runnable nextOrdered() {
+            Runnable next = ordered.poll();
+            if (next == null) {
+                orderedRunning = false;
+            }
+            return next;
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.debug("error closing channel: " + ex);
+            }
+        }
+    }
+}
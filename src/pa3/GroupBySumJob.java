@@ -0,0 +1,58 @@
+package pa3;
+
+import java.util.List;
+
+/**
+ * GroupBySumJob
+ * Built-in job "groupbysum:key,value": the sum of the value column of the
+ * comma separated rows for each value of the key column (columns count
+ * from 1, "1,2" unless given). Sums stay whole numbers as long as every
+ * value is one. Outputs "key<tab>sum" in key order.
+ */
+public class GroupBySumJob implements Mapper, Combiner, Reducer {
+
+    private final int keyColumn;
+    private final int valueColumn;
+
+    public GroupBySumJob(String args) {
+        int[] columns = JobSpec.intArgs(args, 1, 2);
+        keyColumn = columns[0];
+        valueColumn = columns[1];
+        if (keyColumn < 1 || valueColumn < 1) {
+            throw new IllegalArgumentException("Bad groupbysum columns: " + args);
+        }
+    }
+
+    @Override
+    public void map(String row, Emitter out) {
+        String value = KeySpec.column(row, valueColumn, KeySpec.DEFAULT_DELIMITER);
+        // checked here so a bad row fails the map rather than the reduce
+        Double.parseDouble(value);
+        out.emit(KeySpec.column(row, keyColumn, KeySpec.DEFAULT_DELIMITER), value);
+    }
+
+    @Override
+    public String combine(String key, String a, String b) {
+        return add(a, b);
+    }
+
+    @Override
+    public void reduce(String key, List<String> values, Emitter out) {
+        String sum = values.get(0);
+        for (int i = 1; i < values.size(); i++) {
+            sum = add(sum, values.get(i));
+        }
+        out.emit(key, sum);
+    }
+
+    /**
+     * Sum of two numbers, as a long if both are whole
+     */
+    static String add(String a, String b) {
+        try {
+            return Long.toString(Long.parseLong(a) + Long.parseLong(b));
+        } catch (NumberFormatException ex) {
+            return Double.toString(Double.parseDouble(a) + Double.parseDouble(b));
+        }
+    }
+}
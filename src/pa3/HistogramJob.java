@@ -0,0 +1,53 @@
+package pa3;
+
+import java.util.List;
+
+/**
+ * HistogramJob
+ * Built-in job "histogram:column,width": how many rows fall in each bucket
+ * of the numbers in a column of the comma separated rows, bucket b being
+ * [b, b + width). Column 0, the default, is the whole row, and the width
+ * is 1 unless given. Outputs "bucket<tab>count" in bucket order.
+ */
+public class HistogramJob implements Mapper, Combiner, Reducer, OrderedOutput {
+
+    private final int column;
+    private final double width;
+
+    public HistogramJob(String args) {
+        int comma = args.indexOf(',');
+        column = JobSpec.intArgs((comma < 0) ? args : args.substring(0, comma), 0)[0];
+        width = (comma < 0) ? 1.0 : Double.parseDouble(args.substring(comma + 1));
+        if (column < 0 || !(width > 0)) {
+            throw new IllegalArgumentException("Bad histogram arguments: " + args);
+        }
+    }
+
+    @Override
+    public void map(String row, Emitter out) {
+        double value = Double.parseDouble(
+                KeySpec.column(row, column, KeySpec.DEFAULT_DELIMITER));
+        double bucket = Math.floor(value / width) * width;
+        out.emit((bucket == (long) bucket) ? Long.toString((long) bucket)
+                : Double.toString(bucket), "1");
+    }
+
+    @Override
+    public String combine(String key, String a, String b) {
+        return Long.toString(Long.parseLong(a) + Long.parseLong(b));
+    }
+
+    @Override
+    public void reduce(String key, List<String> values, Emitter out) {
+        long count = 0;
+        for (String value : values) {
+            count += Long.parseLong(value);
+        }
+        out.emit(key, Long.toString(count));
+    }
+
+    @Override
+    public KeySpec.Type getOutputKeyType() {
+        return KeySpec.Type.DOUBLE;
+    }
+}
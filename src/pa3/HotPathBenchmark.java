@@ -0,0 +1,562 @@
+package pa3;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HotPathBenchmark
+ * Times the paths every job goes through - sorting a split (what
+ * Node.sortRows does) and merging sorted partitions (Node.reduce), with int
+ * and with string keys, selecting a split's first rows (Node.selectRows),
+ * cutting a job into partitions (Server.getPartition and
+ * RangePartitioner), the wire codec and object serialization, and reading
+ * and writing row files - over generated inputs of several sizes and key
+ * distributions. Each case gets untimed warmup runs for the JIT, then
+ * timed runs, and the results are written as JSON so runs on two commits
+ * can be compared with -compare.
+ *
+ * Usage: HotPathBenchmark [-sizes 1000,10000,...] [-distributions random,...]
+ *            [-benchmarks sort,merge,...] [-warmup n] [-iterations n]
+ *            [-label name] [-out results.json]
+ *        HotPathBenchmark -compare base.json new.json
+ */
+public class HotPathBenchmark {
+
+    public static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000, 10000000};
+
+    /**
+     * Key distributions of the generated inputs. DUPLICATES draws from
+     * only DISTINCT_KEYS values.
+     */
+    public static enum Distribution {RANDOM, SORTED, REVERSE, DUPLICATES};
+
+    private static final int DISTINCT_KEYS = 100;
+
+    // partitions a job is cut into for the merge and partition cases
+    private static final int PARTITIONS = 8;
+    // rows kept by the selection case
+    private static final int SELECT_ROWS = 1000;
+
+    private static final long SEED = 42;
+
+    // sums something from every result so the JIT can't drop the work
+    private static long sink;
+
+    /**
+     * One timed path. prepare is untimed and runs before every run, for
+     * cases (like sort) that use up their input.
+     */
+    private static abstract class Case {
+        final String name;
+
+        Case(String name) {
+            this.name = name;
+        }
+
+        void setUp(DataPackage input) throws Exception {
+        }
+
+        void prepare() throws Exception {
+        }
+
+        abstract long run() throws Exception;
+
+        void tearDown() {
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length == 3 && args[0].equals("-compare")) {
+            compare(args[1], args[2]);
+            return;
+        }
+        int[] sizes = DEFAULT_SIZES;
+        List<Distribution> distributions = Arrays.asList(Distribution.values());
+        List<String> only = null;
+        int warmup = 3;
+        int iterations = 5;
+        String label = "";
+        String outFileName = "benchmark-results.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("-sizes")) {
+                String[] parts = value.split(",");
+                sizes = new int[parts.length];
+                for (int p = 0; p < parts.length; p++) {
+                    sizes[p] = Integer.parseInt(parts[p].trim());
+                }
+            } else if (args[i].equals("-distributions")) {
+                distributions = new ArrayList<Distribution>();
+                for (String d : value.split(",")) {
+                    distributions.add(Distribution.valueOf(d.trim().toUpperCase()));
+                }
+            } else if (args[i].equals("-benchmarks")) {
+                only = Arrays.asList(value.split(","));
+            } else if (args[i].equals("-warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (args[i].equals("-iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if (args[i].equals("-label")) {
+                label = value;
+            } else if (args[i].equals("-out")) {
+                outFileName = value;
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        List<String> results = new ArrayList<String>();
+        System.out.println(String.format("%-22s %-10s %-9s %-11s %-11s %-11s %s",
+                "benchmark", "keys", "rows", "mean(ms)", "min(ms)", "stdev(ms)",
+                "rows/s"));
+        for (int rows : sizes) {
+            for (Distribution distribution : distributions) {
+                DataPackage input = generate(rows, distribution);
+                for (Case c : cases()) {
+                    if (only != null && !matches(only, c.name)) {
+                        continue;
+                    }
+                    results.add(measure(c, input, distribution, warmup, iterations));
+                }
+            }
+        }
+
+        PrintWriter out = new PrintWriter(new FileWriter(outFileName));
+        out.println("{");
+        out.println("  \"label\": \"" + label + "\",");
+        out.println("  \"timestamp\": " + System.currentTimeMillis() + ",");
+        out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+        out.println("  \"processors\": "
+                + Runtime.getRuntime().availableProcessors() + ",");
+        out.println("  \"warmup\": " + warmup + ",");
+        out.println("  \"iterations\": " + iterations + ",");
+        out.println("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            out.println("    " + results.get(i)
+                    + ((i < results.size() - 1) ? "," : ""));
+        }
+        out.println("  ]");
+        out.println("}");
+        out.close();
+        System.out.println("Results written to " + outFileName
+                + " (checksum " + sink + ")");
+    }
+
+    /**
+     * Whether a case is picked by the -benchmarks list, which may name a
+     * whole group such as "codec"
+     */
+    private static boolean matches(List<String> only, String name) {
+        for (String o : only) {
+            o = o.trim();
+            if (name.equals(o) || name.startsWith(o + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Time a case over the input and return its JSON result line
+     */
+    private static String measure(Case c, DataPackage input,
+            Distribution distribution, int warmup, int iterations)
+            throws Exception {
+        c.setUp(input);
+        for (int i = 0; i < warmup; i++) {
+            c.prepare();
+            sink += c.run();
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            c.prepare();
+            long start = System.nanoTime();
+            sink += c.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        c.tearDown();
+
+        double mean = 0;
+        long min = Long.MAX_VALUE;
+        for (long n : nanos) {
+            mean += n;
+            min = Math.min(min, n);
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (long n : nanos) {
+            variance += (n - mean) * (n - mean);
+        }
+        double stdev = (iterations > 1) ? Math.sqrt(variance / (iterations - 1)) : 0;
+        int rows = input.getSize();
+        double rowsPerSecond = rows * 1e9 / mean;
+
+        System.out.println(String.format("%-22s %-10s %-9d %-11.3f %-11.3f %-11.3f %.0f",
+                c.name, distribution.name().toLowerCase(), rows, mean / 1e6,
+                min / 1e6, stdev / 1e6, rowsPerSecond));
+        return String.format("{\"benchmark\": \"%s\", \"distribution\": \"%s\", "
+                + "\"rows\": %d, \"meanMillis\": %.4f, \"minMillis\": %.4f, "
+                + "\"stdevMillis\": %.4f, \"rowsPerSecond\": %.1f}",
+                c.name, distribution.name().toLowerCase(), rows, mean / 1e6,
+                min / 1e6, stdev / 1e6, rowsPerSecond);
+    }
+
+    /**
+     * A package of rows keys in the given distribution
+     */
+    static DataPackage generate(int rows, Distribution distribution) {
+        Random random = new Random(SEED);
+        DataPackage dp = new DataPackage(rows);
+        for (int i = 0; i < rows; i++) {
+            int key;
+            switch (distribution) {
+                case SORTED:
+                    key = i;
+                    break;
+                case REVERSE:
+                    key = rows - i;
+                    break;
+                case DUPLICATES:
+                    key = random.nextInt(DISTINCT_KEYS);
+                    break;
+                default:
+                    key = random.nextInt();
+            }
+            dp.add(key, null);
+        }
+        return dp;
+    }
+
+    /**
+     * The input cut into PARTITIONS pieces by position, each sorted
+     */
+    private static ArrayList<DataPackage> sortedPartitions(DataPackage dp) {
+        ArrayList<DataPackage> partitions = new ArrayList<DataPackage>(PARTITIONS);
+        int[] bounds = evenBounds(dp.getSize());
+        for (int p = 0; p < PARTITIONS; p++) {
+            DataPackage partition = dp.slice(bounds[p], bounds[p + 1]);
+            partition.sort();
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    private static int[] evenBounds(int rows) {
+        double[] shares = new double[PARTITIONS];
+        Arrays.fill(shares, 1.0 / PARTITIONS);
+        return PartitionSizer.bounds(shares, rows);
+    }
+
+    /**
+     * Every benchmarked path
+     */
+    private static List<Case> cases() {
+        List<Case> cases = new ArrayList<Case>();
+
+        cases.add(new Case("sort") {
+            DataPackage input, copy;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            void prepare() {
+                copy = input.slice(0, input.getSize());
+            }
+
+            long run() {
+                copy.sort();
+                return copy.getKey(0);
+            }
+        });
+
+        cases.add(new Case("merge") {
+            ArrayList<DataPackage> partitions;
+
+            void setUp(DataPackage input) {
+                partitions = sortedPartitions(input);
+            }
+
+            long run() {
+                return PartitionMerger.merge(partitions).getSize();
+            }
+        });
+
+        // the same rows keyed as strings that share their first bytes, so
+        // comparisons go past the normalized key to the text
+        cases.add(new Case("sort.string") {
+            DataPackage input, copy;
+
+            void setUp(DataPackage input) {
+                this.input = stringKeyed(input);
+            }
+
+            void prepare() {
+                copy = input.slice(0, input.getSize());
+            }
+
+            long run() {
+                copy.sort();
+                return copy.getKey(0);
+            }
+        });
+
+        cases.add(new Case("merge.string") {
+            ArrayList<DataPackage> partitions;
+
+            void setUp(DataPackage input) {
+                partitions = sortedPartitions(stringKeyed(input));
+            }
+
+            long run() {
+                return PartitionMerger.merge(partitions).getSize();
+            }
+        });
+
+        // what a node does for a first:1000 job instead of sorting its rows
+        cases.add(new Case("select.first1000") {
+            DataPackage input;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            long run() {
+                return input.select(SELECT_ROWS, false).getSize();
+            }
+        });
+
+        cases.add(new Case("partition.position") {
+            DataPackage input;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            long run() {
+                int[] bounds = evenBounds(input.getSize());
+                long rows = 0;
+                for (int p = 0; p < PARTITIONS; p++) {
+                    rows += input.slice(bounds[p], bounds[p + 1]).getSize();
+                }
+                return rows;
+            }
+        });
+
+        cases.add(new Case("partition.range") {
+            DataPackage input;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            long run() {
+                RangePartitioner partitioner = RangePartitioner.fromSample(
+                        input, PARTITIONS, new Random(SEED));
+                return partitioner.partition(input).size();
+            }
+        });
+
+        cases.add(new Case("codec.encode") {
+            DataPackage input;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            long run() throws IOException {
+                return DataPackageCodec.encode(input).length;
+            }
+        });
+
+        cases.add(new Case("codec.decode") {
+            byte[] bytes;
+
+            void setUp(DataPackage input) throws IOException {
+                bytes = DataPackageCodec.encode(input);
+            }
+
+            long run() throws IOException {
+                return DataPackageCodec.decode(bytes).getSize();
+            }
+        });
+
+        // the compressing codecs on the input once sorted, as the nodes
+        // send their splits back
+        for (final DataPackageCodec.Codec codec : new DataPackageCodec.Codec[] {
+                DataPackageCodec.Codec.DELTA, DataPackageCodec.Codec.DEFLATE}) {
+            String name = "codec." + codec.name().toLowerCase();
+            cases.add(new Case(name + ".encode") {
+                DataPackage sorted;
+
+                void setUp(DataPackage input) {
+                    sorted = sortedCopy(input);
+                }
+
+                long run() throws IOException {
+                    return DataPackageCodec.encode(sorted, codec, null).length;
+                }
+            });
+
+            cases.add(new Case(name + ".decode") {
+                byte[] bytes;
+
+                void setUp(DataPackage input) throws IOException {
+                    bytes = DataPackageCodec.encode(sortedCopy(input), codec, null);
+                }
+
+                long run() throws IOException {
+                    return DataPackageCodec.decode(bytes).getSize();
+                }
+            });
+        }
+
+        cases.add(new Case("serialization.encode") {
+            DataPackage input;
+
+            void setUp(DataPackage input) {
+                this.input = input;
+            }
+
+            long run() throws IOException {
+                return serialize(input).length;
+            }
+        });
+
+        cases.add(new Case("serialization.decode") {
+            byte[] bytes;
+
+            void setUp(DataPackage input) throws IOException {
+                bytes = serialize(input);
+            }
+
+            long run() throws Exception {
+                ObjectInputStream ois =
+                        new ObjectInputStream(new ByteArrayInputStream(bytes));
+                return ((DataPackage) ois.readObject()).getSize();
+            }
+        });
+
+        cases.add(new Case("file.write") {
+            DataPackage input;
+            File file;
+
+            void setUp(DataPackage input) throws IOException {
+                this.input = input;
+                file = File.createTempFile("benchmark", ".txt");
+            }
+
+            long run() {
+                input.writeToFile(file.getPath());
+                return file.length();
+            }
+
+            void tearDown() {
+                file.delete();
+            }
+        });
+
+        cases.add(new Case("file.read") {
+            File file;
+
+            void setUp(DataPackage input) throws IOException {
+                file = File.createTempFile("benchmark", ".txt");
+                input.writeToFile(file.getPath());
+            }
+
+            long run() {
+                DataPackage dp = new DataPackage();
+                dp.addFromFile(file.getPath());
+                return dp.getSize();
+            }
+
+            void tearDown() {
+                file.delete();
+            }
+        });
+
+        return cases;
+    }
+
+    private static byte[] serialize(DataPackage dp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(dp);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    private static DataPackage stringKeyed(DataPackage dp) {
+        DataPackage keyed = new DataPackage(dp.getSize(), KeySpec.parse("string"));
+        for (int i = 0; i < dp.getSize(); i++) {
+            keyed.add("row-" + dp.getText(i));
+        }
+        return keyed;
+    }
+
+    private static DataPackage sortedCopy(DataPackage dp) {
+        DataPackage sorted = dp.slice(0, dp.getSize());
+        sorted.sort();
+        sorted.sorted(true);
+        return sorted;
+    }
+
+    private static final Pattern RESULT = Pattern.compile(
+            "\"benchmark\": \"([^\"]*)\", \"distribution\": \"([^\"]*)\", "
+            + "\"rows\": (\\d+), \"meanMillis\": ([0-9.]+)");
+
+    /**
+     * Print the change in mean time of every case found in both result files
+     */
+    private static void compare(String baseFileName, String newFileName)
+            throws IOException {
+        LinkedHashMap<String, Double> base = readMeans(baseFileName);
+        LinkedHashMap<String, Double> now = readMeans(newFileName);
+        System.out.println(String.format("%-44s %-11s %-11s %s",
+                "benchmark/keys/rows", "base(ms)", "new(ms)", "change"));
+        for (String key : base.keySet()) {
+            Double after = now.get(key);
+            if (after == null) {
+                continue;
+            }
+            double before = base.get(key);
+            System.out.println(String.format("%-44s %-11.3f %-11.3f %+.1f%%",
+                    key, before, after, (after - before) * 100 / before));
+        }
+    }
+
+    /**
+     * Mean millis of each case in a result file, by benchmark/keys/rows
+     */
+    private static LinkedHashMap<String, Double> readMeans(String fileName)
+            throws IOException {
+        LinkedHashMap<String, Double> means = new LinkedHashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher m = RESULT.matcher(line);
+            if (m.find()) {
+                means.put(m.group(1) + "/" + m.group(2) + "/" + m.group(3),
+                        Double.valueOf(m.group(4)));
+            }
+        }
+        reader.close();
+        return means;
+    }
+}
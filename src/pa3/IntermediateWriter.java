@@ -0,0 +1,162 @@
+package pa3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * IntermediateWriter
+ * Persists each sorted partition a node produces to its own intermediate
+ * file, as a DataPackageCodec frame written through a FileChannel.
+ *
+ * In ASYNC mode the write happens on a background thread after the sort
+ * has replied, so it costs the request nothing; if the writer falls
+ * MAX_PENDING writes behind, the sorting thread writes its own file. SYNC
+ * mode writes and forces the file to disk before the sort replies. OFF
+ * writes nothing.
+ */
+public class IntermediateWriter {
+
+    private static final Logger log = Logger.getLogger(IntermediateWriter.class);
+
+    public static enum Mode {OFF, ASYNC, SYNC};
+
+    // writes that can wait for the background writer
+    public static final int MAX_PENDING = 4;
+
+    // most recent intermediate files kept, older ones are deleted
+    public static final int FILES_KEPT = 8;
+
+    private final Mode mode;
+    private final File directory;
+    private final String prefix;
+    private final DataPackageCodec.Codec codec;
+    private final NodeStats stats;
+    private final ThreadPoolExecutor writer;
+    private final AtomicLong taskNumber = new AtomicLong();
+    private final LinkedList<File> written = new LinkedList<File>();
+
+    /**
+     * Constructor
+     * @param mode when files are written
+     * @param directory where the files go
+     * @param prefix file name prefix, the task number is appended to it
+     * @param codec how the files are encoded
+     * @param stats where write times are recorded
+     */
+    public IntermediateWriter(Mode mode, File directory, String prefix,
+            DataPackageCodec.Codec codec, NodeStats stats) {
+        this.mode = mode;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.codec = codec;
+        this.stats = stats;
+        if (mode == Mode.ASYNC) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_PENDING),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "IntermediateWriter");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            writer = null;
+        }
+    }
+
+    /**
+     * Persist a sorted package according to the mode. It must not change
+     * afterwards, since an async write may still be reading it.
+     */
+    public void persist(final DataPackage sorted) {
+        if (mode == Mode.OFF) {
+            return;
+        }
+        final File file = new File(directory,
+                prefix + "." + taskNumber.incrementAndGet());
+        if (mode == Mode.SYNC) {
+            write(sorted, file, false);
+            return;
+        }
+        final Thread requester = Thread.currentThread();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the requester only runs it itself when the writer is behind
+                write(sorted, file, Thread.currentThread() != requester);
+            }
+        });
+    }
+
+    /**
+     * Write one file and record how long it took
+     */
+    private void write(DataPackage sorted, File file, boolean offResponsePath) {
+        long start = System.nanoTime();
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                FileChannel channel = fos.getChannel();
+                ByteBuffer frame = ByteBuffer.wrap(
+                        DataPackageCodec.encode(sorted, codec, stats.metrics));
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+                if (mode == Mode.SYNC) {
+                    channel.force(true);
+                }
+            } finally {
+                fos.close();
+            }
+        } catch (IOException ex) {
+            log.error("Unable to write intermediate file " + file + ": " + ex);
+            return;
+        }
+        stats.metrics.record(Metrics.Phase.INTERMEDIATE_WRITE, start);
+        long millis = (System.nanoTime() - start) / 1000000;
+        stats.numberOfIntermediateWrites.incrementAndGet();
+        stats.intermediateWriteMillis.addAndGet(millis);
+        if (offResponsePath) {
+            stats.intermediateMillisSaved.addAndGet(millis);
+        }
+        log.debug("wrote " + sorted.getSize() + " rows to " + file + " in "
+                + millis + "ms");
+        retain(file);
+    }
+
+    /**
+     * Remember a written file, deleting the oldest beyond FILES_KEPT
+     */
+    private void retain(File file) {
+        File oldest = null;
+        synchronized (written) {
+            written.add(file);
+            if (written.size() > FILES_KEPT) {
+                oldest = written.removeFirst();
+            }
+        }
+        if (oldest != null && !oldest.delete()) {
+            log.warn("Unable to delete intermediate file " + oldest);
+        }
+    }
+
+    /**
+     * Getter for the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,141 @@
+package pa3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JobRunner
+ * Runs the map and reduce tasks of a job (other than sort) on a node.
+ *
+ * Pairs travel as DataPackage rows "key<tab>value" keyed by the key, so
+ * they go through the same codecs as rows being sorted. A map task hash
+ * partitions its pairs by key into one package per reduce task, folding
+ * the values of each key with the job's Combiner (when it has one) in a
+ * table of up to COMBINE_KEYS keys, which is flushed to the packages
+ * whenever it fills. A reduce task groups the pairs of its packages by
+ * key, reduces each key and sorts its output by key, so the server only
+ * has to merge the outputs of the reduce tasks.
+ */
+public class JobRunner {
+
+    public static final char PAIR_DELIMITER = '\t';
+
+    // most keys a map task folds in memory before flushing them
+    public static final int COMBINE_KEYS = 64 * 1024;
+
+    // how pairs are keyed between the map and reduce tasks
+    static final KeySpec SHUFFLE_KEY_SPEC = new KeySpec(
+            new KeySpec.Type[] {KeySpec.Type.STRING}, new int[] {1}, PAIR_DELIMITER);
+
+    /**
+     * Map a split, returns its pairs in numReducers packages, package r
+     * having the keys whose hash is r modulo numReducers
+     */
+    public static ArrayList<DataPackage> map(Object job, DataPackage split,
+            int numReducers) {
+        Mapper mapper = (Mapper) job;
+        final Combiner combiner = (job instanceof Combiner) ? (Combiner) job : null;
+        final ArrayList<DataPackage> partitions =
+                new ArrayList<DataPackage>(numReducers);
+        for (int r = 0; r < numReducers; r++) {
+            partitions.add(new DataPackage(
+                    split.getSize() / numReducers + 1, SHUFFLE_KEY_SPEC));
+        }
+        final HashMap<String, String> combined = new HashMap<String, String>();
+        Emitter out = new Emitter() {
+            @Override
+            public void emit(String key, String value) {
+                checkPair(key, value);
+                if (combiner == null) {
+                    addPair(partitions, key, value);
+                    return;
+                }
+                String previous = combined.get(key);
+                combined.put(key, (previous == null) ? value
+                        : combiner.combine(key, previous, value));
+                if (combined.size() >= COMBINE_KEYS) {
+                    flush(combined, partitions);
+                }
+            }
+        };
+        for (int i = 0; i < split.getSize(); i++) {
+            mapper.map(split.getText(i), out);
+        }
+        flush(combined, partitions);
+        return partitions;
+    }
+
+    /**
+     * Reduce the pairs of one partition from every map task, returns the
+     * output pairs sorted by key
+     */
+    public static DataPackage reduce(Object job, List<DataPackage> partitions) {
+        Reducer reducer = (Reducer) job;
+        HashMap<String, List<String>> groups = new HashMap<String, List<String>>();
+        for (DataPackage dp : partitions) {
+            for (int i = 0; i < dp.getSize(); i++) {
+                String pair = dp.getText(i);
+                int tab = pair.indexOf(PAIR_DELIMITER);
+                String key = pair.substring(0, tab);
+                List<String> values = groups.get(key);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    groups.put(key, values);
+                }
+                values.add(pair.substring(tab + 1));
+            }
+        }
+        final DataPackage output = new DataPackage(groups.size(), outputKeySpec(job));
+        Emitter out = new Emitter() {
+            @Override
+            public void emit(String key, String value) {
+                checkPair(key, value);
+                String pair = key + PAIR_DELIMITER + value;
+                output.add(output.getKeySpec().normalize(pair), pair);
+            }
+        };
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            reducer.reduce(group.getKey(), group.getValue(), out);
+        }
+        output.sort();
+        output.sorted(true);
+        return output;
+    }
+
+    /**
+     * How a job's output pairs are ordered: by key, as a string unless the
+     * job says otherwise
+     */
+    static KeySpec outputKeySpec(Object job) {
+        if (!(job instanceof OrderedOutput)) {
+            return SHUFFLE_KEY_SPEC;
+        }
+        return new KeySpec(new KeySpec.Type[] {
+                ((OrderedOutput) job).getOutputKeyType()}, new int[] {1},
+                PAIR_DELIMITER);
+    }
+
+    private static void flush(HashMap<String, String> combined,
+            ArrayList<DataPackage> partitions) {
+        for (Map.Entry<String, String> pair : combined.entrySet()) {
+            addPair(partitions, pair.getKey(), pair.getValue());
+        }
+        combined.clear();
+    }
+
+    private static void addPair(ArrayList<DataPackage> partitions, String key,
+            String value) {
+        DataPackage partition = partitions.get(
+                (key.hashCode() & Integer.MAX_VALUE) % partitions.size());
+        partition.add(KeySpec.stringPrefix(key), key + PAIR_DELIMITER + value);
+    }
+
+    private static void checkPair(String key, String value) {
+        if (key.indexOf(PAIR_DELIMITER) >= 0 || key.indexOf('\n') >= 0
+                || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Pair can't be a row: " + key);
+        }
+    }
+}
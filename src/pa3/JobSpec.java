@@ -0,0 +1,222 @@
+package pa3;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JobSpec
+ * Which job to run over an input file, as its text form "name" or
+ * "name:args". The name is a built-in job or the class name of a job,
+ * which implements Mapper and Reducer (and maybe Combiner and
+ * OrderedOutput) and has a public constructor taking the args as one
+ * String, or a public no-argument one if it takes none.
+ *
+ * Built-in jobs:
+ * sort[:keySpec]            the rows in order of a KeySpec
+ * first:k[:keySpec]         the k smallest rows, in order
+ * last:k[:keySpec]          the k largest rows, in order
+ * rows:n..m[:keySpec]       rows n to m - 1 of the sorted order, from 0
+ * wordcount                 times each word appears
+ * groupbysum[:key,value]    sum of column value for each value of column key
+ * histogram[:column,width]  rows per bucket of column, width wide
+ *
+ * Nodes load job classes from their own classpath, or from a codebase set
+ * in node.properties.
+ */
+public class JobSpec {
+
+    public static final String SORT = "sort";
+    public static final String FIRST = "first";
+    public static final String LAST = "last";
+    public static final String ROWS = "rows";
+
+    private static final Map<String, String> BUILT_IN = new HashMap<String, String>();
+    static {
+        BUILT_IN.put("wordcount", WordCountJob.class.getName());
+        BUILT_IN.put("groupbysum", GroupBySumJob.class.getName());
+        BUILT_IN.put("histogram", HistogramJob.class.getName());
+    }
+
+    private final String name;
+    private final String args;
+
+    public JobSpec(String name, String args) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("A job needs a name");
+        }
+        this.name = name;
+        this.args = args;
+    }
+
+    /**
+     * Spec from its text form, e.g. "wordcount" or "histogram:2,10"
+     */
+    public static JobSpec parse(String text) {
+        int colon = text.indexOf(':');
+        if (colon < 0) {
+            return new JobSpec(text.trim(), "");
+        }
+        return new JobSpec(text.substring(0, colon).trim(),
+                text.substring(colon + 1).trim());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getArgs() {
+        return args;
+    }
+
+    /**
+     * Whether this is the sort job, which runs on the sort pipeline rather
+     * than as a Mapper and Reducer
+     */
+    public boolean isSort() {
+        return name.equalsIgnoreCase(SORT);
+    }
+
+    /**
+     * Whether this job selects a range of the sorted order (first, last or
+     * rows), which runs on the nodes without sorting every row
+     */
+    public boolean isSelection() {
+        return name.equalsIgnoreCase(FIRST) || name.equalsIgnoreCase(LAST)
+                || name.equalsIgnoreCase(ROWS);
+    }
+
+    /**
+     * KeySpec of the sort job or a selection, the whole row as an int
+     * unless given
+     */
+    public KeySpec getSortKeySpec() {
+        String keySpec = args;
+        if (isSelection()) {
+            int colon = args.indexOf(':');
+            keySpec = (colon < 0) ? "" : args.substring(colon + 1);
+        }
+        return keySpec.isEmpty() ? KeySpec.INT : KeySpec.parse(keySpec);
+    }
+
+    /**
+     * Rows [from, to) of the sorted order that a selection wants, out of
+     * numRows
+     * @throws IllegalArgumentException if the range isn't valid
+     */
+    public int[] getSelection(int numRows) {
+        int colon = args.indexOf(':');
+        String range = (colon < 0) ? args : args.substring(0, colon);
+        long from;
+        long to;
+        try {
+            if (name.equalsIgnoreCase(ROWS)) {
+                int dots = range.indexOf("..");
+                if (dots < 0) {
+                    throw new IllegalArgumentException("Expected rows:n..m, got " 
+                            + this);
+                }
+                from = Long.parseLong(range.substring(0, dots).trim());
+                to = Long.parseLong(range.substring(dots + 2).trim());
+            } else {
+                long k = Long.parseLong(range.trim());
+                from = name.equalsIgnoreCase(LAST) ? numRows - k : 0;
+                to = name.equalsIgnoreCase(LAST) ? numRows : k;
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad range in " + this);
+        }
+        if (from < 0 && !name.equalsIgnoreCase(LAST) || to < from) {
+            throw new IllegalArgumentException("Bad range in " + this);
+        }
+        from = Math.max(0, Math.min(from, numRows));
+        to = Math.max(from, Math.min(to, numRows));
+        return new int[] {(int) from, (int) to};
+    }
+
+    /**
+     * A new instance of the job's class, loaded through loader
+     * @throws IllegalArgumentException if it can't be loaded or made, or
+     * isn't a Mapper and Reducer
+     */
+    public Object newJob(ClassLoader loader) {
+        String className = BUILT_IN.get(name.toLowerCase());
+        if (className == null) {
+            className = name;
+        }
+        try {
+            Class<?> jobClass = Class.forName(className, true, loader);
+            if (!Mapper.class.isAssignableFrom(jobClass) 
+                    || !Reducer.class.isAssignableFrom(jobClass)) {
+                throw new IllegalArgumentException(className 
+                        + " is not a Mapper and Reducer");
+            }
+            Constructor<?> withArgs = publicConstructor(jobClass, String.class);
+            if (withArgs != null) {
+                return withArgs.newInstance(args);
+            }
+            if (!args.isEmpty()) {
+                throw new IllegalArgumentException(className 
+                        + " takes no arguments");
+            }
+            Constructor<?> noArgs = publicConstructor(jobClass);
+            if (noArgs == null) {
+                throw new IllegalArgumentException(className 
+                        + " has no public constructor");
+            }
+            return noArgs.newInstance();
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Unknown job: " + name);
+        } catch (InvocationTargetException ex) {
+            // the job's own constructor threw, most likely over its arguments
+            throw new IllegalArgumentException("Bad arguments for job " + this 
+                    + ": " + ex.getCause());
+        } catch (InstantiationException ex) {
+            throw new IllegalArgumentException("Unable to make job " + this 
+                    + ": " + ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("Unable to make job " + this 
+                    + ": " + ex);
+        }
+    }
+
+    /**
+     * A public constructor of jobClass taking these parameters, or null
+     */
+    private static Constructor<?> publicConstructor(Class<?> jobClass, 
+            Class<?>... parameterTypes) {
+        try {
+            return jobClass.getConstructor(parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Comma separated ints of a job's arguments, with defaults for those
+     * not given
+     */
+    static int[] intArgs(String args, int... defaults) {
+        int[] values = defaults.clone();
+        if (args.isEmpty()) {
+            return values;
+        }
+        String[] parts = args.split(",");
+        if (parts.length > values.length) {
+            throw new IllegalArgumentException("Too many arguments: " + args);
+        }
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * The text form that parse reads back
+     */
+    @Override
+    public String toString() {
+        return args.isEmpty() ? name : name + ":" + args;
+    }
+}
@@ -0,0 +1,341 @@
+package pa3;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * KeySpec
+ * How the sort key of a row is taken from its text, chosen per job. A key
+ * is one or more fields, each a column of the row (or the whole row) read
+ * as an int, long, double or string. Rows are ordered by the first field,
+ * then by the next, and so on.
+ *
+ * Every row also gets a normalized key: a long whose signed order is the
+ * order of the first field (for a string, its first 8 UTF-8 bytes). Sorts
+ * and merges compare the normalized keys, and only go back to the rows'
+ * text when two are equal and the key isn't exact, i.e. when it is a
+ * string or has more than one field.
+ *
+ * As text, a spec is its fields separated by commas, each a type that may
+ * be followed by ':' and a column (counting from 1), then optionally '|'
+ * and the column delimiter (',' unless given, "tab" for a tab), e.g.
+ * "string:2,long:1|;".
+ * Column 0, the default, is the whole row.
+ */
+public class KeySpec implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static enum Type {INT, LONG, DOUBLE, STRING};
+
+    /**
+     * The whole row as an int, which is how rows have always been sorted
+     */
+    public static final KeySpec INT = new KeySpec(
+            new Type[] {Type.INT}, new int[] {0}, ',');
+
+    public static final char DEFAULT_DELIMITER = ',';
+
+    private final Type[] types;
+    private final int[] columns;
+    private final char delimiter;
+
+    // whether equal normalized keys always mean equal keys
+    private final boolean exact;
+
+    /**
+     * Constructor
+     * @param types type of each field
+     * @param columns column of each field, counting from 1, 0 for the whole row
+     * @param delimiter what separates the columns of a row
+     */
+    public KeySpec(Type[] types, int[] columns, char delimiter) {
+        if (types.length == 0 || types.length != columns.length) {
+            throw new IllegalArgumentException("A key needs a column for each of "
+                    + "one or more types");
+        }
+        this.types = types.clone();
+        this.columns = columns.clone();
+        this.delimiter = delimiter;
+        this.exact = types.length == 1 && types[0] != Type.STRING;
+    }
+
+    /**
+     * Spec from its text form, e.g. "long", "double:3" or "string:2,int:1|;"
+     */
+    public static KeySpec parse(String text) {
+        String fields = text;
+        char delimiter = DEFAULT_DELIMITER;
+        int bar = fields.indexOf('|');
+        if (bar >= 0) {
+            String d = fields.substring(bar + 1);
+            if (d.equals("\\t") || d.equalsIgnoreCase("tab")) {
+                d = "\t";
+            }
+            if (d.length() != 1) {
+                throw new IllegalArgumentException("Bad key delimiter: " + text);
+            }
+            delimiter = d.charAt(0);
+            fields = fields.substring(0, bar);
+        }
+        fields = fields.trim();
+        String[] parts = fields.split(",");
+        Type[] types = new Type[parts.length];
+        int[] columns = new int[parts.length];
+        for (int f = 0; f < parts.length; f++) {
+            String part = parts[f].trim();
+            int colon = part.indexOf(':');
+            String type = (colon < 0) ? part : part.substring(0, colon);
+            try {
+                types[f] = Type.valueOf(type.trim().toUpperCase());
+                columns[f] = (colon < 0) ? 0
+                        : Integer.parseInt(part.substring(colon + 1).trim());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Bad key spec: " + text);
+            }
+            if (columns[f] < 0) {
+                throw new IllegalArgumentException("Bad key column: " + text);
+            }
+        }
+        return new KeySpec(types, columns, delimiter);
+    }
+
+    /**
+     * Whether equal normalized keys always mean equal keys, so that the
+     * rows' text never needs comparing
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Whether this is the whole row as an int (which has a fast path)
+     */
+    public boolean isPlainInt() {
+        return types.length == 1 && types[0] == Type.INT && columns[0] == 0;
+    }
+
+    /**
+     * Whether every normalized key fits in an int
+     */
+    public boolean hasIntKeys() {
+        return types[0] == Type.INT;
+    }
+
+    /**
+     * Normalized key of a (trimmed) row
+     * @throws NumberFormatException if the row has no such column or the
+     * column isn't a number of the field's type
+     */
+    public long normalize(String text) {
+        return normalize(types[0], field(text, 0));
+    }
+
+    /**
+     * Order of two rows given their normalized keys and text. The text is
+     * only looked at when the keys are equal and the spec isn't exact.
+     */
+    public int compare(long keyA, String textA, long keyB, String textB) {
+        if (keyA != keyB) {
+            return (keyA < keyB) ? -1 : 1;
+        }
+        return exact ? 0 : compareText(textA, textB);
+    }
+
+    /**
+     * Order of two rows by every field of the key
+     */
+    public int compareText(String a, String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        for (int f = 0; f < types.length; f++) {
+            String fieldA = field(a, f);
+            String fieldB = field(b, f);
+            int c;
+            switch (types[f]) {
+                case STRING:
+                    c = compareCodePoints(fieldA, fieldB);
+                    break;
+                case DOUBLE:
+                    c = Double.compare(Double.parseDouble(fieldA),
+                            Double.parseDouble(fieldB));
+                    break;
+                default:
+                    long x = normalize(types[f], fieldA);
+                    long y = normalize(types[f], fieldB);
+                    c = (x < y) ? -1 : ((x == y) ? 0 : 1);
+            }
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Whether text is exactly how format would print key, so the row's
+     * text needn't be kept
+     */
+    public boolean isCanonical(long key, String text) {
+        return exact && columns[0] == 0 && format(key).equals(text);
+    }
+
+    /**
+     * Text of a row that was only kept as its normalized key
+     */
+    public String format(long key) {
+        switch (types[0]) {
+            case DOUBLE:
+                return Double.toString(fromSortableDouble(key));
+            case STRING:
+                throw new IllegalStateException(
+                        "A string key can't be rebuilt from its prefix");
+            default:
+                return Long.toString(key);
+        }
+    }
+
+    /**
+     * Field f of a row: its column, trimmed, or the whole row for column 0
+     */
+    private String field(String text, int f) {
+        return column(text, columns[f], delimiter);
+    }
+
+    /**
+     * Column of a row (counting from 1), trimmed, or the whole row for
+     * column 0
+     * @throws NumberFormatException if the row has no such column
+     */
+    static String column(String text, int column, char delimiter) {
+        if (column == 0) {
+            return text;
+        }
+        int start = 0;
+        for (int c = 1; c < column; c++) {
+            start = text.indexOf(delimiter, start) + 1;
+            if (start == 0) {
+                throw new NumberFormatException("Row has no column " + column
+                        + ": " + text);
+            }
+        }
+        int end = text.indexOf(delimiter, start);
+        return text.substring(start, (end < 0) ? text.length() : end).trim();
+    }
+
+    private static long normalize(Type type, String field) {
+        switch (type) {
+            case INT:
+                return Integer.parseInt(field);
+            case LONG:
+                return Long.parseLong(field);
+            case DOUBLE:
+                return sortableDouble(Double.parseDouble(field));
+            default:
+                return stringPrefix(field);
+        }
+    }
+
+    /**
+     * The bits of d, with those of negative numbers flipped so that the
+     * longs order the same way as Double.compare
+     */
+    static long sortableDouble(double d) {
+        long bits = Double.doubleToLongBits(d);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double fromSortableDouble(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+    /**
+     * The first 8 bytes of s in UTF-8 (zero padded), shifted so that signed
+     * order is their unsigned order, which is code point order
+     */
+    static long stringPrefix(String s) {
+        long prefix = 0;
+        int bytes = 0;
+        for (int i = 0; i < s.length() && bytes < 8; i++) {
+            int c = s.codePointAt(i);
+            if (Character.charCount(c) == 2) {
+                i++;
+            }
+            int n = (c < 0x80) ? 1 : (c < 0x800) ? 2 : (c < 0x10000) ? 3 : 4;
+            for (int b = 0; b < n && bytes < 8; b++, bytes++) {
+                int v;
+                if (b == 0) {
+                    // 0xxxxxxx, or 110xxxxx, 1110xxxx or 11110xxx to lead
+                    v =(n == 1) ? c : ((0xf00 >> n) & 0xff) | (c >> (6 * (n - 1)));
+                } else {
+                    v = 0x80 | ((c >> (6 * (n - 1 - b))) & 0x3f);
+                }
+                prefix = (prefix << 8) | (v & 0xff);
+            }
+        }
+        if (bytes < 8) {
+            prefix <<= 8 * (8 - bytes);
+        }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Compare strings in code point order (which is UTF-8 byte order),
+     * unlike String.compareTo
+     */
+    static int compareCodePoints(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            int ca = a.charAt(i);
+            int cb = b.charAt(i);
+            if (ca != cb) {
+                if (ca >= 0xd800 && cb >= 0xd800) {
+                    // surrogates stand for code points above 0xffff
+                    ca += (ca >= 0xe000) ? -0x800 : 0x2000;
+                    cb += (cb >= 0xe000) ? -0x800 : 0x2000;
+                }
+                return ca - cb;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KeySpec)) {
+            return false;
+        }
+        KeySpec other = (KeySpec) o;
+        return Arrays.equals(types, other.types)
+                && Arrays.equals(columns, other.columns)
+                && delimiter == other.delimiter;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(types) + Arrays.hashCode(columns))
+                + delimiter;
+    }
+
+    /**
+     * The text form that parse reads back
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int f = 0; f < types.length; f++) {
+            if (f > 0) {
+                text.append(',');
+            }
+            text.append(types[f].name().toLowerCase());
+            if (columns[f] != 0) {
+                text.append(':').append(columns[f]);
+            }
+        }
+        if (delimiter != DEFAULT_DELIMITER) {
+            text.append('|').append((delimiter == '\t') ? "tab" : delimiter);
+        }
+        return text.toString();
+    }
+}
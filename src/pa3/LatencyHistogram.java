@@ -0,0 +1,175 @@
+package pa3;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ * Counts latencies in microseconds into log-linear buckets: exact below
+ * SUB_BUCKETS, then SUB_BUCKETS buckets per power of two, so any value is
+ * reported to within 1/SUB_BUCKETS of itself. Recording is a few atomic
+ * increments with no locking or allocation, so it can sit on any request
+ * path. Serializes only the buckets in use.
+ */
+public class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // buckets per power of two, a power of two itself
+    public static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+
+    // covers up to 2^40us, about twelve days
+    private static final int MAX_EXPONENT = 40;
+    public static final int NUM_BUCKETS =
+            SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+    private transient AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private transient AtomicLong count = new AtomicLong();
+    private transient AtomicLong sumMicros = new AtomicLong();
+    private transient AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Record a latency given in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Record a latency given in microseconds
+     */
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Add every latency recorded in other to this histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long n = other.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sumMicros.addAndGet(other.sumMicros.get());
+        long max = maxMicros.get();
+        long otherMax = other.maxMicros.get();
+        while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Latency in microseconds that fraction p of the recorded ones are at
+     * or under, 0 if nothing was recorded
+     */
+    public long percentileMicros(double p) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * Bucket a value in microseconds falls in
+     */
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value in microseconds that falls in a bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    /**
+     * Write the count, sum, max and the buckets in use as (index, count)
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeLong(count.get());
+        out.writeLong(sumMicros.get());
+        out.writeLong(maxMicros.get());
+        int used = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (buckets.get(i) != 0) {
+                used++;
+            }
+        }
+        out.writeShort(used);
+        for (int i = 0; i < NUM_BUCKETS && used > 0; i++) {
+            long n = buckets.get(i);
+            if (n != 0) {
+                out.writeShort(i);
+                out.writeLong(n);
+                used--;
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        count = new AtomicLong(in.readLong());
+        sumMicros = new AtomicLong(in.readLong());
+        maxMicros = new AtomicLong(in.readLong());
+        buckets = new AtomicLongArray(NUM_BUCKETS);
+        int used = in.readShort();
+        for (int i = 0; i < used; i++) {
+            buckets.set(in.readShort(), in.readLong());
+        }
+    }
+}
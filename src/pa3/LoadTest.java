@@ -0,0 +1,462 @@
+package pa3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * LoadTest
+ * Runs a Server and N Nodes on loopback in this JVM and drives a number of
+ * sort jobs at them from concurrent clients, then reports the job
+ * throughput, job latency percentiles and the p50/p95/p99 of every phase
+ * on the clients, the server and the nodes.
+ *
+ * The server and nodes start from server.properties and node.properties
+ * (when they are in the working directory), with -server and -node
+ * settings on top, and the failure probability and load threshold given
+ * here. Every job's output is checked to be sorted and complete, or with
+ * -job to be what the job outputs when run here in one task.
+ *
+ * Usage: LoadTest [-nodes n] [-jobs n] [-concurrency n] [-mode stream|whole]
+ *            [-files test/test10k.txt,...] [-failureProbability p]
+ *            [-loadThreshold t] [-codec auto|raw|delta|deflate]
+ *            [-key keySpec] [-job jobSpec] [-server Name=value]
+ *            [-node Name=value]
+ *            [-verbose]
+ */
+public class LoadTest {
+
+    private static final Logger log = Logger.getLogger(LoadTest.class);
+
+    // longest to wait for the nodes to join before giving up
+    public static final long JOIN_TIMEOUT_MILLIS = 20000;
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private int numNodes = 3;
+    private int numJobs = 20;
+    private int concurrency = 4;
+    private boolean streaming = true;
+    private String[] fileNames = {"test/test10k.txt", "test/test100k.txt"};
+    private double failureProbability = 0.0;
+    private double loadThreshold = 1.0;
+    private DataPackageCodec.Codec codec = DataPackageCodec.Codec.AUTO;
+    private KeySpec keySpec = KeySpec.INT;
+    // job other than sort, null to sort
+    private JobSpec job;
+    private Configuration serverConfig;
+    private Configuration nodeConfig;
+
+    private Server server;
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    // rows in each input file, to check each job's output against
+    private final HashMap<String, Integer> inputRows = new HashMap<String, Integer>();
+    // or with -job, the output rows expected from each input file
+    private final HashMap<String, List<String>> expectedOutput = 
+            new HashMap<String, List<String>>();
+
+    private final LatencyHistogram jobLatency = new LatencyHistogram();
+    private final AtomicInteger failedJobs = new AtomicInteger();
+    private final List<Metrics> clientMetrics = new ArrayList<Metrics>();
+
+    public static void main(String args[]) throws Exception {
+        PropertyConfigurator.configure("log4j.properties");
+        LoadTest test = new LoadTest();
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            String value = (i + 1 < args.length) ? args[i + 1] : null;
+            if (args[i].equals("-verbose")) {
+                verbose = true;
+                continue;
+            }
+            if (value == null) {
+                usage("Missing value for " + args[i]);
+            }
+            i++;
+            if (args[i - 1].equals("-nodes")) {
+                test.numNodes = Integer.parseInt(value);
+            } else if (args[i - 1].equals("-jobs")) {
+                test.numJobs = Integer.parseInt(value);
+            } else if (args[i - 1].equals("-concurrency")) {
+                test.concurrency = Integer.parseInt(value);
+            } else if (args[i - 1].equals("-mode")) {
+                test.streaming = !value.equalsIgnoreCase("whole");
+            } else if (args[i - 1].equals("-files")) {
+                test.fileNames = value.split(",");
+            } else if (args[i - 1].equals("-failureProbability")) {
+                test.failureProbability = Double.parseDouble(value);
+            } else if (args[i - 1].equals("-loadThreshold")) {
+                test.loadThreshold = Double.parseDouble(value);
+            } else if (args[i - 1].equals("-codec")) {
+                test.codec = DataPackageCodec.Codec.valueOf(value.toUpperCase());
+            } else if (args[i - 1].equals("-key")) {
+                test.keySpec = KeySpec.parse(value);
+            } else if (args[i - 1].equals("-job")) {
+                test.job = JobSpec.parse(value);
+                if (test.job.isSort()) {
+                    test.keySpec = test.job.getSortKeySpec();
+                    test.job = null;
+                }
+            } else if (args[i - 1].equals("-server")) {
+                set(test.serverConfig(), value);
+            } else if (args[i - 1].equals("-node")) {
+                set(test.nodeConfig(), value);
+            } else {
+                usage("Unknown option " + args[i - 1]);
+            }
+        }
+        if (!verbose) {
+            // the components log every request, which would bury the report
+            Logger.getRootLogger().setLevel(Level.WARN);
+            log.setLevel(Level.INFO);
+        }
+
+        try {
+            test.start();
+            test.run();
+            test.report();
+        } finally {
+            test.stop();
+        }
+        System.exit(test.failedJobs.get() == 0 ? 0 : 1);
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: LoadTest [-nodes n] [-jobs n] [-concurrency n] "
+                + "[-mode stream|whole] [-files a.txt,b.txt] "
+                + "[-failureProbability p] [-loadThreshold t] "
+                + "[-codec auto|raw|delta|deflate] [-key keySpec] [-job jobSpec] "
+                + "[-server Name=value] [-node Name=value] [-verbose]");
+        System.exit(1);
+    }
+
+    private static void set(Configuration config, String setting) {
+        int eq = setting.indexOf('=');
+        if (eq < 0) {
+            usage("Expected Name=value, got " + setting);
+        }
+        config.setProperty(setting.substring(0, eq), setting.substring(eq + 1));
+    }
+
+    private Configuration serverConfig() {
+        if (serverConfig == null) {
+            serverConfig = load(Server.CONFIG_FILENAME);
+        }
+        return serverConfig;
+    }
+
+    private Configuration nodeConfig() {
+        if (nodeConfig == null) {
+            nodeConfig = load("node.properties");
+        }
+        return nodeConfig;
+    }
+
+    /**
+     * Settings from a properties file, or none if it isn't there
+     */
+    private static Configuration load(String fileName) {
+        if (!new File(fileName).exists()) {
+            return new BaseConfiguration();
+        }
+        try {
+            return new PropertiesConfiguration(fileName);
+        } catch (ConfigurationException ex) {
+            log.error("Problem loading properties config file: " + ex);
+            return new BaseConfiguration();
+        }
+    }
+
+    /**
+     * Start the server and the nodes, and wait for every node to join
+     */
+    private void start() throws Exception {
+        for (String fileName : fileNames) {
+            if (job != null) {
+                expectedOutput.put(fileName, runHere(fileName));
+                continue;
+            }
+            DataPackage dp = new DataPackage(1, keySpec);
+            dp.addFromFile(fileName);
+            inputRows.put(fileName, dp.getSize());
+        }
+
+        server = new Server(serverConfig());
+        server.start();
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+        while (server.getLocation() == null) {
+            waitUntil(deadline, "the server to start");
+        }
+        for (int i = 0; i < numNodes; i++) {
+            Node node = new Node(failureProbability, loadThreshold, nodeConfig(),
+                    server.getLocation());
+            nodes.add(node);
+            node.start();
+        }
+        while (server.getStats().liveNodes < numNodes) {
+            waitUntil(deadline, "the nodes to join");
+        }
+        log.info("Server at " + server.getLocation() + " with " + numNodes
+                + " nodes, failure probability " + failureProbability
+                + ", load threshold " + loadThreshold);
+    }
+
+    /**
+     * Output rows of the job run over a file here, as one map and one
+     * reduce task, or for a selection as a full sort
+     */
+    private List<String> runHere(String fileName) {
+        DataPackage output;
+        if (job.isSelection()) {
+            // the range of a full sort
+            output = new DataPackage(1, job.getSortKeySpec());
+            output.addFromFile(fileName);
+            output.sort();
+            int[] range = job.getSelection(output.getSize());
+            output = output.slice(range[0], range[1]);
+        } else {
+            DataPackage input = new DataPackage(1, Client.JOB_INPUT_KEY_SPEC);
+            input.addFromFile(fileName);
+            ClassLoader loader = LoadTest.class.getClassLoader();
+            output = JobRunner.reduce(job.newJob(loader),
+                    JobRunner.map(job.newJob(loader), input, 1));
+        }
+        List<String> rows = new ArrayList<String>(output.getSize());
+        for (int i = 0; i < output.getSize(); i++) {
+            rows.add(output.getText(i));
+        }
+        return rows;
+    }
+
+    private static void waitUntil(long deadline, String what)
+            throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Gave up waiting for " + what);
+        }
+        Thread.sleep(50);
+    }
+
+    /**
+     * Run every job, concurrency of them at a time, taking the input files
+     * in turn
+     */
+    private void run() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numJobs; i++) {
+            final String fileName = fileNames[i % fileNames.length];
+            results.add(clients.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return runJob(fileName);
+                }
+            }));
+        }
+        long rows = 0;
+        for (Future<Integer> result : results) {
+            rows += result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        clients.shutdown();
+
+        int completed = numJobs - failedJobs.get();
+        log.info(String.format("%d of %d jobs completed in %.2fs: %.2f jobs/s, "
+                + "%.0f rows/s", completed, numJobs, seconds,
+                completed / seconds, rows / seconds));
+    }
+
+    /**
+     * Sort one file from a client of its own and check the output, returns
+     * the rows sorted or 0 if the job failed
+     */
+    private int runJob(String fileName) {
+        Client client = new Client(server.getIP(),
+                String.valueOf(server.getPort()), streaming);
+        client.setCodec(codec);
+        client.setKeySpec(keySpec);
+        if (job != null) {
+            client.setJob(job);
+        }
+        synchronized (clientMetrics) {
+            clientMetrics.add(client.getMetrics());
+        }
+        File out = null;
+        try {
+            out = File.createTempFile("loadtest", ".sorted");
+            long start = System.nanoTime();
+            int rows = client.runJobOnFile(fileName, out.getPath());
+            jobLatency.recordNanos(System.nanoTime() - start);
+            if (job != null) {
+                checkOutput(out, expectedOutput.get(fileName), 
+                        job.isSelection() ? job.getSortKeySpec() : null);
+            } else {
+                checkSorted(out, inputRows.get(fileName), keySpec);
+            }
+            return rows;
+        } catch (IOException ex) {
+            log.error("Job on " + fileName + " failed: " + ex);
+            failedJobs.incrementAndGet();
+            return 0;
+        } finally {
+            if (out != null) {
+                out.delete();
+            }
+        }
+    }
+
+    /**
+     * Check that a job's output has every row of its input, in order
+     */
+    private static void checkSorted(File file, int expectedRows, KeySpec keySpec)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), DataPackage.TEXT_CHARSET));
+        try {
+            int rows = 0;
+            long previousKey = 0;
+            String previous = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String text = line.trim();
+                long key = keySpec.normalize(text);
+                if (previous != null
+                        && keySpec.compare(previousKey, previous, key, text) > 0) {
+                    throw new IOException("Output out of order at row " + rows);
+                }
+                previousKey = key;
+                previous = text;
+                rows++;
+            }
+            if (rows != expectedRows) {
+                throw new IOException("Output has " + rows + " rows, expected "
+                        + expectedRows);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Check that a job's output is the expected rows, in order, allowing
+     * for sums of doubles that were added up in another order, and for a
+     * selection (whose keySpec is given) any of the rows with an equal key
+     */
+    private static void checkOutput(File file, List<String> expected,
+            KeySpec keySpec) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), DataPackage.TEXT_CHARSET));
+        try {
+            int rows = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (rows >= expected.size() 
+                        || !sameRow(line, expected.get(rows), keySpec)) {
+                    throw new IOException("Output differs at row " + rows + ": "
+                            + line);
+                }
+                rows++;
+            }
+            if (rows != expected.size()) {
+                throw new IOException("Output has " + rows + " rows, expected "
+                        + expected.size());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean sameRow(String row, String expected, KeySpec keySpec) {
+        if (row.equals(expected)) {
+            return true;
+        }
+        if (keySpec != null) {
+            String text = row.trim();
+            return keySpec.compare(keySpec.normalize(text), text,
+                    keySpec.normalize(expected), expected) == 0;
+        }
+        int tab = row.indexOf(JobRunner.PAIR_DELIMITER);
+        if (tab < 0 || !row.regionMatches(0, expected, 0, tab + 1)) {
+            return false;
+        }
+        try {
+            double value = Double.parseDouble(row.substring(tab + 1));
+            double expectedValue = Double.parseDouble(expected.substring(tab + 1));
+            return Math.abs(value - expectedValue)
+                    <= 1e-9 * Math.max(1.0, Math.abs(expectedValue));
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Print the job latencies, the phases of every component and the
+     * server's stats
+     */
+    private void report() throws InterruptedException {
+        // the nodes' stats reach the server with their heartbeats
+        Thread.sleep(2 * nodeConfig().getLong(Node.HEARTBEAT_INTERVAL_VARNAME, 1000));
+        ServerStats stats = server.getStats();
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("job latency: n=%d p50=%.1fms p95=%.1fms "
+                + "p99=%.1fms max=%.1fms%n", jobLatency.getCount(),
+                jobLatency.percentileMicros(0.5) / 1e3,
+                jobLatency.percentileMicros(0.95) / 1e3,
+                jobLatency.percentileMicros(0.99) / 1e3,
+                jobLatency.getMaxMicros() / 1e3));
+        text.append(String.format("%-8s %-18s %-7s %-10s %-10s %-10s%n",
+                "where", "phase", "n", "p50(ms)", "p95(ms)", "p99(ms)"));
+        appendPhases(text, "clients", Metrics.sum(clientMetrics));
+        appendPhases(text, "server", stats.metrics);
+        appendPhases(text, "nodes", stats.nodeMetrics);
+        log.info("Load test results:\n" + text + stats);
+    }
+
+    private static void appendPhases(StringBuilder text, String where,
+            Metrics metrics) {
+        for (Metrics.Phase phase : Metrics.Phase.values()) {
+            LatencyHistogram h = metrics.getLatency(phase);
+            if (h.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format("%-8s %-18s %-7d", where,
+                    phase.name().toLowerCase(), h.getCount()));
+            for (double p : PERCENTILES) {
+                text.append(String.format(" %-10.1f", h.percentileMicros(p) / 1e3));
+            }
+            text.append('\n');
+        }
+    }
+
+    /**
+     * Shut the nodes and then the server down
+     */
+    private void stop() {
+        for (Node node : nodes) {
+            node.shutdown();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package pa3;
+
+/**
+ * Mapper
+ * Map side of a job: turns each row of its split into any number of
+ * key/value pairs. A node makes a new instance for every split, so a
+ * Mapper may keep state across the rows of one split.
+ */
+public interface Mapper {
+
+    /**
+     * Map one row (trimmed, as it was in the input file)
+     */
+    void map(String row, Emitter out);
+}
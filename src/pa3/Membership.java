@@ -0,0 +1,228 @@
+package pa3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Membership
+ * The server's table of nodes, kept up to date by the heartbeats the nodes
+ * send. A node that misses heartbeats for suspectMillis is suspected and
+ * gets no new work; one that misses them for deadMillis is dropped from the
+ * table. Any heartbeat brings a node back, so a node that restarts or comes
+ * back from a network problem rejoins without the server restarting.
+ */
+public class Membership {
+
+    private static final Logger log = Logger.getLogger(Membership.class);
+
+    /**
+     * What the server last heard from one node
+     */
+    public static class Member {
+        public final NetworkLocation location;
+        // order the node joined in, keeps node lists stable between jobs
+        final long joinOrder;
+        volatile long lastHeard;
+        volatile double load;
+        volatile int processors = 1;
+        volatile int queueDepth;
+        // set when a request to the node fails, cleared by its next heartbeat
+        volatile boolean unreachable;
+        // stats the node sent with its last heartbeat
+        volatile NodeStats stats;
+
+        Member(NetworkLocation location, long joinOrder) {
+            this.location = location;
+            this.joinOrder = joinOrder;
+            this.lastHeard = System.currentTimeMillis();
+        }
+
+        /**
+         * Load the node reported in its last heartbeat
+         */
+        public double getLoad() {
+            return load;
+        }
+
+        /**
+         * Stats the node sent with its last heartbeat, null before the first
+         */
+        public NodeStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Number of processors the node reported in its last heartbeat
+         */
+        public int getProcessors() {
+            return processors;
+        }
+
+        /**
+         * Request queue depth the node reported in its last heartbeat
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+    }
+
+    private static final Comparator<Member> BY_JOIN_ORDER = new Comparator<Member>() {
+        @Override
+        public int compare(Member a, Member b) {
+            return a.joinOrder < b.joinOrder ? -1
+                    : (a.joinOrder == b.joinOrder ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentHashMap<NetworkLocation, Member> members =
+            new ConcurrentHashMap<NetworkLocation, Member>();
+    private final AtomicLong joins = new AtomicLong();
+    private final long suspectMillis;
+    private final long deadMillis;
+
+    /**
+     * Constructor
+     * @param suspectMillis silence after which a node gets no new work
+     * @param deadMillis silence after which a node is dropped
+     */
+    public Membership(long suspectMillis, long deadMillis) {
+        this.suspectMillis = suspectMillis;
+        this.deadMillis = Math.max(deadMillis, suspectMillis);
+    }
+
+    /**
+     * A node has joined (or rejoined)
+     */
+    public void join(NetworkLocation location) {
+        heartbeat(location, 0.0, 1, 0);
+    }
+
+    /**
+     * Record a heartbeat, adding the node if it isn't a member
+     */
+    public void heartbeat(NetworkLocation location, double load, int processors,
+            int queueDepth) {
+        Member member = members.get(location);
+        if (member == null) {
+            Member joined = new Member(location, joins.incrementAndGet());
+            member = members.putIfAbsent(location, joined);
+            if (member == null) {
+                member = joined;
+                log.info("Node at " + location + " joined");
+            }
+        }
+        if (member.unreachable) {
+            log.info("Node at " + location + " is reachable again");
+        }
+        member.load = load;
+        member.processors = processors;
+        member.queueDepth = queueDepth;
+        member.unreachable = false;
+        member.lastHeard = System.currentTimeMillis();
+    }
+
+    /**
+     * Keep the stats a node sent with its heartbeat
+     */
+    public void report(NetworkLocation location, NodeStats stats) {
+        Member member = members.get(location);
+        if (member != null) {
+            member.stats = stats;
+        }
+    }
+
+    /**
+     * A node has left on purpose
+     */
+    public void leave(NetworkLocation location) {
+        if (members.remove(location) != null) {
+            log.info("Node at " + location + " left");
+        }
+    }
+
+    /**
+     * A request to the node failed, give it no new work until it sends
+     * another heartbeat
+     */
+    public void suspect(NetworkLocation location) {
+        Member member = members.get(location);
+        if (member != null && !member.unreachable) {
+            member.unreachable = true;
+            log.warn("Node at " + location + " is suspected down");
+        }
+    }
+
+    /**
+     * Drop nodes that have been silent for too long, returns the dropped ones
+     */
+    public ArrayList<NetworkLocation> expire() {
+        ArrayList<NetworkLocation> dropped = new ArrayList<NetworkLocation>();
+        long now = System.currentTimeMillis();
+        Iterator<Member> all = members.values().iterator();
+        while (all.hasNext()) {
+            Member member = all.next();
+            if (now - member.lastHeard > deadMillis) {
+                all.remove();
+                dropped.add(member.location);
+                log.warn("Node at " + member.location + " missed heartbeats for "
+                        + (now - member.lastHeard) + "ms, dropping it");
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * What the server last heard from a node, null if it isn't a member
+     */
+    public Member get(NetworkLocation location) {
+        return members.get(location);
+    }
+
+    /**
+     * Nodes that can be given work, in the order they joined
+     */
+    public ArrayList<NetworkLocation> liveNodes() {
+        ArrayList<Member> live = liveMembers();
+        ArrayList<NetworkLocation> nodes = new ArrayList<NetworkLocation>(live.size());
+        for (Member member : live) {
+            nodes.add(member.location);
+        }
+        return nodes;
+    }
+
+    /**
+     * Members that can be given work, in the order they joined
+     */
+    public ArrayList<Member> liveMembers() {
+        long now = System.currentTimeMillis();
+        ArrayList<Member> live = new ArrayList<Member>();
+        for (Member member : members.values()) {
+            if (!member.unreachable && now - member.lastHeard <= suspectMillis) {
+                live.add(member);
+            }
+        }
+        Collections.sort(live, BY_JOIN_ORDER);
+        return live;
+    }
+
+    /**
+     * Every member in the table, live or suspected, in the order they joined
+     */
+    public ArrayList<Member> members() {
+        ArrayList<Member> all = new ArrayList<Member>(members.values());
+        Collections.sort(all, BY_JOIN_ORDER);
+        return all;
+    }
+
+    /**
+     * Number of nodes in the table, live or suspected
+     */
+    public int size() {
+        return members.size();
+    }
+}
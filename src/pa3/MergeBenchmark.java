@@ -0,0 +1,83 @@
+package pa3;
+
+import java.util.ArrayList;
+
+/**
+ * MergeBenchmark
+ * Times the reduce merge against the number of sorted partitions, comparing
+ * the k-way PartitionMerger with merging the partitions pairwise one after
+ * another (what Node.reduce used to do).
+ *
+ * Usage: MergeBenchmark [iterations] [file to load ...]
+ */
+public class MergeBenchmark {
+
+    private static final int[] PARTITION_COUNTS = {2, 4, 8, 16, 32, 64};
+
+    public static void main(String args[]) {
+        int iterations = (args.length > 0) ? Integer.valueOf(args[0]) : 5;
+        String[] fileNames = {"test/test10k.txt", "test/test100k.txt",
+                "test/test1000k.txt"};
+        if (args.length > 1) {
+            fileNames = new String[args.length - 1];
+            System.arraycopy(args, 1, fileNames, 0, fileNames.length);
+        }
+
+        System.out.println("file                  rows      k   k-way(ms)   pairwise(ms)");
+        for (String fileName : fileNames) {
+            DataPackage dp = new DataPackage();
+            dp.addFromFile(fileName);
+            for (int k : PARTITION_COUNTS) {
+                ArrayList<DataPackage> partitions = sortedPartitions(dp, k);
+
+                // one untimed round each to warm up the JIT
+                PartitionMerger.merge(partitions);
+                pairwise(partitions);
+
+                long kWay = 0, pairwise = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    PartitionMerger.merge(partitions);
+                    long mid = System.nanoTime();
+                    pairwise(partitions);
+                    long end = System.nanoTime();
+                    kWay += mid - start;
+                    pairwise += end - mid;
+                }
+                System.out.println(String.format("%-21s %-9d %-3d %-11.2f %-11.2f",
+                        fileName, dp.getSize(), k, kWay / 1e6 / iterations,
+                        pairwise / 1e6 / iterations));
+            }
+        }
+    }
+
+    /**
+     * Split the package by position into k partitions and sort each
+     */
+    private static ArrayList<DataPackage> sortedPartitions(DataPackage dp, int k) {
+        ArrayList<DataPackage> partitions = new ArrayList<DataPackage>(k);
+        int perPartition = dp.getSize() / k;
+        for (int p = 0; p < k; p++) {
+            int from = p * perPartition;
+            int to = (p == k - 1) ? dp.getSize() : from + perPartition;
+            DataPackage partition = dp.slice(from, to);
+            partition.sort();
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Merge partition 0 with 1, then the result with 2, and so on
+     */
+    private static DataPackage pairwise(ArrayList<DataPackage> partitions) {
+        DataPackage reduced = partitions.get(0);
+        for (int p = 1; p < partitions.size(); p++) {
+            ArrayList<DataPackage> pair = new ArrayList<DataPackage>(2);
+            pair.add(reduced);
+            pair.add(partitions.get(p));
+            reduced = PartitionMerger.merge(pair);
+        }
+        return reduced;
+    }
+}
@@ -0,0 +1,173 @@
+package pa3;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * MergeInputs
+ * The sorted inputs of one merge, collected as they arrive. They are kept
+ * in memory until their rows go over the sort memory budget; from then on
+ * every input, those already kept and those still to come, is spilled to a
+ * run file as soon as it arrives, and an input that comes as a block stream
+ * is written to its run file block by block without being built whole.
+ * Without an ExternalSorter nothing is ever spilled.
+ *
+ * Inputs are merged in the order they were added, so equal keys keep that
+ * order.
+ */
+public class MergeInputs {
+
+    private final ExternalSorter sorter;
+    private final ArrayList<DataPackage> packages = new ArrayList<DataPackage>();
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private boolean spilled;
+    private long rows;
+    private KeySpec keySpec;
+
+    /**
+     * Constructor, sorter may be null to keep every input in memory
+     */
+    public MergeInputs(ExternalSorter sorter) {
+        this.sorter = sorter;
+    }
+
+    /**
+     * Add a sorted package
+     */
+    public void add(DataPackage sorted) throws IOException {
+        noteKeySpec(sorted.getKeySpec());
+        rows += sorted.getSize();
+        if (!spilled && sorter != null && sorter.exceedsBudget(rows)) {
+            spillKept();
+        }
+        if (spilled) {
+            runs.add(sorter.spill(sorted));
+        } else {
+            packages.add(sorted);
+        }
+    }
+
+    /**
+     * Add a run file that is sorted already, which is merged (and deleted)
+     * with the rest
+     */
+    public void addRun(File run, long runRows, KeySpec runKeySpec) throws IOException {
+        if (sorter == null) {
+            throw new IOException("Can't merge run files without a sort memory budget");
+        }
+        noteKeySpec(runKeySpec);
+        rows += runRows;
+        if (!spilled) {
+            spillKept();
+        }
+        runs.add(run);
+    }
+
+    /**
+     * Add a sorted run sent as a block stream (see DataPackageCodec)
+     */
+    public void addBlocks(DataInput in, Metrics metrics) throws IOException {
+        long blockRows = DataPackageCodec.readBlockCount(in);
+        if (sorter == null || (!spilled && !sorter.exceedsBudget(rows + blockRows))) {
+            // small enough to keep, read it back whole
+            add(DataPackageCodec.readBlocks(in, blockRows, metrics));
+            return;
+        }
+        ExternalSorter.RunWriter writer = sorter.newRun();
+        try {
+            DataPackage block;
+            while ((block = DataPackageCodec.read(in, metrics)) != null) {
+                writer.accept(block);
+            }
+        } catch (IOException ex) {
+            writer.discard();
+            throw ex;
+        }
+        if (writer.getRows() != blockRows) {
+            writer.discard();
+            throw new IOException("Block stream ended after " + writer.getRows()
+                    + " of " + blockRows + " rows");
+        }
+        addRun(writer.finish(), blockRows, writer.getKeySpec());
+    }
+
+    /**
+     * Whether the inputs have gone to run files
+     */
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Rows of every input added
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Merge the inputs kept in memory into one package, only for inputs
+     * that haven't been spilled
+     */
+    public DataPackage merge() {
+        if (spilled) {
+            throw new IllegalStateException("inputs are in run files");
+        }
+        if (packages.isEmpty()) {
+            DataPackage empty = new DataPackage(0, keySpecOrDefault());
+            empty.sorted(true);
+            return empty;
+        }
+        return PartitionMerger.merge(packages);
+    }
+
+    /**
+     * Merge every input, handing the merged rows to sink a block at a time
+     */
+    public void mergeTo(BlockSink sink) throws IOException {
+        if (spilled) {
+            ArrayList<File> merging = new ArrayList<File>(runs);
+            runs.clear();
+            ExternalSorter.mergeRuns(merging, keySpecOrDefault(), sink);
+            return;
+        }
+        if (packages.size() > 1) {
+            new PartitionMerger(packages).mergeTo(sink, DataPackageCodec.BLOCK_ROWS);
+        } else if (packages.size() == 1 && packages.get(0).getSize() > 0) {
+            sink.accept(packages.get(0));
+        }
+        packages.clear();
+    }
+
+    /**
+     * Delete any run files that weren't merged, after a failure
+     */
+    public void discard() {
+        ExternalSorter.deleteAll(runs);
+        runs.clear();
+        packages.clear();
+    }
+
+    /**
+     * Spill the inputs kept so far, the merge goes to run files from here on
+     */
+    private void spillKept() throws IOException {
+        spilled = true;
+        for (DataPackage kept : packages) {
+            runs.add(sorter.spill(kept));
+        }
+        packages.clear();
+    }
+
+    private void noteKeySpec(KeySpec added) {
+        if (keySpec == null && added != null) {
+            keySpec = added;
+        }
+    }
+
+    private KeySpec keySpecOrDefault() {
+        return (keySpec == null) ? KeySpec.INT : keySpec;
+    }
+}
@@ -0,0 +1,284 @@
+package pa3;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics
+ * Where the time of a job goes on one component: a latency histogram for
+ * each Phase, bytes in and out of the component's connections, rows
+ * handled, and how well each DataPackageCodec codec compressed and what it
+ * cost. Callers take System.nanoTime() before a phase and pass it to
+ * record afterwards, so nothing is allocated on the request path.
+ *
+ * Travels inside NodeStats and ServerStats, and is rendered as plain text
+ * lines (one "name{labels} value" per line) by the metrics endpoint.
+ */
+public class Metrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Phases of a job:
+     * INGEST      reading the input rows, from a file or off the wire
+     * PARTITION   cutting the rows into splits
+     * SERIALIZE   encoding or decoding rows for the wire
+     * TRANSFER    a request's round trip, less the time the far end spent on it
+     * SORT        sorting a split on a node
+     * INTERMEDIATE_WRITE writing a node's intermediate file
+     * MERGE       merging sorted runs
+     * RESULT_RETURN sending (or fetching and writing) the sorted result
+     * MAP         running a map task of a job on a node
+     * REDUCE      running a reduce task of a job on a node
+     */
+    public static enum Phase {INGEST, PARTITION, SERIALIZE, TRANSFER, SORT,
+            INTERMEDIATE_WRITE, MERGE, RESULT_RETURN, MAP, REDUCE};
+
+    private static final Phase[] PHASES = Phase.values();
+
+    // quantiles rendered for every phase
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[PHASES.length];
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final long startMillis;
+
+    private static final DataPackageCodec.Codec[] CODECS =
+            DataPackageCodec.Codec.values();
+
+    /**
+     * By codec: packages encoded, their size had they been RAW, their
+     * encoded size and the time spent encoding, then packages decoded and
+     * the time spent decoding
+     */
+    private final AtomicLongArray encoded = new AtomicLongArray(CODECS.length);
+    private final AtomicLongArray rawBytes = new AtomicLongArray(CODECS.length);
+    private final AtomicLongArray encodedBytes = new AtomicLongArray(CODECS.length);
+    private final AtomicLongArray encodeNanos = new AtomicLongArray(CODECS.length);
+    private final AtomicLongArray decoded = new AtomicLongArray(CODECS.length);
+    private final AtomicLongArray decodeNanos = new AtomicLongArray(CODECS.length);
+
+    public Metrics() {
+        this(System.currentTimeMillis());
+    }
+
+    private Metrics(long startMillis) {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Record a phase that started at startNanos (from System.nanoTime())
+     * and has just ended
+     */
+    public void record(Phase phase, long startNanos) {
+        latencies[phase.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a phase that took nanos
+     */
+    public void recordNanos(Phase phase, long nanos) {
+        latencies[phase.ordinal()].recordNanos(nanos);
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Count rows sorted (or merged, mapped or reduced) by this component
+     */
+    public void addRows(long n) {
+        rows.addAndGet(n);
+    }
+
+    /**
+     * Record a package encoded in codec, which would have been raw bytes
+     * long as RAW
+     */
+    public void recordEncode(DataPackageCodec.Codec codec, long raw, long bytes,
+            long nanos) {
+        int c = codec.ordinal();
+        encoded.incrementAndGet(c);
+        rawBytes.addAndGet(c, raw);
+        encodedBytes.addAndGet(c, bytes);
+        encodeNanos.addAndGet(c, nanos);
+    }
+
+    /**
+     * Record a package decoded from codec
+     */
+    public void recordDecode(DataPackageCodec.Codec codec, long nanos) {
+        int c = codec.ordinal();
+        decoded.incrementAndGet(c);
+        decodeNanos.addAndGet(c, nanos);
+    }
+
+    /**
+     * RAW size over encoded size of the packages encoded in codec, 0 if
+     * there were none
+     */
+    public double getCompressionRatio(DataPackageCodec.Codec codec) {
+        long bytes = encodedBytes.get(codec.ordinal());
+        return (bytes == 0) ? 0.0 : (double) rawBytes.get(codec.ordinal()) / bytes;
+    }
+
+    public LatencyHistogram getLatency(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    /**
+     * Rows per second over the time spent sorting, merging, mapping and
+     * reducing, 0 before any rows were handled
+     */
+    public double getRowsPerSecond() {
+        long micros = getLatency(Phase.SORT).getSumMicros()
+                + getLatency(Phase.MERGE).getSumMicros()
+                + getLatency(Phase.MAP).getSumMicros()
+                + getLatency(Phase.REDUCE).getSumMicros();
+        return (micros == 0) ? 0.0 : rows.get() * 1e6 / micros;
+    }
+
+    /**
+     * Metrics of several components added together, up since the first
+     * of them started
+     */
+    public static Metrics sum(List<Metrics> all) {
+        long start = System.currentTimeMillis();
+        for (Metrics m : all) {
+            if (m != null) {
+                start = Math.min(start, m.startMillis);
+            }
+        }
+        Metrics total = new Metrics(start);
+        for (Metrics m : all) {
+            if (m == null) {
+                continue;
+            }
+            for (int i = 0; i < PHASES.length; i++) {
+                total.latencies[i].add(m.latencies[i]);
+            }
+            total.bytesIn.addAndGet(m.bytesIn.get());
+            total.bytesOut.addAndGet(m.bytesOut.get());
+            total.rows.addAndGet(m.rows.get());
+            for (int c = 0; c < CODECS.length; c++) {
+                total.encoded.addAndGet(c, m.encoded.get(c));
+                total.rawBytes.addAndGet(c, m.rawBytes.get(c));
+                total.encodedBytes.addAndGet(c, m.encodedBytes.get(c));
+                total.encodeNanos.addAndGet(c, m.encodeNanos.get(c));
+                total.decoded.addAndGet(c, m.decoded.get(c));
+                total.decodeNanos.addAndGet(c, m.decodeNanos.get(c));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Append every metric as "name{labels} value" lines, with labels
+     * (such as component="server") added to each
+     */
+    public void appendText(StringBuilder text, String labels) {
+        String sep = labels.isEmpty() ? "" : ",";
+        for (Phase phase : PHASES) {
+            LatencyHistogram h = getLatency(phase);
+            String phaseLabels = labels + sep + "phase=\""
+                    + phase.name().toLowerCase() + "\"";
+            for (double q : QUANTILES) {
+                line(text, "mapreduce_phase_latency_micros", phaseLabels
+                        + ",quantile=\"" + q + "\"", h.percentileMicros(q));
+            }
+            line(text, "mapreduce_phase_latency_micros_max", phaseLabels,
+                    h.getMaxMicros());
+            line(text, "mapreduce_phase_latency_micros_sum", phaseLabels,
+                    h.getSumMicros());
+            line(text, "mapreduce_phase_latency_micros_count", phaseLabels,
+                    h.getCount());
+        }
+        line(text, "mapreduce_bytes_in_total", labels, bytesIn.get());
+        line(text, "mapreduce_bytes_out_total", labels, bytesOut.get());
+        line(text, "mapreduce_rows_total", labels, rows.get());
+        text.append("mapreduce_rows_per_second{").append(labels).append("} ")
+                .append(String.format("%.1f", getRowsPerSecond())).append('\n');
+        line(text, "mapreduce_uptime_millis", labels,
+                System.currentTimeMillis() - startMillis);
+        for (DataPackageCodec.Codec codec : CODECS) {
+            int c = codec.ordinal();
+            if (encoded.get(c) == 0 && decoded.get(c) == 0) {
+                continue;
+            }
+            String codecLabels = labels + sep + "codec=\""
+                    + codec.name().toLowerCase() + "\"";
+            line(text, "mapreduce_codec_encoded_total", codecLabels, encoded.get(c));
+            line(text, "mapreduce_codec_raw_bytes_total", codecLabels, rawBytes.get(c));
+            line(text, "mapreduce_codec_encoded_bytes_total", codecLabels,
+                    encodedBytes.get(c));
+            line(text, "mapreduce_codec_encode_micros_total", codecLabels,
+                    encodeNanos.get(c) / 1000);
+            line(text, "mapreduce_codec_decoded_total", codecLabels, decoded.get(c));
+            line(text, "mapreduce_codec_decode_micros_total", codecLabels,
+                    decodeNanos.get(c) / 1000);
+        }
+    }
+
+    private static void line(StringBuilder text, String name, String labels,
+            long value) {
+        text.append(name).append('{').append(labels).append("} ")
+                .append(value).append('\n');
+    }
+
+    /**
+     * One line per phase with its count and p50/p99/max in milliseconds,
+     * for the logs
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Phase phase : PHASES) {
+            LatencyHistogram h = getLatency(phase);
+            if (h.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(". %-18s n=%-7d p50=%.1fms p99=%.1fms max=%.1fms%n",
+                    phase.name().toLowerCase(), h.getCount(),
+                    h.percentileMicros(0.5) / 1e3, h.percentileMicros(0.99) / 1e3,
+                    h.getMaxMicros() / 1e3));
+        }
+        text.append(String.format(". bytes in/out = %d / %d, rows = %d (%.0f rows/s)%n",
+                bytesIn.get(), bytesOut.get(), rows.get(), getRowsPerSecond()));
+        for (DataPackageCodec.Codec codec : CODECS) {
+            int c = codec.ordinal();
+            if (encoded.get(c) == 0 && decoded.get(c) == 0) {
+                continue;
+            }
+            text.append(String.format(". codec %-12s encoded=%d (ratio %.2f, %.1fms)"
+                    + " decoded=%d (%.1fms)%n", codec.name().toLowerCase(),
+                    encoded.get(c), getCompressionRatio(codec),
+                    encodeNanos.get(c) / 1e6, decoded.get(c),
+                    decodeNanos.get(c) / 1e6));
+        }
+        return text.toString();
+    }
+}
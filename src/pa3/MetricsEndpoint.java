@@ -0,0 +1,85 @@
+package pa3;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * MetricsEndpoint
+ * Serves a component's metrics as plain text at /metrics over HTTP, one
+ * "name{labels} value" line per metric, for a scraper to read. The text is
+ * built per request from the Source, off every job's path.
+ */
+public class MetricsEndpoint {
+
+    private static final Logger log = Logger.getLogger(MetricsEndpoint.class);
+
+    public static final String PATH = "/metrics";
+
+    /**
+     * Implemented by components that have metrics to serve
+     */
+    public interface Source {
+        void appendMetrics(StringBuilder text);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Start serving on port, 0 for any free port
+     */
+    public MetricsEndpoint(int port, final Source source) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder text = new StringBuilder();
+                source.appendMetrics(text);
+                byte[] body = text.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type",
+                        "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        // a daemon thread, so an endpoint that is never closed doesn't keep
+        // the JVM up
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MetricsEndpoint");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        log.info("Metrics available at http://" + Utils.getIPAddress() + ":"
+                + getPort() + PATH);
+    }
+
+    /**
+     * Port the endpoint listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving
+     */
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
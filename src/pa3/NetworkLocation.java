@@ -1,6 +1,11 @@
 package pa3;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * NetworkLocation
@@ -21,6 +26,60 @@ public class NetworkLocation implements Serializable {
         this.port = port;
     }
 
+    /**
+     * Write this location to a frame body
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(ip);
+        out.writeInt(port);
+    }
+
+    /**
+     * Read a location from a frame body
+     */
+    public static NetworkLocation readFrom(DataInput in) throws IOException {
+        String ip = in.readUTF();
+        return new NetworkLocation(ip, in.readInt());
+    }
+
+    /**
+     * Write a list of locations to a frame body
+     */
+    public static void writeList(DataOutput out, List<NetworkLocation> locations) 
+            throws IOException {
+        out.writeInt(locations.size());
+        for (NetworkLocation n : locations) {
+            n.writeTo(out);
+        }
+    }
+
+    /**
+     * Read a list of locations from a frame body
+     */
+    public static ArrayList<NetworkLocation> readList(DataInput in) 
+            throws IOException {
+        int count = in.readInt();
+        ArrayList<NetworkLocation> locations = new ArrayList<NetworkLocation>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(readFrom(in));
+        }
+        return locations;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NetworkLocation)) {
+            return false;
+        }
+        NetworkLocation other = (NetworkLocation) o;
+        return port == other.port && ip.equals(other.ip);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * ip.hashCode() + port;
+    }
+
     @Override
     public String toString() {
         return "[" + ip + ":" + port + "]";
@@ -1,18 +1,29 @@
 package pa3;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.UnknownHostException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 
-import java.net.Socket;
 import java.util.logging.Level;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.log4j.Logger;
@@ -24,9 +35,9 @@ import org.apache.log4j.PropertyConfigurator;
  * Compute node in the system.
  * @author mark
  */
-public class Node extends Thread {
+public class Node extends Thread implements RequestHandler {
     
-    private static Logger log;
+    private static Logger log = Logger.getLogger(Node.class);
     
     // probability that this node will force itself to fail per reqs
     private double failureProbability; 
@@ -34,13 +45,72 @@ public class Node extends Thread {
     private NetworkLocation location;
 
     private NodeStats stats;
-    private ServerSocket ss;
+    
+    // null unless a sort memory budget is set
+    private ExternalSorter externalSorter;
+    // persists each sorted partition to its own intermediate file,
+    // created by init once the node knows its port
+    private IntermediateWriter intermediateWriter;
+    private IntermediateWriter.Mode intermediateMode;
+    private File intermediateDirectory;
+    // accepts and serves every connection from the server and peers
+    private FrameServer frameServer;
     private NetworkLocation serverLocation;
     
+    // open connections to the server and peers, reused across requests
+    private ConnectionPool connections;
+    // codec of the packages this node sends its peers, and asks for back
+    private DataPackageCodec.Codec wireCodec;
+    private DataPackageCodec.Codec intermediateCodec;
+    
+    // runs the requests from the server and peers, a bounded number at a time
+    private RequestExecutor requestExecutor;
+    
+    // rows of the splits this node most recently failed to sort, by split
+    private Map<Long, DataPackage> retainedSplits;
+    
+    // keys of the splits the server no longer needs from this node
+    private Map<Long, Boolean> cancelledSplits;
+    
+    // merged packages waiting to be fetched by the next level's REDUCE
+    private Map<Long, HeldResult> heldResults;
+    private final AtomicLong nextResultId = new AtomicLong();
+    
+    // tells the server this node is alive, and how busy it is
+    private ScheduledExecutorService heartbeatTimer;
+    private long heartbeatMillis;
+    
+    // loads the classes of the jobs this node runs
+    private ClassLoader jobLoader;
+    
     public static String NODE_RMI_DESC = "Node";
     public static final String FAILURE_PROB_VARNAME = "FailureProbability";
     public static final String LOAD_THRESHOLD_VARNAME = "LoadThreshold";
+    public static final String SORT_MEMORY_BUDGET_VARNAME = "SortMemoryBudget";
+    public static final String SPILL_DIRECTORY_VARNAME = "SpillDirectory";
+    public static final String SPILL_COMPRESSION_VARNAME = "SpillCompression";
+    public static final String INTERMEDIATE_MODE_VARNAME = "IntermediateMode";
+    public static final String INTERMEDIATE_DIRECTORY_VARNAME = "IntermediateDirectory";
+    public static final String MAX_CONCURRENT_REQUESTS_VARNAME = "MaxConcurrentRequests";
+    public static final String HEARTBEAT_INTERVAL_VARNAME = "HeartbeatIntervalMillis";
+    public static final String WIRE_CODEC_VARNAME = "WireCodec";
+    public static final String INTERMEDIATE_CODEC_VARNAME = "IntermediateCodec";
+    public static final String JOB_CODEBASE_VARNAME = "JobCodebase";
+    
+    // failed splits whose rows are kept for a retry
+    public static final int RETAINED_SPLITS = 4;
+    // splits sorted elsewhere that this node should skip, if it still can
+    public static final int CANCELLED_SPLITS = 64;
+    // merged packages kept for the REDUCE of the next tree level
+    public static final int HELD_RESULTS = 16;
+    
+    // statuses of a REDUCE reply
+    public static final int REDUCE_MERGED = 0;
+    public static final int REDUCE_HELD = 1;
+    public static final int REDUCE_MISSING = 2;
+    public static final int REDUCE_FAILED = 3;
     // as per the requirements, we need to write out to intermediate sorted file
+    // (one per task, with the node's port and the task number appended)
     public static final String INTERMEDIATE_FILENAME = "intermediate.sorted";
     
     /**
@@ -57,10 +127,97 @@ public class Node extends Thread {
     
     public Node(double failureProbability, double loadThreshold, 
             NetworkLocation serverLocation) {
+        this(failureProbability, loadThreshold, new BaseConfiguration(), 
+                serverLocation);
+    }
+    
+    /**
+     * Node constructor, with the rest of the settings from config
+     */
+    public Node(double failureProbability, double loadThreshold, 
+            Configuration config, NetworkLocation serverLocation) {
         this.failureProbability = failureProbability;
         this.loadThreshold = loadThreshold;
         stats = new NodeStats(location);
         this.serverLocation = serverLocation;
+        wireCodec = DataPackageCodec.Codec.valueOf(config.getString(
+                WIRE_CODEC_VARNAME, DataPackageCodec.Codec.AUTO.name()).toUpperCase());
+        intermediateCodec = DataPackageCodec.Codec.valueOf(config.getString(
+                INTERMEDIATE_CODEC_VARNAME, 
+                DataPackageCodec.Codec.AUTO.name()).toUpperCase());
+        connections = new ConnectionPool(stats.metrics, wireCodec);
+        retainedSplits = Collections.synchronizedMap(
+                new LinkedHashMap<Long, DataPackage>() {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Long, DataPackage> eldest) {
+                        return size() > RETAINED_SPLITS;
+                    }
+                });
+        cancelledSplits = Collections.synchronizedMap(
+                new LinkedHashMap<Long, Boolean>() {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Long, Boolean> eldest) {
+                        return size() > CANCELLED_SPLITS;
+                    }
+                });
+        heldResults = Collections.synchronizedMap(
+                new LinkedHashMap<Long, HeldResult>() {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Long, HeldResult> eldest) {
+                        if (size() <= HELD_RESULTS) {
+                            return false;
+                        }
+                        eldest.getValue().discard();
+                        return true;
+                    }
+                });
+        requestExecutor = new RequestExecutor("NodeRequest", 
+                Math.max(1, config.getInt(MAX_CONCURRENT_REQUESTS_VARNAME, 
+                RequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS)));
+        
+        // a memory budget turns on external sorting for big packages
+        long sortMemoryBudget = config.getLong(SORT_MEMORY_BUDGET_VARNAME, 0);
+        if (sortMemoryBudget > 0) {
+            File spillDirectory = new File(config.getString(
+                    SPILL_DIRECTORY_VARNAME, System.getProperty("java.io.tmpdir")));
+            externalSorter = new ExternalSorter(sortMemoryBudget, spillDirectory, 
+                    config.getBoolean(SPILL_COMPRESSION_VARNAME, false));
+        }
+        
+        intermediateMode = IntermediateWriter.Mode.valueOf(config.getString(
+                INTERMEDIATE_MODE_VARNAME, 
+                IntermediateWriter.Mode.ASYNC.name()).toUpperCase());
+        intermediateDirectory = new File(
+                config.getString(INTERMEDIATE_DIRECTORY_VARNAME, "."));
+        heartbeatMillis = Math.max(1, 
+                config.getLong(HEARTBEAT_INTERVAL_VARNAME, 1000));
+        jobLoader = jobLoader(config.getStringArray(JOB_CODEBASE_VARNAME));
+    }
+    
+    /**
+     * Class loader of job classes: the node's own, or one that looks in the
+     * codebase URLs too (e.g. a class file server, or a directory or jar)
+     */
+    private static ClassLoader jobLoader(String[] codebase) {
+        ArrayList<URL> urls = new ArrayList<URL>();
+        for (String url : codebase) {
+            if (url.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                urls.add(new URL(url.trim()));
+            } catch (MalformedURLException ex) {
+                log.error("Bad job codebase URL: " + ex);
+            }
+        }
+        if (urls.isEmpty()) {
+            return Node.class.getClassLoader();
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), 
+                Node.class.getClassLoader());
     }
     
     /**
@@ -74,7 +231,6 @@ public class Node extends Thread {
             System.exit(1);
         }
         PropertyConfigurator.configure("log4j.properties");
-        log = Logger.getLogger(Node.class);
 
         double failureProbability = 0.0;
         double loadThreshold = 1.0;
@@ -86,9 +242,9 @@ public class Node extends Thread {
         
 
         // get failure probability and load threshold from config file
+        Configuration config = new BaseConfiguration();
         try {
-            PropertiesConfiguration config = 
-                    new PropertiesConfiguration("node.properties");
+            config = new PropertiesConfiguration("node.properties");
             failureProbability = config.getDouble(FAILURE_PROB_VARNAME);
             loadThreshold = config.getDouble(LOAD_THRESHOLD_VARNAME);
         } catch (ConfigurationException ex) {
@@ -98,8 +254,23 @@ public class Node extends Thread {
         log.info("Starting Node with a failure probability of " + 
                 failureProbability + " and load threshold of " + 
                 loadThreshold + " ...");
+        if (config.getLong(SORT_MEMORY_BUDGET_VARNAME, 0) > 0) {
+            log.info("Sorting externally above a memory budget of " 
+                    + config.getLong(SORT_MEMORY_BUDGET_VARNAME) + " bytes");
+        }
+        log.info("Intermediate files are written " + config.getString(
+                INTERMEDIATE_MODE_VARNAME, IntermediateWriter.Mode.ASYNC.name()));
         NetworkLocation serverLocation = new NetworkLocation(args[0], args[1]);        
-        Node node = new Node(failureProbability, loadThreshold, serverLocation);
+        final Node node = new Node(failureProbability, loadThreshold, config, 
+                serverLocation);
+        // let the server know right away instead of waiting for it to
+        // notice the missing heartbeats
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                node.leave();
+            }
+        });
         node.start();
 
     }
@@ -111,16 +282,14 @@ public class Node extends Thread {
     @Override
     public void run() {
         init();
+        if (frameServer == null) {
+            return;
+        }
         try {
             log.info("Started node at " + getLocation());
-            while (true) {
-                log.debug("listening for requests...");
-                Socket socket = ss.accept();
-                log.debug("got request");
-                dispatch(socket);
-            }
-        } catch (ClassNotFoundException ex) {
-            log.error("Class not found: " + ex);
+            // the server and peers keep their connection open, all of them
+            // are served from this thread without blocking
+            frameServer.serve();
         } catch (IOException ex) {
             log.error("IO Exception: " + ex);
         }
@@ -128,63 +297,178 @@ public class Node extends Thread {
     
     /**
      * Dispatch according to protocol
+     * reads the request body from in and writes the reply body to out
      */
-    private void dispatch(Socket socket) throws IOException, ClassNotFoundException {
-        log.debug("dispatching according to protocol");
-        
-        ObjectInputStream ois 
-                = new ObjectInputStream(socket.getInputStream());
-        
-        // get the protocol to follow
-        Protocol protocol = (Protocol) ois.readObject();
+    @Override
+    public void dispatch(Protocol protocol, DataInputStream in, 
+            DataOutputStream out) throws IOException {
         log.debug("using protocol: " + protocol);
+        // replies to the server end with the time spent serving them, so
+        // the server can tell the network's share of the round trip
+        long received = System.nanoTime();
+        Metrics metrics = stats.metrics;
         
         if (protocol.getType().equals(Protocol.Type.SORTDATA)) {
             log.info("got request to sort");
+            long splitKey = in.readLong();
             log.debug("reading input DP");
-            DataPackage inDP = (DataPackage) ois.readObject();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
             log.debug("reading node list");
-            ArrayList<NetworkLocation> nodeList 
-                    = (ArrayList<NetworkLocation>) ois.readObject();
+            ArrayList<NetworkLocation> nodeList = NetworkLocation.readList(in);
+            metrics.record(Metrics.Phase.SERIALIZE, received);
             log.debug("sorting rows");
-            DataPackage outDP = sortRows(inDP, nodeList);
-            ObjectOutputStream oos 
-                    = new ObjectOutputStream(socket.getOutputStream());
+            DataPackage outDP = sortSplit(splitKey, inDP, nodeList);
             log.debug("writing sorted DP");
-            oos.writeObject(outDP);
-            oos.flush();
+            long start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, start);
+            out.writeLong(System.nanoTime() - received);
+        } else if (protocol.getType().equals(Protocol.Type.SORTRETAINED)) {
+            log.info("got request to retry a split");
+            long splitKey = in.readLong();
+            ArrayList<NetworkLocation> nodeList = NetworkLocation.readList(in);
+            DataPackage inDP = retainedSplits.remove(splitKey);
+            // the rows may have been pushed out by later failures
+            out.writeBoolean(inDP != null);
+            if (inDP != null) {
+                DataPackage outDP = sortSplit(splitKey, inDP, nodeList);
+                long start = System.nanoTime();
+                DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+                metrics.record(Metrics.Phase.SERIALIZE, start);
+            }
+            out.writeLong(System.nanoTime() - received);
+        } else if (protocol.getType().equals(Protocol.Type.CANCELSPLIT)) {
+            long splitKey = in.readLong();
+            log.info("split " + splitKey + " was sorted elsewhere, cancelling");
+            cancelledSplits.put(splitKey, Boolean.TRUE);
+            retainedSplits.remove(splitKey);
         } else if (protocol.getType().equals(Protocol.Type.SORTFORPEER)) {
             log.info("got request to sort for peer");
             log.debug("reading input DP");
-            DataPackage inDP = (DataPackage) ois.readObject();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, received);
             log.debug("sorting rows");
             DataPackage outDP = sortRowsForPeer(inDP);
-            ObjectOutputStream oos
-                    = new ObjectOutputStream(socket.getOutputStream());
             log.debug("writing sorted DP");
-            oos.writeObject(outDP);
-            oos.flush();
+            long start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, start);
         } else if (protocol.getType().equals(Protocol.Type.STATS)) {
             log.info("got a request for stats");
-            ObjectOutputStream oos 
-                    = new ObjectOutputStream(socket.getOutputStream());
+            ObjectOutputStream oos = new ObjectOutputStream(out);
             log.debug("writing stats");
-            oos.writeObject(stats);
+            oos.writeObject(getStats());
             oos.flush();
         } else if (protocol.getType().equals(Protocol.Type.REDUCE)) {
-            // TDOO:
             log.info("got request to reduce");
             log.debug("reading DP partitions");
-            ArrayList<DataPackage> dpPartitions 
-                    = (ArrayList<DataPackage>) ois.readObject();
-            ArrayList<DataRow> outRows = reduce(dpPartitions);
-            ObjectOutputStream oos 
-                    = new ObjectOutputStream(socket.getOutputStream());
+            boolean hold = in.readBoolean();
+            int numPartitions = in.readInt();
+            // inputs are taken one at a time, and spilled once they are
+            // over the sort memory budget
+            MergeInputs inputs = new MergeInputs(externalSorter);
+            int missing = -1;
+            try {
+                for (int i = 0; i < numPartitions && missing < 0; i++) {
+                    if (!in.readBoolean()) {
+                        inputs.add(DataPackageCodec.read(in, metrics));
+                        continue;
+                    }
+                    // merged by a node of the level below, which still holds it
+                    NetworkLocation holder = NetworkLocation.readFrom(in);
+                    long resultId = in.readLong();
+                    if (!fetchResult(holder, resultId, inputs)) {
+                        missing = i;
+                    }
+                }
+            } catch (IOException ex) {
+                inputs.discard();
+                throw ex;
+            }
+            metrics.record(Metrics.Phase.SERIALIZE, received);
             log.debug("writing reduced rows");
-            oos.writeObject(outRows);
-            oos.flush();
+            if (missing >= 0) {
+                inputs.discard();
+                out.writeInt(REDUCE_MISSING);
+                out.writeInt(missing);
+            } else if (hold) {
+                HeldResult held = mergeToHold(inputs);
+                if (held == null) {
+                    out.writeInt(REDUCE_FAILED);
+                } else {
+                    long resultId = nextResultId.incrementAndGet();
+                    heldResults.put(resultId, held);
+                    out.writeInt(REDUCE_HELD);
+                    out.writeLong(resultId);
+                }
+            } else {
+                out.writeInt(REDUCE_MERGED);
+                mergeToReply(inputs, out, protocol.getCodec());
+            }
+            out.writeLong(System.nanoTime() - received);
+        } else if (protocol.getType().equals(Protocol.Type.FETCHRESULT)) {
+            log.info("got request for a held result");
+            // each result is merged into exactly one group above it
+            HeldResult held = heldResults.remove(in.readLong());
+            out.writeBoolean(held != null);
+            if (held != null) {
+                long start = System.nanoTime();
+                try {
+                    held.writeTo(out, protocol.getCodec(), metrics);
+                } finally {
+                    held.discard();
+                }
+                metrics.record(Metrics.Phase.SERIALIZE, start);
+            }
+        } else if (protocol.getType().equals(Protocol.Type.SELECT)) {
+            log.info("got request to select");
+            int count = in.readInt();
+            boolean largest = in.readBoolean();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, received);
+            DataPackage outDP = selectRows(inDP, count, largest);
+            log.debug("writing selected DP");
+            long start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, start);
+            out.writeLong(System.nanoTime() - received);
+        } else if (protocol.getType().equals(Protocol.Type.MAPJOB)) {
+            log.info("got request to map");
+            JobSpec job = JobSpec.parse(in.readUTF());
+            int numReducers = in.readInt();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, received);
+            ArrayList<DataPackage> outDPs = mapJob(job, inDP, numReducers);
+            log.debug("writing partitioned pairs");
+            long start = System.nanoTime();
+            // a failed task replies with no packages
+            out.writeInt((outDPs == null) ? -1 : outDPs.size());
+            if (outDPs != null) {
+                for (DataPackage outDP : outDPs) {
+                    DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+                }
+            }
+            metrics.record(Metrics.Phase.SERIALIZE, start);
+            out.writeLong(System.nanoTime() - received);
+        } else if (protocol.getType().equals(Protocol.Type.REDUCEJOB)) {
+            log.info("got request to reduce a job");
+            JobSpec job = JobSpec.parse(in.readUTF());
+            int numPartitions = in.readInt();
+            ArrayList<DataPackage> dpPartitions 
+                    = new ArrayList<DataPackage>(numPartitions);
+            for (int i = 0; i < numPartitions; i++) {
+                dpPartitions.add(DataPackageCodec.read(in, metrics));
+            }
+            metrics.record(Metrics.Phase.SERIALIZE, received);
+            DataPackage outDP = reduceJob(job, dpPartitions);
+            log.debug("writing reduced pairs");
+            long start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.SERIALIZE, start);
+            out.writeLong(System.nanoTime() - received);
         } else {
             log.error("Unknown protocol: " + protocol);
+            throw new IOException("Unknown protocol: " + protocol);
         }
         log.debug("done");
     }
@@ -196,26 +480,116 @@ public class Node extends Thread {
      */
     private void init() {
         try {
-            ss = new ServerSocket(0);
-            int port = ss.getLocalPort();
+            frameServer = new FrameServer(this, requestExecutor, stats.metrics);
+            int port = frameServer.getPort();
             // get my ip address
             String ip = Utils.getIPAddress();
             // create NetworkLocation with this info
             location = new NetworkLocation(ip, port);
+            stats.location = location;
+            // nodes may share a directory, so their files carry the port
+            intermediateWriter = new IntermediateWriter(intermediateMode, 
+                    intermediateDirectory, INTERMEDIATE_FILENAME + "." + port, 
+                    intermediateCodec, stats);
 
             // add node's info to server list
-            Protocol protocol = new Protocol(Protocol.Type.NODEJOIN);
-            Socket socket = new Socket(serverLocation.ip, serverLocation.port);
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-            log.debug("writing protocol");
-            oos.writeObject(protocol);
-            oos.flush();
+            Frame.BodyWriter request = new Frame.BodyWriter();
             log.debug("writing location");
-            oos.writeObject(this.location);
-            oos.flush();
+            this.location.writeTo(request);
+            connections.call(serverLocation, Protocol.Type.NODEJOIN, 
+                    request.toByteArray());
         } catch (IOException ex) {
             log.error("IO exception: " + ex);
         }
+        if (location != null) {
+            // a node that couldn't join is added by its first heartbeat
+            startHeartbeats();
+        }
+    }
+    
+    /**
+     * Send a heartbeat to the server every heartbeatMillis
+     */
+    private void startHeartbeats() {
+        heartbeatTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Heartbeat");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        heartbeatTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Send one heartbeat with this node's load, processors, request
+     * queue depth and stats
+     */
+    private void heartbeat() {
+        try {
+            Frame.BodyWriter request = new Frame.BodyWriter();
+            location.writeTo(request);
+            double load = getSystemLoad();
+            stats.recordLoad(load);
+            request.writeDouble(load);
+            request.writeInt(Runtime.getRuntime().availableProcessors());
+            request.writeInt(requestExecutor.getQueueDepth());
+            // the server keeps the latest stats of every node, so it never
+            // has to ask for them
+            ObjectOutputStream oos = new ObjectOutputStream(request);
+            oos.writeObject(getStats());
+            oos.flush();
+            connections.call(serverLocation, Protocol.Type.HEARTBEAT, 
+                    request.toByteArray());
+        } catch (IOException ex) {
+            // the server may be restarting, reconnect on the next beat
+            log.warn("Unable to send heartbeat: " + ex);
+            connections.invalidate(serverLocation);
+        }
+    }
+    
+    /**
+     * Tell the server this node is going away
+     */
+    public void leave() {
+        if (heartbeatTimer != null) {
+            heartbeatTimer.shutdownNow();
+        }
+        if (location == null) {
+            return;
+        }
+        try {
+            Frame.BodyWriter request = new Frame.BodyWriter();
+            location.writeTo(request);
+            connections.call(serverLocation, Protocol.Type.NODELEAVE, 
+                    request.toByteArray());
+        } catch (IOException ex) {
+            log.warn("Unable to leave: " + ex);
+        }
+    }
+    
+    /**
+     * Leave the server, stop serving and release the node's threads and
+     * connections, for a node started inside another program
+     */
+    public void shutdown() {
+        leave();
+        if (frameServer != null) {
+            try {
+                frameServer.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close node socket: " + ex);
+            }
+        }
+        requestExecutor.shutdown();
+        connections.closeAll();
     }
     
     
@@ -233,6 +607,30 @@ public class Node extends Thread {
         return this.location.ip;
     }
     
+    /**
+     * Sort a split for the server, keeping its rows if the sort fails so
+     * the server can retry it here without sending them again. A split the
+     * server has cancelled is checked for before sorting and before replying.
+     */
+    private DataPackage sortSplit(long splitKey, DataPackage inDP, 
+            ArrayList<NetworkLocation> nodeList) {
+        // a cancelled split is answered with nothing, so the node is free
+        // again as soon as possible
+        if (cancelledSplits.containsKey(splitKey)) {
+            log.info("skipping cancelled split " + splitKey);
+            return null;
+        }
+        DataPackage outDP = sortRows(inDP, nodeList);
+        if (cancelledSplits.containsKey(splitKey)) {
+            log.info("not sending back cancelled split " + splitKey);
+            return null;
+        }
+        if (outDP == null) {
+            retainedSplits.put(splitKey, inDP);
+        }
+        return outDP;
+    }
+    
     /**
      * sort function to be called by Server
      */
@@ -246,12 +644,7 @@ public class Node extends Thread {
         /*
          * update stats
          */
-        stats.currentLoad = systemLoad;
-        // assure no divide by zeroes
-        if (stats.numberOfMigrations != 0) {
-            stats.averageLoad = stats.averageLoad 
-                    + systemLoad/stats.numberOfMigrations;
-        }
+        stats.recordLoad(systemLoad);
         
         log.info("Current system load = " + systemLoad);
         log.info("Load threshold = " + loadThreshold);
@@ -263,7 +656,7 @@ public class Node extends Thread {
                 if (!location.equals(netLocation)) {
                     DataPackage outDP = tryPeerForSort(inDP, netLocation);
                     if (outDP != null) {
-                        stats.numberOfMigrations++;
+                        stats.numberOfMigrations.incrementAndGet();
                         log.info("Node at " + netLocation + 
                                 " taking over for peer with too much load");
                         return outDP;
@@ -279,34 +672,54 @@ public class Node extends Thread {
         return sortRows(inDP);
     }
     
+    /*
+     * Function to add a merged package held by this node or a peer to the
+     * inputs of a merge
+     * returns false if the holder is unreachable or no longer has it
+     */
+    private boolean fetchResult(NetworkLocation holder, long resultId, 
+            MergeInputs inputs) throws IOException {
+        if (holder.equals(getLocation())) {
+            HeldResult held = heldResults.remove(resultId);
+            if (held != null) {
+                held.addTo(inputs);
+            }
+            return held != null;
+        }
+        Frame reply;
+        try {
+            log.debug("fetching result " + resultId + " from " + holder);
+            Frame.BodyWriter request = new Frame.BodyWriter();
+            request.writeLong(resultId);
+            reply = connections.call(
+                    holder, Protocol.Type.FETCHRESULT, request.toByteArray());
+        } catch (IOException ex) {
+            log.error("io exception: " + ex);
+            return false;
+        }
+        DataInputStream in = reply.bodyStream();
+        if (!in.readBoolean()) {
+            return false;
+        }
+        // spilled block by block if it takes the merge over the budget
+        inputs.addBlocks(in, stats.metrics);
+        return true;
+    }
+    
     /*
      * Function to get a peer to attempt a sort if current node has too much load
      * returns sorted DP if peer was able, otherwise returns null
      */
     private DataPackage tryPeerForSort(DataPackage inDP, NetworkLocation n) {
         try {
-            DataPackage outDP = null;
-
-                log.debug("requesting peer (" + n + ") to sort");
-                Socket peerSocket = new Socket(n.ip, n.port);
-                Protocol protocol = new Protocol(Protocol.Type.SORTFORPEER);
-                ObjectOutputStream oos
-                        = new ObjectOutputStream(peerSocket.getOutputStream());
-                log.debug("sending protocol");
-                oos.writeObject(protocol);
-                oos.flush();
-                log.debug("sending data package");
-                oos.writeObject(inDP);
-                oos.flush();
-                log.debug("getting sorted DP");
-                ObjectInputStream ois 
-                        = new ObjectInputStream(peerSocket.getInputStream());
-                outDP = (DataPackage) ois.readObject();
-                return outDP;
-        } catch (ClassNotFoundException ex) {
-            log.error("class not found: " + ex);
-        } catch (UnknownHostException ex) {
-            log.error("unknown host: " + ex);
+            log.debug("requesting peer (" + n + ") to sort");
+            Frame.BodyWriter request = new Frame.BodyWriter();
+            log.debug("sending data package");
+            DataPackageCodec.write(request, inDP, wireCodec, stats.metrics);
+            Frame reply = connections.call(
+                    n, Protocol.Type.SORTFORPEER, request.toByteArray());
+            log.debug("getting sorted DP");
+            return DataPackageCodec.read(reply.bodyStream(), stats.metrics);
         } catch (IOException ex) {
             log.error("io exception: " + ex);
         }
@@ -318,7 +731,7 @@ public class Node extends Thread {
      */
     public DataPackage sortRowsForPeer(DataPackage inDP) {
         // update stats
-        stats.numberOfTasksSeen++;
+        stats.numberOfTasksSeen.incrementAndGet();
         
         /* 
          * If this node can manage, sort. otherwise return null
@@ -340,21 +753,28 @@ public class Node extends Thread {
          * the "failure probability, then fail this sort operation 
          * (return null)
          */
-        Random rand = new Random();
-        double randVal = rand.nextDouble();
-        // failure probability of 0.0 should be no failures
-        if (randVal > 1.0 - this.failureProbability) {
-            log.info("(Forced) Node failure at " + 
-                    this.location + " during sort.");
-            stats.numberOfFaults++;
+        if (forcedFailure("sort")) {
             return null;
         }
         // if the node gets here, it didn't fail
-        ArrayList<DataRow> rows = inDP.getRows();
-        Collections.sort(rows);
-        DataPackage outDP = new DataPackage(rows);
+        // sort the primitive columns in place, no per-row objects needed
+        long start = System.nanoTime();
+        DataPackage outDP = inDP;
+        if (externalSorter != null 
+                && externalSorter.exceedsBudget(outDP.getSize())) {
+            try {
+                externalSorter.sortInPlace(outDP);
+            } catch (IOException ex) {
+                log.error("external sort failed, sorting in memory: " + ex);
+                outDP.sort();
+            }
+        } else {
+            outDP.sort();
+        }
         // set sorted to true to show this DP sort was a success
         outDP.sorted(true); 
+        stats.metrics.record(Metrics.Phase.SORT, start);
+        stats.metrics.addRows(outDP.getSize());
         if (!outDP.isSorted()) {
             log.fatal(
                     "This should never happen - " +
@@ -362,14 +782,89 @@ public class Node extends Thread {
         }
         
         /**
-         * write DP out to intermediate file as per reqs
+         * write DP out to intermediate file as per reqs, off the
+         * response path unless the mode asks for a durable write
          */
-        outDP.writeToFile(INTERMEDIATE_FILENAME);
+        intermediateWriter.persist(outDP);
         
         // now return the actual sorted data package
         return outDP;
     }
     
+    /**
+     * Whether to fail this task, with the failure probability
+     */
+    private boolean forcedFailure(String task) {
+        Random rand = new Random();
+        double randVal = rand.nextDouble();
+        // failure probability of 0.0 should be no failures
+        if (randVal > 1.0 - this.failureProbability) {
+            log.info("(Forced) Node failure at " + 
+                    this.location + " during " + task + ".");
+            stats.numberOfFaults.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Select the count smallest (or largest) rows, in order, or null if
+     * the selection failed
+     */
+    public DataPackage selectRows(DataPackage inDP, int count, boolean largest) {
+        stats.numberOfTasksSeen.incrementAndGet();
+        if (forcedFailure("select")) {
+            return null;
+        }
+        long start = System.nanoTime();
+        DataPackage outDP = inDP.select(count, largest);
+        stats.metrics.record(Metrics.Phase.SORT, start);
+        stats.metrics.addRows(inDP.getSize());
+        intermediateWriter.persist(outDP);
+        return outDP;
+    }
+    
+    /**
+     * Run a map task of a job, returns its pairs partitioned for
+     * numReducers reduce tasks, or null if it failed
+     */
+    public ArrayList<DataPackage> mapJob(JobSpec job, DataPackage split, 
+            int numReducers) {
+        stats.numberOfTasksSeen.incrementAndGet();
+        if (forcedFailure("map of " + job)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        ArrayList<DataPackage> partitions;
+        try {
+            partitions = JobRunner.map(job.newJob(jobLoader), split, numReducers);
+        } catch (RuntimeException ex) {
+            log.error("map of " + job + " failed: " + ex);
+            return null;
+        }
+        stats.metrics.record(Metrics.Phase.MAP, start);
+        stats.metrics.addRows(split.getSize());
+        return partitions;
+    }
+    
+    /**
+     * Run a reduce task of a job over its partition of every map task's
+     * pairs, returns the output pairs sorted by key, or null if it failed
+     */
+    public DataPackage reduceJob(JobSpec job, ArrayList<DataPackage> partitions) {
+        long start = System.nanoTime();
+        DataPackage reduced;
+        try {
+            reduced = JobRunner.reduce(job.newJob(jobLoader), partitions);
+        } catch (RuntimeException ex) {
+            log.error("reduce of " + job + " failed: " + ex);
+            return null;
+        }
+        stats.metrics.record(Metrics.Phase.REDUCE, start);
+        stats.metrics.addRows(reduced.getSize());
+        return reduced;
+    }
+    
     /**
      * Get current system load
      */
@@ -377,7 +872,7 @@ public class Node extends Thread {
         final OperatingSystemMXBean osBean 
                 = ManagementFactory.getOperatingSystemMXBean();
         double load = osBean.getSystemLoadAverage();
-        log.info("Load: " + load);
+        log.debug("Load: " + load);
         return load;
     }
 
@@ -390,81 +885,137 @@ public class Node extends Thread {
     
     /**
      * reduce functionality
+     * merges all of the sorted partitions in a single k-way pass, in memory
+     * since the merged package is returned whole (REDUCE requests go
+     * through mergeToHold and mergeToReply, which spill instead)
      */
-    public ArrayList<DataRow> reduce(ArrayList<DataPackage> partitions) {
-        
-        // return list
-        ArrayList<DataRow> reducedRows = new ArrayList<DataRow>();
-        
-        int numPartitions = partitions.size();
-        
-        // throw all of the rows in the first rowset into the reduced rows
-        reducedRows.addAll(partitions.get(0).getRows());
-        
-        // then merge successive rowsets into existing one (if they exist)
-        for (int partitionNum=1; partitionNum < numPartitions; partitionNum++) {
-            ArrayList<DataRow> currentPartitionRows 
-                    = partitions.get(partitionNum).getRows();
-                    
-            reducedRows = merge(reducedRows, currentPartitionRows);
+    public DataPackage reduce(ArrayList<DataPackage> partitions) {
+        long start = System.nanoTime();
+        DataPackage merged = PartitionMerger.merge(partitions);
+        stats.metrics.record(Metrics.Phase.MERGE, start);
+        stats.metrics.addRows(merged.getSize());
+        return merged;
+    }
+    
+    /**
+     * Merge for the next reduce level, which fetches the result later.
+     * Spilled inputs are merged into a run file, so the result is never
+     * built in memory. Returns null if the merge failed.
+     */
+    private HeldResult mergeToHold(MergeInputs inputs) {
+        long start = System.nanoTime();
+        HeldResult held;
+        if (!inputs.isSpilled()) {
+            held = new HeldResult(inputs.merge());
+        } else {
+            ExternalSorter.RunWriter writer = null;
+            try {
+                writer = externalSorter.newRun();
+                inputs.mergeTo(writer);
+                held = new HeldResult(writer.finish(), writer.getRows(), 
+                        writer.getKeySpec());
+            } catch (IOException ex) {
+                log.error("external merge failed: " + ex);
+                if (writer != null) {
+                    writer.discard();
+                }
+                inputs.discard();
+                return null;
+            }
         }
-        
-        return reducedRows;
+        stats.metrics.record(Metrics.Phase.MERGE, start);
+        stats.metrics.addRows(inputs.getRows());
+        return held;
     }
     
     /**
-     * Merge two sets of rows that are each *sorted* already
+     * Merge straight into a reply, as a block stream written a block at a
+     * time as the merge produces it
      */
-    private ArrayList<DataRow> merge(ArrayList<DataRow> le, ArrayList<DataRow> ri) {
-        // create return list
-        ArrayList<DataRow> mergedRows = new ArrayList<DataRow>();
+    private void mergeToReply(MergeInputs inputs, DataOutputStream out, 
+            DataPackageCodec.Codec codec) throws IOException {
+        long start = System.nanoTime();
+        DataPackageCodec.BlockWriter writer = new DataPackageCodec.BlockWriter(
+                out, inputs.getRows(), codec, stats.metrics);
+        try {
+            inputs.mergeTo(writer);
+        } finally {
+            inputs.discard();
+        }
+        writer.finish();
+        // the merge and the encoding of its blocks are interleaved, so
+        // this counts both as merge time
+        stats.metrics.record(Metrics.Phase.MERGE, start);
+        stats.metrics.addRows(inputs.getRows());
+    }
+    
+    /**
+     * A merged package kept for the next reduce level: in memory, or in a
+     * run file when its inputs were over the sort memory budget
+     */
+    private static class HeldResult {
+        private final DataPackage rows;
+        private final File run;
+        private final long size;
+        private final KeySpec keySpec;
+        
+        HeldResult(DataPackage rows) {
+            this.rows = rows;
+            this.run = null;
+            this.size = rows.getSize();
+            this.keySpec = rows.getKeySpec();
+        }
         
-        // this is the index into the mergedRows array list
-        int mergedIdx = 0;
-        // indices into the "left" and "right" rows
-        int idxL = 0;
-        int idxR = 0;
+        HeldResult(File run, long size, KeySpec keySpec) {
+            this.rows = null;
+            this.run = run;
+            this.size = size;
+            this.keySpec = keySpec;
+        }
         
-        while (mergedIdx < le.size() + ri.size()) {
-            if (idxR >= ri.size()) {
-                // we've exhausted all values in the right rows, 
-                // so just add the rest of the left
-                mergedRows.addAll(Utils.getRest(idxL, le));
-                break;
-            } else if (idxL >= le.size()) {
-                // we've exhausted all values in the left rows,
-                // so add the rest of the right
-                //mergedRows.addAll(idxR, ri);
-                mergedRows.addAll(Utils.getRest(idxR, ri));
-                break;
+        /**
+         * Hand the result to a merge on this node, which takes over its
+         * run file
+         */
+        void addTo(MergeInputs inputs) throws IOException {
+            if (rows != null) {
+                inputs.add(rows);
             } else {
-                DataRow riRow = ri.get(idxR);
-                DataRow leRow = le.get(idxL);
-                
-                // if left row is smaller than right row
-                if (leRow.compareTo(riRow) < 0) {
-                    // insert it into merged rows
-                    mergedRows.add(leRow);
-                    // increment the merged index
-                    mergedIdx++;
-                    // and increment the left index (to compare with exists, bigger, right val)
-                    idxL++;
-                } else {
-                    // reversed
-                    mergedRows.add(riRow);
-                    mergedIdx++;
-                    idxR++;
-                }
+                inputs.addRun(run, size, keySpec);
+            }
+        }
+        
+        /**
+         * Write the result as a block stream, a run a block at a time
+         */
+        void writeTo(DataOutputStream out, DataPackageCodec.Codec codec, 
+                Metrics metrics) throws IOException {
+            if (rows != null) {
+                DataPackageCodec.writeBlocks(out, rows, codec, metrics);
+                return;
+            }
+            DataPackageCodec.BlockWriter writer = 
+                    new DataPackageCodec.BlockWriter(out, size, codec, metrics);
+            ExternalSorter.readRun(run, writer);
+            writer.finish();
+        }
+        
+        /**
+         * Delete the run file, if there is one
+         */
+        void discard() {
+            if (run != null && run.exists() && !run.delete()) {
+                log.warn("Unable to delete run file " + run);
             }
         }
-
-        return mergedRows;
     }
     
     /**
-     * RMI call to Get this node's stats
+     * RMI call to Get this node's stats, with the queue depths as of now
      */
     public NodeStats getStats() {
+        stats.requestQueueDepth = requestExecutor.getQueueDepth();
+        stats.maxRequestQueueDepth = requestExecutor.getMaxQueueDepth();
         return stats;
     }
     
@@ -12,7 +12,7 @@ public interface NodeImpl extends Remote {
     DataPackage sortRows(DataPackage inDP, ArrayList<NetworkLocation> nodeList) 
             throws RemoteException;
     DataPackage sortRowsForPeer(DataPackage inDP) throws RemoteException;
-    public ArrayList<DataRow> reduce(ArrayList<DataPackage> partitions) 
+    public DataPackage reduce(ArrayList<DataPackage> partitions) 
             throws RemoteException;
     public NodeStats getStats() throws RemoteException;
 }
@@ -1,35 +1,60 @@
 package pa3;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * NodeStats
  * class to contain information about a node to display statistics
+ * Counters are atomic since a node serves many requests at once.
  * @author mark
  */
 public class NodeStats implements Serializable {
     
     /**
-     * Load statistics
+     * Load statistics, averageLoad is the mean of every load sampled
      */
-    public double currentLoad;
-    public double averageLoad;
+    public volatile double currentLoad;
+    public volatile double averageLoad;
+    private long loadSamples;
+    private double loadTotal;
     
     /**
      * The number of times this node has been asked to do a sort task
      */
-    public int numberOfTasksSeen;
+    public final AtomicInteger numberOfTasksSeen = new AtomicInteger();
     
     /*
      * the number of times this node has had to request help 
      * from its peers due to excess system load
      */
-    public int numberOfMigrations; 
+    public final AtomicInteger numberOfMigrations = new AtomicInteger(); 
     
     /**
      * number of times this node has gone down
      */
-    public int numberOfFaults;
+    public final AtomicInteger numberOfFaults = new AtomicInteger();
+    
+    /**
+     * Intermediate files written, the total time spent writing them, and
+     * how much of that time was spent off the sort's response path
+     */
+    public final AtomicInteger numberOfIntermediateWrites = new AtomicInteger();
+    public final AtomicLong intermediateWriteMillis = new AtomicLong();
+    public final AtomicLong intermediateMillisSaved = new AtomicLong();
+    
+    /**
+     * Requests waiting for a worker when the stats were taken, and the
+     * most that have waited at once
+     */
+    public volatile int requestQueueDepth;
+    public volatile int maxRequestQueueDepth;
+    
+    /**
+     * Where this node's time goes, by phase
+     */
+    public final Metrics metrics = new Metrics();
     
     /**
      * Node location that these stats are associated with
@@ -42,16 +67,34 @@ public class NodeStats implements Serializable {
     public NodeStats(NetworkLocation location) { 
         currentLoad = 0.0;
         averageLoad = 0.0;
-        numberOfTasksSeen = 0;
-        numberOfMigrations = 0;
         this.location = location;
     }
     
+    /**
+     * Record a sample of the system load. Negative samples mean the load
+     * isn't available and are left out of the average.
+     */
+    public synchronized void recordLoad(double load) {
+        currentLoad = load;
+        if (load < 0) {
+            return;
+        }
+        loadSamples++;
+        loadTotal += load;
+        averageLoad = loadTotal / loadSamples;
+    }
+    
     public String toString() {
         return  "  :: Node Stats :: \n" + 
                 ". current load         = " + currentLoad + "\n" + 
                 ". average load         = " + averageLoad + "\n" + 
                 ". number of tasks seen = " + numberOfTasksSeen + "\n" + 
-                ". number of migrations = " + numberOfMigrations + "\n\n";
+                ". number of migrations = " + numberOfMigrations + "\n" + 
+                ". intermediate writes  = " + numberOfIntermediateWrites + 
+                " (" + intermediateWriteMillis + "ms, " + 
+                intermediateMillisSaved + "ms off the sort path)\n" + 
+                ". request queue depth  = " + requestQueueDepth + 
+                " (max " + maxRequestQueueDepth + ")\n" + 
+                metrics + "\n";
     }
 }
@@ -0,0 +1,14 @@
+package pa3;
+
+/**
+ * OrderedOutput
+ * Optional for a job whose output keys should be ordered as numbers
+ * rather than as strings.
+ */
+public interface OrderedOutput {
+
+    /**
+     * Type of the output keys, INT, LONG or DOUBLE
+     */
+    KeySpec.Type getOutputKeyType();
+}
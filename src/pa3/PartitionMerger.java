@@ -0,0 +1,249 @@
+package pa3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PartitionMerger
+ * Single pass k-way merge of sorted DataPackages using a loser tree over
+ * one cursor per partition. Each output row costs about log2(k) key
+ * comparisons and is written once into presized output columns. A
+ * comparison is of the normalized keys, and only looks at the rows' text
+ * on a tie when the KeySpec isn't exact.
+ * Rows with equal keys come out in partition order, so the merge is stable.
+ *
+ * Subclasses can feed a source in blocks (e.g. from a run file) by
+ * overriding refill, and the output can be taken in blocks as well.
+ */
+public class PartitionMerger {
+
+    protected final int k;
+    protected final KeySpec keySpec;
+    private final boolean exact;
+    protected final long[][] keys;
+    protected final String[][] payloads;
+    protected final int[] sizes;
+    protected final int[] cursors;
+
+    // tree[0] holds the current winner, tree[1..k-1] the loser at each match
+    private final int[] tree;
+    // sources with rows left, once the tree has been built
+    private int live;
+    private boolean started;
+
+    /**
+     * Constructor for k sources, filled in by the subclass
+     */
+    protected PartitionMerger(int k, KeySpec keySpec) {
+        this.k = k;
+        this.keySpec = keySpec;
+        this.exact = keySpec.isExact();
+        keys = new long[k][];
+        payloads = new String[k][];
+        sizes = new int[k];
+        cursors = new int[k];
+        tree = new int[k];
+    }
+
+    /**
+     * Merger over partitions that are each sorted already
+     */
+    PartitionMerger(List<DataPackage> partitions) {
+        this(partitions.size(), partitions.get(0).getKeySpec());
+        for (int i = 0; i < k; i++) {
+            DataPackage dp = partitions.get(i);
+            keys[i] = dp.keyColumn();
+            payloads[i] = dp.payloadColumn();
+            sizes[i] = dp.getSize();
+        }
+    }
+
+    /**
+     * Merge partitions that are each sorted already into one sorted package
+     */
+    public static DataPackage merge(List<DataPackage> partitions) {
+        int total = 0;
+        boolean anyPayload = false;
+        for (DataPackage dp : partitions) {
+            total += dp.getSize();
+            anyPayload |= dp.payloadColumn() != null;
+        }
+        long[] outKeys = new long[total];
+        String[] outPayload = anyPayload ? new String[total] : null;
+
+        if (partitions.size() == 1) {
+            DataPackage only = partitions.get(0);
+            System.arraycopy(only.keyColumn(), 0, outKeys, 0, total);
+            if (outPayload != null) {
+                System.arraycopy(only.payloadColumn(), 0, outPayload, 0, total);
+            }
+        } else if (partitions.size() > 1) {
+            try {
+                new PartitionMerger(partitions).mergeInto(outKeys, outPayload);
+            } catch (IOException ex) {
+                // in-memory partitions never need a refill
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        KeySpec keySpec = partitions.isEmpty() ? KeySpec.INT
+                : partitions.get(0).getKeySpec();
+        DataPackage merged = new DataPackage(outKeys, outPayload, total, keySpec);
+        merged.sorted(true);
+        return merged;
+    }
+
+    /**
+     * Load the next block of source s into keys/payloads/sizes and reset its
+     * cursor. Returns false once the source has no more rows.
+     */
+    protected boolean refill(int s) throws IOException {
+        return false;
+    }
+
+    /**
+     * Merge every source into the output columns, returns the row count.
+     * outPayload may be null if no source has a payload.
+     */
+    protected int mergeInto(long[] outKeys, String[] outPayload) throws IOException {
+        return mergeSome(outKeys, outPayload, outKeys.length);
+    }
+
+    /**
+     * Merge the sources into blocks of up to blockRows rows, handing each
+     * to sink as soon as it is full, so the output is never held whole
+     */
+    protected void mergeTo(BlockSink sink, int blockRows) throws IOException {
+        while (true) {
+            long[] blockKeys = new long[blockRows];
+            String[] blockPayload = new String[blockRows];
+            int n = mergeSome(blockKeys, blockPayload, blockRows);
+            if (n == 0) {
+                return;
+            }
+            boolean anyPayload = false;
+            for (int i = 0; i < n && !anyPayload; i++) {
+                anyPayload = blockPayload[i] != null;
+            }
+            DataPackage block = new DataPackage(blockKeys, 
+                    anyPayload ? blockPayload : null, n, keySpec);
+            block.sorted(true);
+            sink.accept(block);
+        }
+    }
+
+    /**
+     * Merge up to max more rows into the output columns, carrying on from
+     * where the last call stopped. Returns the rows written, 0 once every
+     * source is used up.
+     */
+    private int mergeSome(long[] outKeys, String[] outPayload, int max) 
+            throws IOException {
+        if (!started) {
+            tree[0] = initWinner(1);
+            for (int i = 0; i < k; i++) {
+                if (sizes[i] > 0) {
+                    live++;
+                }
+            }
+            started = true;
+        }
+        int out = 0;
+
+        // merge until only one source still has rows
+        while (live > 1 && out < max) {
+            int w = tree[0];
+            int pos = cursors[w]++;
+            outKeys[out] = keys[w][pos];
+            if (outPayload != null) {
+                outPayload[out] = (payloads[w] == null) ? null : payloads[w][pos];
+            }
+            out++;
+            if (cursors[w] == sizes[w] && !refill(w)) {
+                live--;
+            }
+            replay(w);
+        }
+
+        // then the rest of the last one can be copied in bulk
+        if (live == 1) {
+            int w = tree[0];
+            while (out < max) {
+                int remaining = Math.min(sizes[w] - cursors[w], max - out);
+                System.arraycopy(keys[w], cursors[w], outKeys, out, remaining);
+                if (outPayload != null && payloads[w] != null) {
+                    System.arraycopy(payloads[w], cursors[w], outPayload, out, remaining);
+                } else if (outPayload != null) {
+                    Arrays.fill(outPayload, out, out + remaining, null);
+                }
+                out += remaining;
+                cursors[w] += remaining;
+                if (cursors[w] == sizes[w] && !refill(w)) {
+                    live = 0;
+                    break;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Play the matches below node, recording losers, returns the winner
+     */
+    private int initWinner(int node) {
+        if (node >= k) {
+            return node - k;
+        }
+        int left = initWinner(2 * node);
+        int right = initWinner(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    /**
+     * Replay the matches on the path from partition p's leaf to the root
+     */
+    private void replay(int p) {
+        int winner = p;
+        for (int node = (p + k) >> 1; node >= 1; node >>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Whether the head of partition a comes before the head of partition b.
+     * Exhausted partitions lose to everything.
+     */
+    private boolean beats(int a, int b) {
+        if (cursors[a] == sizes[a]) {
+            return false;
+        }
+        if (cursors[b] == sizes[b]) {
+            return true;
+        }
+        long keyA = keys[a][cursors[a]];
+        long keyB = keys[b][cursors[b]];
+        if (keyA != keyB) {
+            return keyA < keyB;
+        }
+        if (!exact) {
+            // inexact keys always keep their text
+            int c = keySpec.compareText(payloads[a][cursors[a]],
+                    payloads[b][cursors[b]]);
+            if (c != 0) {
+                return c < 0;
+            }
+        }
+        return a < b;
+    }
+}
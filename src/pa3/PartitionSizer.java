@@ -0,0 +1,173 @@
+package pa3;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * PartitionSizer
+ * Decides what share of a job's rows each node gets, so that nodes of
+ * different speeds finish their partitions at about the same time.
+ *
+ * A node's capacity is the rows per second it sorted recently (smoothed
+ * over its past partitions, from the server sending the partition to the
+ * sorted rows coming back) scaled down by the load per core it reported in
+ * its last heartbeat. A node with no sorts yet is assumed to be as fast as
+ * the average known node. Shares are proportional to capacity, but never
+ * below MIN_SHARE_OF_EVEN of an even split, so a node that had one slow
+ * sort still gets enough work to show it has recovered.
+ */
+public class PartitionSizer {
+
+    private static final Logger log = Logger.getLogger(PartitionSizer.class);
+
+    // weight of the newest sort in a node's throughput estimate
+    public static final double THROUGHPUT_SMOOTHING = 0.5;
+
+    // smallest share a node gets, as a fraction of an even split
+    public static final double MIN_SHARE_OF_EVEN = 0.25;
+
+    private final Membership membership;
+    private final boolean weighted;
+
+    // smoothed rows per second each node has sorted at
+    private final ConcurrentHashMap<NetworkLocation, Double> throughput =
+            new ConcurrentHashMap<NetworkLocation, Double>();
+
+    /**
+     * Constructor
+     * @param membership where the nodes' reported loads come from
+     * @param weighted false gives every node an even share
+     */
+    public PartitionSizer(Membership membership, boolean weighted) {
+        this.membership = membership;
+        this.weighted = weighted;
+    }
+
+    /**
+     * Record a partition of rows that a node sorted in millis
+     */
+    public void recordSort(NetworkLocation node, int rows, long millis) {
+        if (rows <= 0) {
+            return;
+        }
+        double rowsPerSecond = rows * 1000.0 / Math.max(1, millis);
+        Double previous = throughput.get(node);
+        if (previous != null) {
+            rowsPerSecond = THROUGHPUT_SMOOTHING * rowsPerSecond
+                    + (1 - THROUGHPUT_SMOOTHING) * previous;
+        }
+        throughput.put(node, rowsPerSecond);
+    }
+
+    /**
+     * Forget what was measured for a node that has left
+     */
+    public void forget(NetworkLocation node) {
+        throughput.remove(node);
+    }
+
+    /**
+     * Smoothed rows per second the node has sorted at, 0 if unknown
+     */
+    public double getThroughput(NetworkLocation node) {
+        Double rowsPerSecond = throughput.get(node);
+        return (rowsPerSecond == null) ? 0.0 : rowsPerSecond;
+    }
+
+    /**
+     * Share of the rows for each of the nodes, in the same order, adding up to 1
+     */
+    public double[] shares(ArrayList<NetworkLocation> nodes) {
+        int n = nodes.size();
+        double[] shares = new double[n];
+        if (n == 0) {
+            return shares;
+        }
+        if (!weighted) {
+            for (int i = 0; i < n; i++) {
+                shares[i] = 1.0 / n;
+            }
+            return shares;
+        }
+
+        // nodes never measured count as the average of the measured ones
+        double known = 0;
+        int numKnown = 0;
+        for (NetworkLocation node : nodes) {
+            Double rowsPerSecond = throughput.get(node);
+            if (rowsPerSecond != null) {
+                known += rowsPerSecond;
+                numKnown++;
+            }
+        }
+        double assumed = (numKnown == 0) ? 1.0 : known / numKnown;
+
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            NetworkLocation node = nodes.get(i);
+            Double rowsPerSecond = throughput.get(node);
+            shares[i] = ((rowsPerSecond == null) ? assumed : rowsPerSecond)
+                    / (1 + loadPerCore(node));
+            total += shares[i];
+        }
+
+        // hold every node up to the minimum share, then scale the rest down
+        // so the shares still add up to 1
+        double floor = MIN_SHARE_OF_EVEN / n;
+        double aboveFloor = 0;
+        for (int i = 0; i < n; i++) {
+            shares[i] = Math.max(floor, shares[i] / total);
+            aboveFloor += shares[i] - floor;
+        }
+        double scale = (1 - floor * n) / aboveFloor;
+        for (int i = 0; i < n; i++) {
+            shares[i] = floor + (shares[i] - floor) * scale;
+        }
+        return shares;
+    }
+
+    /**
+     * Load per core the node reported in its last heartbeat, 0 if unknown
+     */
+    public double loadPerCore(NetworkLocation node) {
+        Membership.Member member = membership.get(node);
+        if (member == null || member.getLoad() < 0) {
+            return 0.0;
+        }
+        return member.getLoad() / Math.max(1, member.getProcessors());
+    }
+
+    /**
+     * Row index each partition starts at, for totalRows split by shares.
+     * Has one more entry than shares, the last being totalRows.
+     */
+    public static int[] bounds(double[] shares, int totalRows) {
+        int[] bounds = new int[shares.length + 1];
+        double cumulative = 0;
+        for (int p = 0; p < shares.length; p++) {
+            bounds[p] = (int) Math.round(cumulative * totalRows);
+            cumulative += shares[p];
+        }
+        bounds[shares.length] = totalRows;
+        return bounds;
+    }
+
+    /**
+     * Describe how rows were split across the nodes, for the logs and stats
+     */
+    public String describe(ArrayList<NetworkLocation> nodes, int[] rows) {
+        StringBuilder plan = new StringBuilder();
+        for (int i = 0; i < nodes.size(); i++) {
+            NetworkLocation node = nodes.get(i);
+            if (i > 0) {
+                plan.append(", ");
+            }
+            plan.append(node).append("=").append(rows[i])
+                    .append(String.format(" (%.0f rows/s, load/core %.2f)",
+                            getThroughput(node), loadPerCore(node)));
+        }
+        log.debug("partition sizes: " + plan);
+        return plan.toString();
+    }
+}
@@ -11,15 +11,57 @@ public class Protocol implements Serializable {
     
     /**
      * Protocol types
+     * STREAMBEGIN, STREAMCHUNK, STREAMEND and STREAMFETCH make up a streaming
+     * sort, where the input goes up and the output comes back in chunks
+     * HEARTBEAT and NODELEAVE keep the server's membership table current
+     * SORTRETAINED retries a split with the rows the node kept from failing it
+     * JOBDATA runs a job (see JobSpec) over the rows sent, MAPJOB and
+     * REDUCEJOB run one of its map or reduce tasks on a node
+     * SELECT gets a node's candidates for a range of the sorted order
+     * FETCHRESULT gets a merged package a node is holding for a later REDUCE
+     * CANCELSPLIT tells a node that a split it was given has been sorted
+     * elsewhere, so it neither sorts it nor sends it back
      */
-    public enum Type {SORTDATA, NODEJOIN, REDUCE, STATS, SORTFORPEER};    
+    public enum Type {SORTDATA, NODEJOIN, REDUCE, STATS, SORTFORPEER,
+            STREAMBEGIN, STREAMCHUNK, STREAMEND, STREAMFETCH, HEARTBEAT, NODELEAVE,
+            SORTRETAINED, JOBDATA, MAPJOB, REDUCEJOB, SELECT, FETCHRESULT,
+            CANCELSPLIT};    
     private Type type;
+    
+    /**
+     * Id of the request on its connection, the reply carries the same id
+     * so that replies can be matched to requests in any order
+     */
+    private int requestId;
+    
+    /**
+     * Codec the requester wants the DataPackages of the reply in, so each
+     * end can pick what suits the link it is on
+     */
+    private DataPackageCodec.Codec codec;
 
     /**
      * Constructor
      */
     public Protocol(Type t) {
+        this(t, 0);
+    }
+
+    /**
+     * Constructor for a request (or its reply) on a connection
+     */
+    public Protocol(Type t, int requestId) {
+        this(t, requestId, DataPackageCodec.Codec.AUTO);
+    }
+
+    /**
+     * Constructor for a request (or its reply) on a connection, with the
+     * codec for the reply's DataPackages
+     */
+    public Protocol(Type t, int requestId, DataPackageCodec.Codec codec) {
         this.type = t;
+        this.requestId = requestId;
+        this.codec = codec;
     }
 
     /**
@@ -29,22 +71,63 @@ public class Protocol implements Serializable {
         return type;
     }
     
+    /**
+     * getter for request id
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+    
+    /**
+     * getter for the codec of the reply's DataPackages
+     */
+    public DataPackageCodec.Codec getCodec() {
+        return codec;
+    }
+    
     /**
      * Override of toString method
      */
     @Override
     public String toString() {
+        String id = "#" + requestId;
         if (type == Type.NODEJOIN) {
-            return "{NODEJOIN}";
+            return "{NODEJOIN " + id + "}";
         } else if (type == Type.SORTDATA) {
-            return "{SORTDATA}";
+            return "{SORTDATA " + id + "}";
         } else if (type == Type.REDUCE) {
-            return "{REDUCE}";
+            return "{REDUCE " + id + "}";
         } else if (type == Type.STATS) {
-            return "{STATS}";
+            return "{STATS " + id + "}";
         } else if (type == Type.SORTFORPEER) {
-            return "{SORTFORPEER}";
+            return "{SORTFORPEER " + id + "}";
+        } else if (type == Type.STREAMBEGIN) {
+            return "{STREAMBEGIN " + id + "}";
+        } else if (type == Type.STREAMCHUNK) {
+            return "{STREAMCHUNK " + id + "}";
+        } else if (type == Type.STREAMEND) {
+            return "{STREAMEND " + id + "}";
+        } else if (type == Type.STREAMFETCH) {
+            return "{STREAMFETCH " + id + "}";
+        } else if (type == Type.HEARTBEAT) {
+            return "{HEARTBEAT " + id + "}";
+        } else if (type == Type.NODELEAVE) {
+            return "{NODELEAVE " + id + "}";
+        } else if (type == Type.SORTRETAINED) {
+            return "{SORTRETAINED " + id + "}";
+        } else if (type == Type.FETCHRESULT) {
+            return "{FETCHRESULT " + id + "}";
+        } else if (type == Type.CANCELSPLIT) {
+            return "{CANCELSPLIT " + id + "}";
+        } else if (type == Type.JOBDATA) {
+            return "{JOBDATA " + id + "}";
+        } else if (type == Type.MAPJOB) {
+            return "{MAPJOB " + id + "}";
+        } else if (type == Type.REDUCEJOB) {
+            return "{REDUCEJOB " + id + "}";
+        } else if (type == Type.SELECT) {
+            return "{SELECT " + id + "}";
         }
-        return "{UNKNOWN}";
+        return "{UNKNOWN " + id + "}";
     }
 }
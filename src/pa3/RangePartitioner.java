@@ -0,0 +1,176 @@
+package pa3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RangePartitioner
+ * Splits a DataPackage into partitions by key range (as in TeraSort) so that
+ * once each partition is sorted, the sorted result is just the partitions
+ * one after another with no merge needed.
+ *
+ * The k-1 splitters are picked from a random sample of the keys. Partition p
+ * holds keys in (splitter[p-1], splitter[p]]. A key equal to a run of
+ * splitter[p..q] may go in any of partitions p..q+1 without breaking the
+ * order, so such keys are dealt round-robin across those partitions. That
+ * keeps a key repeated across most of the input from landing in one
+ * partition.
+ *
+ * Splitters are normalized keys. When the package's KeySpec isn't exact,
+ * rows with equal normalized keys may still differ, so they all go to the
+ * first of those partitions instead.
+ */
+public class RangePartitioner {
+
+    // keys sampled per partition to pick the splitters from
+    public static final int SAMPLES_PER_PARTITION = 100;
+
+    private final int numPartitions;
+    private final long[] splitters;
+
+    // runEnd[p] is the last index of the run of splitters equal to splitter[p]
+    private final int[] runEnd;
+
+    /**
+     * Constructor from splitters that are already sorted
+     */
+    RangePartitioner(long[] splitters) {
+        this.splitters = splitters;
+        this.numPartitions = splitters.length + 1;
+        this.runEnd = new int[splitters.length];
+        for (int p = splitters.length - 1; p >= 0; p--) {
+            boolean sameAsNext = p + 1 < splitters.length
+                    && splitters[p] == splitters[p + 1];
+            runEnd[p] = sameAsNext ? runEnd[p + 1] : p;
+        }
+    }
+
+    /**
+     * Pick splitters for numPartitions partitions from a sample of dp's keys
+     */
+    public static RangePartitioner fromSample(DataPackage dp, int numPartitions,
+            Random random) {
+        double[] shares = new double[numPartitions];
+        Arrays.fill(shares, 1.0 / numPartitions);
+        return fromSample(dp, shares, random);
+    }
+
+    /**
+     * Pick splitters from a sample of dp's keys so that partition p gets
+     * about shares[p] of the rows
+     */
+    public static RangePartitioner fromSample(DataPackage dp, double[] shares,
+            Random random) {
+        int numPartitions = shares.length;
+        int size = dp.getSize();
+        int numSamples = Math.min(size, numPartitions * SAMPLES_PER_PARTITION);
+        long[] sample = new long[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            sample[i] = dp.getKey(random.nextInt(size));
+        }
+        Arrays.sort(sample);
+
+        // splitter p sits where the first p+1 shares of the sample end
+        int[] ends = PartitionSizer.bounds(shares, numSamples);
+        long[] splitters = new long[numPartitions - 1];
+        for (int p = 0; p < splitters.length; p++) {
+            splitters[p] = (numSamples == 0) ? 0
+                    : sample[Math.min(numSamples - 1, ends[p + 1])];
+        }
+        return new RangePartitioner(splitters);
+    }
+
+    /**
+     * Split dp into numPartitions packages by key range, in range order
+     */
+    public ArrayList<DataPackage> partition(DataPackage dp) {
+        int size = dp.getSize();
+        long[] keys = dp.keyColumn();
+        String[] payload = dp.payloadColumn();
+        boolean exact = dp.getKeySpec().isExact();
+
+        // first pass: route every row and count each partition's rows
+        int[] route = new int[size];
+        int[] counts = new int[numPartitions];
+        int[] nextInRun = new int[numPartitions];
+        for (int i = 0; i < size; i++) {
+            int p = partitionOf(keys[i], exact ? nextInRun : null);
+            route[i] = p;
+            counts[p]++;
+        }
+
+        // second pass: copy rows straight into presized columns
+        long[][] partKeys = new long[numPartitions][];
+        String[][] partPayload = new String[numPartitions][];
+        for (int p = 0; p < numPartitions; p++) {
+            partKeys[p] = new long[counts[p]];
+            partPayload[p] = (payload == null) ? null : new String[counts[p]];
+        }
+        int[] fill = new int[numPartitions];
+        for (int i = 0; i < size; i++) {
+            int p = route[i];
+            int at = fill[p]++;
+            partKeys[p][at] = keys[i];
+            if (payload != null) {
+                partPayload[p][at] = payload[i];
+            }
+        }
+
+        ArrayList<DataPackage> partitions = new ArrayList<DataPackage>(numPartitions);
+        for (int p = 0; p < numPartitions; p++) {
+            partitions.add(new DataPackage(partKeys[p], partPayload[p], counts[p],
+                    dp.getKeySpec()));
+        }
+        return partitions;
+    }
+
+    /**
+     * Partition for key. nextInRun holds the round-robin position for
+     * each run of equal splitters, or is null to keep equal keys together.
+     */
+    private int partitionOf(long key, int[] nextInRun) {
+        // first splitter >= key
+        int lo = 0, hi = splitters.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (splitters[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == splitters.length || splitters[lo] != key || nextInRun == null) {
+            return lo;
+        }
+        // key equals splitters lo..runEnd[lo], any of lo..runEnd[lo]+1 will do
+        int choices = runEnd[lo] - lo + 2;
+        int p = lo + nextInRun[lo];
+        nextInRun[lo] = (nextInRun[lo] + 1) % choices;
+        return p;
+    }
+
+    /**
+     * Join range partitions that are each sorted into one sorted package.
+     * Needs no key comparisons since the ranges are already in order.
+     */
+    public static DataPackage concatenate(ArrayList<DataPackage> sortedPartitions) {
+        int total = 0;
+        for (DataPackage dp : sortedPartitions) {
+            total += dp.getSize();
+        }
+        DataPackage result = new DataPackage(total);
+        for (DataPackage dp : sortedPartitions) {
+            result.append(dp);
+        }
+        result.sorted(true);
+        return result;
+    }
+
+    /**
+     * Getter for the splitters
+     */
+    public long[] getSplitters() {
+        return splitters;
+    }
+}
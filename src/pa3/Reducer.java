@@ -0,0 +1,17 @@
+package pa3;
+
+import java.util.List;
+
+/**
+ * Reducer
+ * Reduce side of a job: gets every value emitted for a key (after any
+ * combining), and emits the key's output pairs. Keys reach a Reducer in
+ * no particular order, the job's output is sorted by key afterwards.
+ */
+public interface Reducer {
+
+    /**
+     * Reduce the values of one key
+     */
+    void reduce(String key, List<String> values, Emitter out);
+}
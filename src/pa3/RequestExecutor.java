@@ -0,0 +1,65 @@
+package pa3;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RequestExecutor
+ * Runs the requests that arrive on all of a component's connections, at
+ * most maxConcurrentRequests at a time. Requests past the limit wait in a
+ * queue whose depth is tracked as a gauge.
+ */
+public class RequestExecutor extends ThreadPoolExecutor {
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param name prefix for the worker thread names
+     * @param maxConcurrentRequests most requests run at once
+     */
+    public RequestExecutor(final String name, int maxConcurrentRequests) {
+        super(maxConcurrentRequests, maxConcurrentRequests, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // idle workers go away between jobs
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable request) {
+        super.execute(request);
+        int depth = getQueue().size();
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    /**
+     * Requests waiting for a worker right now
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Most requests that have been waiting for a worker at once
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
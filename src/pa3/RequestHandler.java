@@ -0,0 +1,19 @@
+package pa3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Implemented by the Server and Node to dispatch requests arriving through
+ * their FrameServer according to their Protocol
+ */
+public interface RequestHandler {
+    
+    /**
+     * Handle a request, reading its body from in and writing the body of
+     * the reply to out. Throwing sends an error reply instead.
+     */
+    void dispatch(Protocol protocol, DataInputStream in, DataOutputStream out)
+            throws IOException;
+}
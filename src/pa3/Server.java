@@ -1,14 +1,38 @@
 package pa3;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
@@ -19,26 +43,141 @@ import org.apache.log4j.PropertyConfigurator;
  * to use with the Client.
  * @author mark
  */
-public class Server extends Thread {
+public class Server extends Thread implements RequestHandler {
     
-    private static Logger log;
-    private ArrayList<NetworkLocation> nodeList;
-    private NetworkLocation location;
+    private static Logger log = Logger.getLogger(Server.class);
+    // nodes known from their heartbeats, only live ones are given work
+    private Membership membership;
+    private ScheduledExecutorService membershipTimer;
+    // set once the server is listening, read by whoever started it
+    private volatile NetworkLocation location;
     private ServerStats stats;
+    // the server's share of the stats, recorded on every request
+    private Metrics metrics;
+    // serves the stats to scrapers, when a MetricsPort is configured
+    private MetricsEndpoint metricsEndpoint;
+    private int metricsPort;
     
-    ServerSocket ss;
+    // runs the per-node sort requests of a map concurrently
+    private ExecutorService dispatchPool;
+    
+    // open connections to the nodes, reused across requests
+    private ConnectionPool connections;
+    // codec of the packages sent to the nodes, and asked for back
+    private DataPackageCodec.Codec wireCodec;
+    
+    // runs the requests from clients and nodes, a bounded number at a time
+    private RequestExecutor requestExecutor;
+    
+    // accepts and serves every connection from clients and nodes
+    private FrameServer frameServer;
     
     public static String SERVER_RMI_DESC = "Server";
     // this is the number of times the server will try to gather a set of
     // working nodes for sort before giving up
     public static final int NUM_TRIES = 5;
     
+    public static final String CONFIG_FILENAME = "server.properties";
+    public static final String PARTITION_MODE_VARNAME = "PartitionMode";
+    public static final String PARTITION_SIZING_VARNAME = "PartitionSizing";
+    public static final String SPLIT_SIZE_VARNAME = "SplitSize";
+    public static final String REDUCE_FAN_IN_VARNAME = "ReduceFanIn";
+    public static final String MAX_CONCURRENT_REQUESTS_VARNAME = "MaxConcurrentRequests";
+    public static final String SUSPECT_TIMEOUT_VARNAME = "SuspectTimeoutMillis";
+    public static final String DEAD_TIMEOUT_VARNAME = "DeadTimeoutMillis";
+    public static final String METRICS_PORT_VARNAME = "MetricsPort";
+    public static final String WIRE_CODEC_VARNAME = "WireCodec";
+    public static final String STREAM_IDLE_TIMEOUT_VARNAME = "StreamIdleTimeoutMillis";
+    
+    // rows per split a job is cut into for the nodes to pull
+    public static final int DEFAULT_SPLIT_SIZE = 128 * 1024;
+    
+    // a split is a straggler once it has run this many times the median
+    // sort time of the splits already back, and at least the minimum
+    public static final double SPECULATION_MULTIPLIER = 1.5;
+    public static final long SPECULATION_MIN_MILLIS = 100;
+    // how often the map checks for stragglers while it waits
+    public static final long SPECULATION_CHECK_MILLIS = 50;
+    
+    /**
+     * How the input is split into partitions for the nodes:
+     * POSITION gives each node a contiguous slice of rows and the sorted
+     * slices are merged on reduce; RANGE gives each node a range of keys
+     * and the sorted ranges are simply concatenated.
+     */
+    public static enum PartitionMode {POSITION, RANGE};
+    private PartitionMode partitionMode;
+    
+    /**
+     * How many rows each node is given:
+     * EVEN splits the rows equally; WEIGHTED sizes each node's partition
+     * by its measured throughput and reported load (see PartitionSizer).
+     */
+    public static enum PartitionSizing {EVEN, WEIGHTED};
+    private PartitionSizer partitionSizer;
+    
+    // about how many rows go in each split, 0 for one split per node
+    private int splitSize;
+    // numbers the maps, so a node can tell the splits of different jobs apart
+    private AtomicLong nextMapNumber;
+    
+    // most sorted packages merged together by one node during reduce
+    private int reduceFanIn;
+    
+    private Random random;
+    
+    // streaming sorts in progress, by stream id
+    private ConcurrentHashMap<Integer, StreamingSort> streams;
+    private AtomicInteger nextStreamId;
+    // a stream nobody has used for this long is dropped, its client is gone
+    private long streamIdleTimeoutMillis;
+    
     /**
      * Server constructor
      */
     public Server() {
-        nodeList = new ArrayList<NetworkLocation>();
+        this(new BaseConfiguration());
+    }
+    
+    /**
+     * Server constructor using settings from config
+     */
+    public Server(Configuration config) {
+        membership = new Membership(
+                config.getLong(SUSPECT_TIMEOUT_VARNAME, 3000), 
+                config.getLong(DEAD_TIMEOUT_VARNAME, 10000));
+        membershipTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Membership");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
         stats = new ServerStats();
+        metrics = stats.metrics;
+        metricsPort = config.getInt(METRICS_PORT_VARNAME, -1);
+        dispatchPool = Executors.newCachedThreadPool();
+        wireCodec = DataPackageCodec.Codec.valueOf(config.getString(
+                WIRE_CODEC_VARNAME, DataPackageCodec.Codec.AUTO.name()).toUpperCase());
+        connections = new ConnectionPool(metrics, wireCodec);
+        random = new Random();
+        streams = new ConcurrentHashMap<Integer, StreamingSort>();
+        nextStreamId = new AtomicInteger();
+        streamIdleTimeoutMillis = config.getLong(STREAM_IDLE_TIMEOUT_VARNAME, 60000);
+        partitionMode = PartitionMode.valueOf(config.getString(
+                PARTITION_MODE_VARNAME, PartitionMode.POSITION.name()).toUpperCase());
+        partitionSizer = new PartitionSizer(membership, 
+                PartitionSizing.valueOf(config.getString(PARTITION_SIZING_VARNAME, 
+                PartitionSizing.WEIGHTED.name()).toUpperCase()) 
+                == PartitionSizing.WEIGHTED);
+        splitSize = Math.max(0, config.getInt(SPLIT_SIZE_VARNAME, DEFAULT_SPLIT_SIZE));
+        nextMapNumber = new AtomicLong();
+        reduceFanIn = Math.max(2, config.getInt(REDUCE_FAN_IN_VARNAME, 4));
+        requestExecutor = new RequestExecutor("ServerRequest", 
+                Math.max(1, config.getInt(MAX_CONCURRENT_REQUESTS_VARNAME, 
+                RequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS)));
     }
     
     /**
@@ -47,9 +186,18 @@ public class Server extends Thread {
      */
     public static void main(String args[]) {
         PropertyConfigurator.configure("log4j.properties");
-        log = Logger.getLogger(Client.class); 
+        
+        // get settings from config file
+        Configuration config = new BaseConfiguration();
+        try {
+            config = new PropertiesConfiguration(CONFIG_FILENAME);
+        } catch (ConfigurationException ex) {
+            log.error("Problem loading properties config file: " + ex);
+        }
+        
         log.info("Starting Server...");
-        Server server = new Server();
+        Server server = new Server(config);
+        log.info("Partition mode is " + server.partitionMode);
         server.start();
     }
     
@@ -61,12 +209,22 @@ public class Server extends Thread {
         try {
             init();
             log.info("Server running at: " + getLocation());
-            while (true) {
-                Socket socket = ss.accept();
-                dispatch(socket);
-            }
-        } catch (ClassNotFoundException ex) {
-            log.error("Could not find object class: " + ex);
+            // drop nodes that stopped sending heartbeats, then take a new
+            // stats snapshot
+            membershipTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (NetworkLocation dead : membership.expire()) {
+                        connections.invalidate(dead);
+                        partitionSizer.forget(dead);
+                    }
+                    expireStreams();
+                    refreshStats();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+            // clients and nodes keep their connection open, all of them
+            // are served from this thread without blocking
+            frameServer.serve();
         } catch (IOException ex) {
             log.error("Unable to create server socket: " + ex);
             System.exit(1);
@@ -74,55 +232,84 @@ public class Server extends Thread {
     }
     
     /*
-     * Metho to dispatch functionality according to a Protocol
-     * must cast return object based on expected behavior
+     * Method to dispatch functionality according to a Protocol
+     * reads the request body from in and writes the reply body to out
      */
-    private void dispatch(Socket socket) 
-            throws IOException, ClassNotFoundException {
-        ObjectInputStream ois 
-                = new ObjectInputStream(socket.getInputStream());
-        
-        // get the protocol to follow
-        Protocol protocol = (Protocol) ois.readObject();
-        
+    @Override
+    public void dispatch(Protocol protocol, DataInputStream in, 
+            DataOutputStream out) throws IOException {
         if (protocol.getType().equals(Protocol.Type.SORTDATA)) {
+            log.info("Recieved request to sort");
+            // get input DP from request
+            long start = System.nanoTime();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.INGEST, start);
+            DataPackage outDP = acceptDataPackageForSort(inDP);
+            // write output DP to reply
+            start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
+            log.info("wrote out DP");
+        } else if (protocol.getType().equals(Protocol.Type.JOBDATA)) {
+            log.info("Received request to run a job");
+            JobSpec job = JobSpec.parse(in.readUTF());
+            long start = System.nanoTime();
+            DataPackage inDP = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.INGEST, start);
+            DataPackage outDP = acceptDataPackageForJob(job, inDP);
+            start = System.nanoTime();
+            DataPackageCodec.write(out, outDP, protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
+            log.info("wrote out job output");
+        } else if (protocol.getType().equals(Protocol.Type.STREAMBEGIN)) {
+            out.writeInt(beginStreamingSort());
+        } else if (protocol.getType().equals(Protocol.Type.STREAMCHUNK)) {
+            int streamId = in.readInt();
+            int chunkNumber = in.readInt();
+            long start = System.nanoTime();
+            DataPackage chunk = DataPackageCodec.read(in, metrics);
+            metrics.record(Metrics.Phase.INGEST, start);
+            acceptStreamChunk(streamId, chunkNumber, chunk);
+        } else if (protocol.getType().equals(Protocol.Type.STREAMEND)) {
+            out.writeInt(endStreamingSort(in.readInt()));
+        } else if (protocol.getType().equals(Protocol.Type.STREAMFETCH)) {
+            int streamId = in.readInt();
+            int from = in.readInt();
+            int to = in.readInt();
+            long start = System.nanoTime();
+            DataPackageCodec.write(out, fetchStreamRows(streamId, from, to), 
+                    protocol.getCodec(), metrics);
+            metrics.record(Metrics.Phase.RESULT_RETURN, start);
+        } else if (protocol.getType().equals(Protocol.Type.HEARTBEAT)) {
+            NetworkLocation nodeLocation = NetworkLocation.readFrom(in);
+            double load = in.readDouble();
+            int processors = in.readInt();
+            int queueDepth = in.readInt();
+            membership.heartbeat(nodeLocation, load, processors, queueDepth);
             try {
-                log.info("Recieved request to sort");
-                // get input DP from socket
-                DataPackage inDP = (DataPackage) ois.readObject();
-                DataPackage outDP = acceptDataPackageForSort(inDP);
-                ObjectOutputStream oos 
-                        = new ObjectOutputStream(socket.getOutputStream());
-                // write output DP to socket
-                oos.writeObject(outDP);
-                oos.flush();
-                log.info("wrote out DP");
-            } catch (IOException ex) {
-                log.error(
-                        "IO Exception when trying to dispatch acceptDataPackageForSort: " 
-                        + ex);
+                ObjectInputStream ois = new ObjectInputStream(in);
+                membership.report(nodeLocation, (NodeStats) ois.readObject());
             } catch (ClassNotFoundException ex) {
-                log.error(
-                        "Class Not Found when trying to dispatch acceptDataPackageForSort: " 
-                        + ex);
+                log.error("class not found: " + ex);
             }
+        } else if (protocol.getType().equals(Protocol.Type.STATS)) {
+            // the server's stats with every node's as of its last heartbeat
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(getStats());
+            oos.flush();
         } else if (protocol.getType().equals(Protocol.Type.NODEJOIN)) {
-            try {
-                log.info("Received request to join");
-                NetworkLocation nodeLocation = (NetworkLocation) ois.readObject();
-                addNodeInfo(nodeLocation);
-                log.info("Node joined");
-            } catch (IOException ex) {
-                log.error(
-                        "IO Exception when trying to dispatch addNodeInfo: " 
-                        + ex);
-            } catch (ClassNotFoundException ex) {
-                log.error(
-                        "Class Not Found when trying to dispatch addNodeInfo: "
-                        + ex);
-            }
+            log.info("Received request to join");
+            NetworkLocation nodeLocation = NetworkLocation.readFrom(in);
+            addNodeInfo(nodeLocation);
+            log.info("Node joined");
+        } else if (protocol.getType().equals(Protocol.Type.NODELEAVE)) {
+            NetworkLocation nodeLocation = NetworkLocation.readFrom(in);
+            membership.leave(nodeLocation);
+            connections.invalidate(nodeLocation);
+            partitionSizer.forget(nodeLocation);
         } else {
             log.error("Unknown protocol: " + protocol);
+            throw new IOException("Unknown protocol: " + protocol);
         }
     }
 
@@ -136,7 +323,7 @@ public class Server extends Thread {
 //        ArrayList<Socket> nodes = gatherNodes();
 
         // increment request stat
-        stats.numberOfSortRequestsSinceStartup++;
+        stats.numberOfSortRequestsSinceStartup.incrementAndGet();
         
         /**
          * try to map and reduce multiple times 
@@ -145,24 +332,32 @@ public class Server extends Thread {
          */
         for (int tryNumber = 0; tryNumber < numTries; tryNumber++) {
             try {
-                ArrayList<DataPackage> sortedPartitions = 
-                        new ArrayList<DataPackage>(nodeList.size());
+                ArrayList<DataPackage> sortedPartitions;
                         
-                /* IN: unsorted data packages, all nodes available */
-                sortedPartitions = map(dataPackage, nodeList);
+                /* IN: unsorted data packages, all live nodes available */
+                sortedPartitions = map(dataPackage, membership.liveNodes());
                 /* OUT: individually sorted data packages */
+                if (sortedPartitions == null) {
+                    log.error(
+                        "All nodes have died, please try rerunning when valid nodes are available");
+                    break;
+                }
                 
                 /*
                  * if we've gotten here, all is well and we can reduce
                  * and return the data package
                  */
-                DataPackage sortedDataPackage = 
-                        reduce(sortedPartitions);
+                DataPackage sortedDataPackage;
+                if (partitionMode == PartitionMode.RANGE) {
+                    // ranges are in order, no merge needed
+                    sortedDataPackage = concatenate(sortedPartitions);
+                } else {
+                    sortedDataPackage = reduce(sortedPartitions);
+                }
                 
                 /**
-                 * print stats here
+                 * print stats here, as of the nodes' last heartbeats
                  */
-                gatherStats();
                 log.info(stats);
                 
                 return sortedDataPackage;
@@ -185,206 +380,1182 @@ public class Server extends Thread {
         return null;
     }
     
+    /**
+     * Accept a data package to run a job over, returns the job's output
+     * pairs in key order, or null if the job failed.
+     * Sort goes to acceptDataPackageForSort with the rows keyed as it asks,
+     * and a selection (first, last or rows) to acceptDataPackageForSelection.
+     * Any other job is cut into a map task per live node, each of which
+     * hash partitions its pairs into as many reduce tasks. Every task is
+     * tried on each node in turn until one runs it, and the reduce tasks'
+     * outputs (each sorted by key) are merged here.
+     */
+    public DataPackage acceptDataPackageForJob(JobSpec job, DataPackage dataPackage) {
+        log.info("Received data package for job " + job);
+        if (job.isSort()) {
+            try {
+                return acceptDataPackageForSort(
+                        rekey(dataPackage, job.getSortKeySpec()));
+            } catch (IllegalArgumentException ex) {
+                log.error("Unable to key rows for " + job + ": " + ex);
+                return null;
+            }
+        }
+        if (job.isSelection()) {
+            try {
+                DataPackage keyed = rekey(dataPackage, job.getSortKeySpec());
+                int[] range = job.getSelection(keyed.getSize());
+                return acceptDataPackageForSelection(job, keyed, range[0], range[1]);
+            } catch (IllegalArgumentException ex) {
+                log.error("Unable to run " + job + ": " + ex);
+                return null;
+            }
+        }
+        stats.numberOfJobRequestsSinceStartup.incrementAndGet();
+        ArrayList<NetworkLocation> nodes = membership.liveNodes();
+        if (nodes.isEmpty()) {
+            log.error("no nodes to run " + job + " on");
+            return null;
+        }
+        
+        // a map task per node, and as many reduce tasks
+        long start = System.nanoTime();
+        final int numTasks = nodes.size();
+        int numRows = dataPackage.getSize();
+        ArrayList<Future<ArrayList<DataPackage>>> maps = 
+                new ArrayList<Future<ArrayList<DataPackage>>>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            final DataPackage split = dataPackage.slice(
+                    (int) ((long) numRows * t / numTasks), 
+                    (int) ((long) numRows * (t + 1) / numTasks));
+            maps.add(dispatchPool.submit(new JobTask<ArrayList<DataPackage>>(
+                    job, nodes, t) {
+                @Override
+                ArrayList<DataPackage> runOn(NetworkLocation nodeLoc) 
+                        throws IOException {
+                    return mapJobOnNode(nodeLoc, job, split, numTasks);
+                }
+            }));
+        }
+        metrics.record(Metrics.Phase.PARTITION, start);
+        ArrayList<ArrayList<DataPackage>> mapOutputs = 
+                new ArrayList<ArrayList<DataPackage>>(numTasks);
+        for (Future<ArrayList<DataPackage>> map : maps) {
+            ArrayList<DataPackage> partitions = await(map);
+            if (partitions == null) {
+                log.error("Unable to map " + job);
+                return null;
+            }
+            mapOutputs.add(partitions);
+        }
+        
+        ArrayList<Future<DataPackage>> reduces = 
+                new ArrayList<Future<DataPackage>>(numTasks);
+        for (int r = 0; r < numTasks; r++) {
+            final ArrayList<DataPackage> group = new ArrayList<DataPackage>(numTasks);
+            for (ArrayList<DataPackage> partitions : mapOutputs) {
+                group.add(partitions.get(r));
+            }
+            reduces.add(dispatchPool.submit(new JobTask<DataPackage>(job, nodes, r) {
+                @Override
+                DataPackage runOn(NetworkLocation nodeLoc) throws IOException {
+                    return reduceJobOnNode(nodeLoc, job, group);
+                }
+            }));
+        }
+        ArrayList<DataPackage> outputs = new ArrayList<DataPackage>(numTasks);
+        for (Future<DataPackage> reduce : reduces) {
+            DataPackage output = await(reduce);
+            if (output == null) {
+                log.error("Unable to reduce " + job);
+                return null;
+            }
+            outputs.add(output);
+        }
+        
+        start = System.nanoTime();
+        DataPackage merged = PartitionMerger.merge(outputs);
+        merged.sorted(true);
+        metrics.record(Metrics.Phase.MERGE, start);
+        metrics.addRows(merged.getSize());
+        log.info(stats);
+        return merged;
+    }
+    
+    /**
+     * Accept a data package and return just rows [from, to) of its sorted
+     * order, or null if that failed. Each live node gets a slice of the
+     * rows and sends back only its candidates for the range, found without
+     * sorting the slice: its smallest to rows, or its largest numRows -
+     * from when the range is nearer the end. The server merges the
+     * candidates and keeps the range, so what comes back from the nodes
+     * and is merged grows with the range rather than the input.
+     */
+    public DataPackage acceptDataPackageForSelection(JobSpec job, 
+            DataPackage dataPackage, int from, int to) {
+        stats.numberOfSortRequestsSinceStartup.incrementAndGet();
+        ArrayList<NetworkLocation> nodes = membership.liveNodes();
+        if (nodes.isEmpty()) {
+            log.error("no nodes to run " + job + " on");
+            return null;
+        }
+        int numRows = dataPackage.getSize();
+        final boolean largest = numRows - from < to;
+        final int count = largest ? numRows - from : to;
+        
+        long start = System.nanoTime();
+        int numTasks = nodes.size();
+        ArrayList<Future<DataPackage>> selections = 
+                new ArrayList<Future<DataPackage>>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            final DataPackage split = dataPackage.slice(
+                    (int) ((long) numRows * t / numTasks), 
+                    (int) ((long) numRows * (t + 1) / numTasks));
+            selections.add(dispatchPool.submit(new JobTask<DataPackage>(
+                    job, nodes, t) {
+                @Override
+                DataPackage runOn(NetworkLocation nodeLoc) throws IOException {
+                    return selectOnNode(nodeLoc, split, count, largest);
+                }
+            }));
+        }
+        metrics.record(Metrics.Phase.PARTITION, start);
+        ArrayList<DataPackage> candidates = new ArrayList<DataPackage>(numTasks);
+        for (Future<DataPackage> selection : selections) {
+            DataPackage selected = await(selection);
+            if (selected == null) {
+                log.error("Unable to run " + job);
+                return null;
+            }
+            candidates.add(selected);
+        }
+        
+        start = System.nanoTime();
+        DataPackage merged = PartitionMerger.merge(candidates);
+        // the candidates of the largest rows end with row numRows - 1
+        int offset = largest ? merged.getSize() - numRows : 0;
+        DataPackage range = merged.slice(offset + from, offset + to);
+        range.sorted(true);
+        metrics.record(Metrics.Phase.MERGE, start);
+        metrics.addRows(merged.getSize());
+        log.info(stats);
+        return range;
+    }
+    
+    /**
+     * The rows of a package keyed by keySpec
+     * @throws NumberFormatException if a row doesn't have such a key
+     */
+    private static DataPackage rekey(DataPackage dp, KeySpec keySpec) {
+        if (dp.getKeySpec().equals(keySpec)) {
+            return dp;
+        }
+        DataPackage keyed = new DataPackage(dp.getSize(), keySpec);
+        for (int i = 0; i < dp.getSize(); i++) {
+            keyed.add(dp.getText(i));
+        }
+        return keyed;
+    }
+    
+    /**
+     * Result of a task, or null if it failed
+     */
+    private static <T> T await(Future<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            log.error("interrupted waiting for a task: " + ex);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            log.error("task failed: " + ex.getCause());
+        }
+        return null;
+    }
+    
+    /**
+     * Start a streaming sort, returns its stream id
+     */
+    public int beginStreamingSort() {
+        stats.numberOfSortRequestsSinceStartup.incrementAndGet();
+        int streamId = nextStreamId.incrementAndGet();
+        streams.put(streamId, new StreamingSort());
+        log.info("Started streaming sort " + streamId);
+        return streamId;
+    }
+    
+    /**
+     * Sort one chunk of a streaming sort on the nodes as soon as it arrives.
+     * The client gets its ack once the chunk is sorted, which bounds how far
+     * ahead of the nodes it can get.
+     */
+    public void acceptStreamChunk(int streamId, int chunkNumber, DataPackage chunk) 
+            throws IOException {
+        StreamingSort stream = useStream(streamId);
+        try {
+            ArrayList<DataPackage> sortedPartitions = 
+                    map(chunk, membership.liveNodes());
+            if (sortedPartitions == null) {
+                streams.remove(streamId);
+                throw new IOException("All nodes have died, unable to sort chunk " 
+                        + chunkNumber + " of stream " + streamId);
+            }
+            if (partitionMode == PartitionMode.RANGE) {
+                // the chunk's ranges are in order, keep it as one sorted run
+                DataPackage run = concatenate(sortedPartitions);
+                sortedPartitions = new ArrayList<DataPackage>(1);
+                sortedPartitions.add(run);
+            }
+            stream.addRuns(chunkNumber, sortedPartitions);
+        } finally {
+            stream.release();
+        }
+        log.debug("sorted chunk " + chunkNumber + " of stream " + streamId 
+                + " (" + chunk.getSize() + " rows)");
+    }
+    
+    /**
+     * Merge the sorted runs of every chunk of a streaming sort, returns the
+     * number of rows ready to fetch
+     */
+    public int endStreamingSort(int streamId) throws IOException {
+        StreamingSort stream = useStream(streamId);
+        ArrayList<DataPackage> runs;
+        DataPackage sorted;
+        try {
+            runs = stream.getRuns();
+            if (runs.isEmpty()) {
+                sorted = new DataPackage();
+            } else if (runs.size() == 1) {
+                sorted = runs.get(0);
+            } else {
+                sorted = reduce(runs);
+            }
+            if (sorted == null) {
+                streams.remove(streamId);
+                throw new IOException("Unable to merge stream " + streamId);
+            }
+            stream.result = sorted;
+        } finally {
+            stream.release();
+        }
+        if (sorted.getSize() == 0) {
+            // nothing to fetch
+            streams.remove(streamId);
+        }
+        log.info("Stream " + streamId + " sorted " + sorted.getSize() 
+                + " rows from " + runs.size() + " runs");
+        log.info(stats);
+        return sorted.getSize();
+    }
+    
+    /**
+     * Rows [from, to) of a finished streaming sort. The client may have
+     * several fetches in flight, in any order, so the stream is only
+     * dropped once every one of its rows has been served.
+     */
+    public DataPackage fetchStreamRows(int streamId, int from, int to) 
+            throws IOException {
+        StreamingSort stream = useStream(streamId);
+        DataPackage rows;
+        boolean allServed;
+        try {
+            DataPackage result = stream.result;
+            if (result == null) {
+                throw new IOException("Stream " + streamId + " is not finished");
+            }
+            to = Math.min(to, result.getSize());
+            from = Math.min(from, to);
+            rows = result.slice(from, to);
+            rows.sorted(true);
+            allServed = stream.served(to - from, result.getSize());
+        } finally {
+            stream.release();
+        }
+        if (allServed) {
+            streams.remove(streamId);
+        }
+        return rows;
+    }
+    
+    /**
+     * Look up a stream and mark it in use, callers release it when done
+     */
+    private StreamingSort useStream(int streamId) throws IOException {
+        StreamingSort stream = streams.get(streamId);
+        if (stream == null) {
+            throw new IOException("Unknown stream " + streamId);
+        }
+        stream.use();
+        return stream;
+    }
+    
+    /**
+     * Drop the streams nobody has used for streamIdleTimeoutMillis, such as
+     * those of a client that died before STREAMEND or before fetching
+     */
+    private void expireStreams() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, StreamingSort> entry : streams.entrySet()) {
+            if (entry.getValue().idleSince(now, streamIdleTimeoutMillis)) {
+                log.warn("Dropping idle stream " + entry.getKey());
+                streams.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Sorted runs of a streaming sort, kept in chunk order so that equal
+     * keys come out in input order
+     */
+    private static class StreamingSort {
+        private final TreeMap<Integer, ArrayList<DataPackage>> runs = 
+                new TreeMap<Integer, ArrayList<DataPackage>>();
+        volatile DataPackage result;
+        // rows fetched so far, and the requests using the stream right now
+        private long rowsServed;
+        private int inUse;
+        private long lastUsed = System.currentTimeMillis();
+        
+        synchronized void use() {
+            inUse++;
+            lastUsed = System.currentTimeMillis();
+        }
+        
+        synchronized void release() {
+            inUse--;
+            lastUsed = System.currentTimeMillis();
+        }
+        
+        synchronized boolean idleSince(long now, long timeoutMillis) {
+            return inUse == 0 && now - lastUsed > timeoutMillis;
+        }
+        
+        /**
+         * Count rows as served, returns whether all of total have been
+         */
+        synchronized boolean served(int rows, int total) {
+            rowsServed += rows;
+            return rowsServed >= total;
+        }
+        
+        synchronized void addRuns(int chunkNumber, ArrayList<DataPackage> chunkRuns) {
+            runs.put(chunkNumber, chunkRuns);
+        }
+        
+        synchronized ArrayList<DataPackage> getRuns() {
+            ArrayList<DataPackage> all = new ArrayList<DataPackage>();
+            for (ArrayList<DataPackage> chunkRuns : runs.values()) {
+                all.addAll(chunkRuns);
+            }
+            // the merge has them now
+            runs.clear();
+            return all;
+        }
+    }
+    
     /**
      * Mapper function that splits tasks into chunks for nodes to analyze
-     * Returns a data package that needs to be merged
+     * Returns the sorted splits (in split order) that need to be merged,
+     * or null if every node went down before they could be sorted.
+     * 
+     * The rows are cut into splits of about splitSize rows (at least one
+     * per node), and each node starts with a queue of neighbouring splits
+     * sized by its share from the partition sizer. Every node sorts one
+     * split at a time and gets its next one from the SplitScheduler as soon
+     * as it finishes, stealing from other nodes' queues once its own is
+     * empty. A split a node fails is retried on the same node, which kept
+     * its rows; the splits of a node that goes down go to the others.
+     * 
+     * Once half the splits are back, a split that has been running for
+     * more than SPECULATION_MULTIPLIER times the median sort time is a
+     * straggler, and a backup copy of it is sent to an idle node. Whichever
+     * copy comes back first is used and the other is cancelled on its node.
      */
     private ArrayList<DataPackage> map(DataPackage dp, ArrayList<NetworkLocation> nodes) {
-
         int numNodes = nodes.size();
-        ArrayList<DataRow> unsortedRows = dp.getRows();
+        long mapStart = System.currentTimeMillis();
+        
+        if (numNodes == 0) {
+            log.error("no nodes to sort on");
+            return null;
+        }
+        
+        // with one split per node each split is sized for its node,
+        // otherwise the splits are even and the queues are sized instead
+        int numSplits = Math.max(numNodes, (splitSize > 0) 
+                ? (dp.getSize() + splitSize - 1) / splitSize : numNodes);
+        double[] nodeShares = partitionSizer.shares(nodes);
+        int[] firstSplit = new int[numNodes + 1];
+        ArrayList<DataPackage> splits;
+        if (numSplits == numNodes) {
+            for (int i = 0; i <= numNodes; i++) {
+                firstSplit[i] = i;
+            }
+            splits = partition(dp, nodeShares);
+        } else {
+            firstSplit = PartitionSizer.bounds(nodeShares, numSplits);
+            double[] splitShares = new double[numSplits];
+            Arrays.fill(splitShares, 1.0 / numSplits);
+            splits = partition(dp, splitShares);
+        }
+        recordSizing(nodes, splits, firstSplit);
         
-        // var to keep track of how many nodes went down
-        int badNodeCount = 0;
+        SplitScheduler scheduler = new SplitScheduler(nodes, firstSplit);
+        long jobNumber = nextMapNumber.incrementAndGet();
         
-        // structure to store each partition of sorted data to be merged
-        ArrayList<DataPackage> unsortedPartitions = 
-                new ArrayList<DataPackage>(numNodes);
+        // structure to place sorted splits (to be merged)
+        ArrayList<DataPackage> sortedSplits = new ArrayList<DataPackage>(splits);
         
-        // structure to place partitions of sorted data (to be merged)
-        ArrayList<DataPackage> sortedPartitions = 
-                new ArrayList<DataPackage>(numNodes);
+        // nodes that aren't working on a split right now
+        LinkedList<NetworkLocation> idleNodes = 
+                new LinkedList<NetworkLocation>(nodes);
         
-        // get partitions and store in unsorted DP partitions
-        for (int nodeIndex=0; nodeIndex < numNodes; nodeIndex++) {
-            DataPackage currDP = getPartition(nodeIndex, numNodes, unsortedRows);
-            unsortedPartitions.add(currDP);
+        CompletionService<PartitionResult> completion = 
+                new ExecutorCompletionService<PartitionResult>(dispatchPool);
+        // every attempt still running, primary or backup
+        HashMap<Future<PartitionResult>, SortTask> running = 
+                new HashMap<Future<PartitionResult>, SortTask>();
+        PartitionRace[] races = new PartitionRace[numSplits];
+        for (int p = 0; p < numSplits; p++) {
+            races[p] = new PartitionRace();
         }
+        // how long each split sorted so far took
+        ArrayList<Long> sortMillis = new ArrayList<Long>(numSplits);
+        int numberOfSplitsToSort = numSplits;
         
-        int numberOfPartitionsToSort = unsortedPartitions.size();
-        // while there are still partitions to sort keep trying to sort them
-        while (numberOfPartitionsToSort > 0) {
-            // for each node, attempt to send a data package for sort
-            for (   int nodeIndex=0; 
-                    nodeIndex<numNodes && numberOfPartitionsToSort > 0; 
-                    nodeIndex++) {
-                ObjectOutputStream oos = null;
+        // while there are still splits to sort keep trying to sort them
+        while (numberOfSplitsToSort > 0) {
+            // every idle node pulls its next split
+            Iterator<NetworkLocation> idle = idleNodes.iterator();
+            while (idle.hasNext()) {
+                NetworkLocation node = idle.next();
+                Integer split = scheduler.next(node);
+                if (split == null) {
+                    // nothing left to hand out, the node may take a backup
+                    break;
+                }
+                idle.remove();
+                log.debug("requesting sort of split " + split + " at " + node);
+                SortTask task = new SortTask(split, node, splits.get(split), 
+                        (jobNumber << 32) | split, 
+                        scheduler.isRetainedOn(split, node), races[split], false);
+                running.put(completion.submit(task), task);
+            }
+            if (running.isEmpty()) {
+                // splits are left but no node is able to take them
+                log.error("no nodes left to sort " + numberOfSplitsToSort 
+                        + " splits");
+                return null;
+            }
+            
+            Future<PartitionResult> finished;
+            PartitionResult result;
+            try {
+                finished = completion.poll(
+                        SPECULATION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (finished == null) {
+                    speculate(running, idleNodes, sortMillis, numSplits, 
+                            splits, jobNumber, completion);
+                    continue;
+                }
+                result = finished.get();
+            } catch (InterruptedException ex) {
+                log.error("interrupted waiting for a sort: " + ex);
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                // SortTask handles its own failures, so this is a bug
+                log.error("sort task failed: " + ex.getCause());
+                return null;
+            }
+            running.remove(finished);
+            PartitionRace race = races[result.partitionNumber];
+            race.attemptsRunning--;
+            
+            if (race.finished) {
+                // the other copy already won, this one is only late
+                if (!result.failedConnection) {
+                    idleNodes.add(result.node);
+                }
+            } else if (result.failedConnection) {
+                // the node is unreachable, don't give it any more work
+                membership.suspect(result.node);
+                log.warn("node at " + result.node + " is down, giving " 
+                        + "split " + result.partitionNumber 
+                        + " and its queue to someone else");
+                scheduler.remove(result.node, 
+                        (race.attemptsRunning == 0) ? result.partitionNumber : null);
+            } else if (result.sortedDP == null || !result.sortedDP.isSorted()) {
+                // the node failed this sort, it tries again with the rows
+                // it kept unless another copy is still going
+                log.debug("node at " + result.node + " failed to sort " 
+                        + "split " + result.partitionNumber);
+                if (race.attemptsRunning == 0) {
+                    scheduler.retry(result.partitionNumber, result.node);
+                }
+                idleNodes.add(result.node);
+            } else {
+                // all is well, add to the list of sorted DPs
+                log.debug("successfully sorted split " 
+                        + result.partitionNumber + " at " + result.node 
+                        + " in " + result.elapsedMillis + "ms" 
+                        + (result.backup ? " (backup copy)" : ""));
+                sortedSplits.set(result.partitionNumber, result.sortedDP);
+                numberOfSplitsToSort--;
+                scheduler.done(result.partitionNumber);
+                partitionSizer.recordSort(result.node, 
+                        result.sortedDP.getSize(), result.elapsedMillis);
+                idleNodes.add(result.node);
+                sortMillis.add(result.elapsedMillis);
+                race.finish(result.backup);
+                if (result.backup) {
+                    stats.numberOfSpeculativeWins.incrementAndGet();
+                }
+                cancelOtherAttempts(running, result.partitionNumber);
+                log.debug("number of splits left to sort " 
+                        + numberOfSplitsToSort);
+            }
+        }
+        
+        // anything still running lost its race, stop waiting for it
+        for (Map.Entry<Future<PartitionResult>, SortTask> attempt : running.entrySet()) {
+            attempt.getKey().cancel(false);
+            cancelOnNode(attempt.getValue());
+        }
+        stats.numberOfSplits.addAndGet(numSplits);
+        stats.numberOfSplitSteals.addAndGet(scheduler.getNumberOfSteals());
+        stats.numberOfLocalRetries.addAndGet(scheduler.getNumberOfLocalRetries());
+        log.info("Sorted " + numSplits + " splits on " + numNodes + " nodes in " 
+                + (System.currentTimeMillis() - mapStart) + "ms (" 
+                + scheduler.getNumberOfSteals() + " stolen, " 
+                + scheduler.getNumberOfLocalRetries() + " retried in place)");
+        return sortedSplits;
+    }
+    
+    /**
+     * Send backup copies of straggling splits to idle nodes, most overdue
+     * first
+     */
+    private void speculate(HashMap<Future<PartitionResult>, SortTask> running, 
+            LinkedList<NetworkLocation> idleNodes, ArrayList<Long> sortMillis, 
+            int numSplits, ArrayList<DataPackage> splits, long jobNumber, 
+            CompletionService<PartitionResult> completion) {
+        if (idleNodes.isEmpty() || sortMillis.size() < (numSplits + 1) / 2) {
+            return;
+        }
+        ArrayList<Long> sorted = new ArrayList<Long>(sortMillis);
+        Collections.sort(sorted);
+        long median = sorted.get(sorted.size() / 2);
+        long threshold = Math.max(SPECULATION_MIN_MILLIS, 
+                (long) (median * SPECULATION_MULTIPLIER));
+        
+        ArrayList<SortTask> stragglers = new ArrayList<SortTask>();
+        long now = System.currentTimeMillis();
+        for (SortTask task : running.values()) {
+            if (!task.backup && !task.race.speculated && !task.race.finished
+                    && now - task.startMillis > threshold) {
+                stragglers.add(task);
+            }
+        }
+        Collections.sort(stragglers, new Comparator<SortTask>() {
+            @Override
+            public int compare(SortTask a, SortTask b) {
+                return a.startMillis < b.startMillis ? -1 
+                        : (a.startMillis == b.startMillis ? 0 : 1);
+            }
+        });
+        for (SortTask straggler : stragglers) {
+            if (idleNodes.isEmpty()) {
+                break;
+            }
+            NetworkLocation node = idleNodes.removeFirst();
+            log.info("split " + straggler.partitionNumber + " at " 
+                    + straggler.node + " has run " + (now - straggler.startMillis) 
+                    + "ms against a median of " + median 
+                    + "ms, sending a backup copy to " + node);
+            straggler.race.speculated = true;
+            stats.numberOfSpeculativeAttempts.incrementAndGet();
+            SortTask backup = new SortTask(straggler.partitionNumber, node, 
+                    splits.get(straggler.partitionNumber), straggler.splitKey, 
+                    false, straggler.race, true);
+            running.put(completion.submit(backup), backup);
+        }
+    }
+    
+    /**
+     * Cancel the other copies of a partition that has been sorted on their
+     * nodes. They stay in running, so each node only counts as idle again
+     * once its (empty, or late) reply arrives.
+     */
+    private void cancelOtherAttempts(
+            HashMap<Future<PartitionResult>, SortTask> running, int partitionNumber) {
+        for (SortTask attempt : running.values()) {
+            if (attempt.partitionNumber == partitionNumber) {
+                cancelOnNode(attempt);
+            }
+        }
+    }
+    
+    /**
+     * Tell a node to skip an attempt's split, or at least not to send it
+     * back, without waiting for it to answer
+     */
+    private void cancelOnNode(final SortTask attempt) {
+        dispatchPool.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-
-                    // get current node
-                    NetworkLocation currNodeLoc = nodes.get(nodeIndex);
-                    Socket currentNode = new Socket(currNodeLoc.ip, currNodeLoc.port);
-                    
-                    // get a partition from unsorted ones - pull from the "bottom"
-                    DataPackage currentUnsortedPartition
-                            = unsortedPartitions.get(0);
-                    // get sorted data rows for this partition
-                    Protocol sortProtocol = new Protocol(Protocol.Type.SORTDATA);
-                    oos = new ObjectOutputStream(currentNode.getOutputStream());
-                    log.debug("requesting sort at " + currNodeLoc);
-                    oos.writeObject(sortProtocol);
-                    oos.flush();
-                    log.debug("sending DP partition");
-                    oos.writeObject(currentUnsortedPartition);
-                    oos.flush();
-                    log.debug("writing node list");
-                    oos.writeObject(nodeList);
-                    oos.flush();
-                    log.debug("getting sorted DP partition");
-                    ObjectInputStream ois 
-                            = new ObjectInputStream(currentNode.getInputStream());
-                    log.debug("got object output stream");
-                    DataPackage sortedDP =
-                            (DataPackage) ois.readObject();
-                    log.debug("got sorted DP partition");
-                    if (sortedDP == null || (!sortedDP.isSorted())) {
-                        // a node was down, give this DP to someone else
-                        log.debug("node went down, giving this DP to someone else");
-                        badNodeCount++;
-                        continue;
-                    } else {
-                        // all is well, add to the list of sorted DPs
-                        log.debug("successfully sorted. adding to sorted partitions");
-                        sortedPartitions.add(sortedDP);
-                        unsortedPartitions.remove(currentUnsortedPartition);
-                        numberOfPartitionsToSort = unsortedPartitions.size();
-                        log.debug("number of partitions left to sort" 
-                                + numberOfPartitionsToSort);
-                    }
-                } catch (ClassNotFoundException ex) {
-                    log.error("class not found: " + ex);
+                    Frame.BodyWriter request = new Frame.BodyWriter();
+                    request.writeLong(attempt.splitKey);
+                    connections.call(attempt.node, Protocol.Type.CANCELSPLIT, 
+                            request.toByteArray());
                 } catch (IOException ex) {
-                    log.error("io exception: " + ex);
-                } finally {
-                    try {
-                        log.debug("closing object output stream");
-                        oos.close();
-                    } catch (IOException ex) {
-                        log.error("io exception: " + ex);
-                    }
+                    log.debug("unable to cancel split at " + attempt.node 
+                            + ": " + ex);
                 }
             }
+        });
+    }
+    
+    /**
+     * Send a partition to a node and wait for it to come back sorted.
+     * returns null if the node failed the sort. If the node kept the rows
+     * from failing this split before, it is asked to sort those instead,
+     * and the rows are only sent if it no longer has them.
+     */
+    private DataPackage sortOnNode(NetworkLocation nodeLoc, DataPackage partition, 
+            long splitKey, boolean retained) throws IOException {
+        if (retained) {
+            Frame.BodyWriter request = new Frame.BodyWriter();
+            request.writeLong(splitKey);
+            NetworkLocation.writeList(request, membership.liveNodes());
+            log.debug("requesting sort of retained split at " + nodeLoc);
+            long start = System.nanoTime();
+            Frame reply = connections.call(
+                    nodeLoc, Protocol.Type.SORTRETAINED, request.toByteArray());
+            long roundTrip = System.nanoTime() - start;
+            DataInputStream in = reply.bodyStream();
+            boolean found = in.readBoolean();
+            DataPackage sortedDP = null;
+            if (found) {
+                start = System.nanoTime();
+                sortedDP = DataPackageCodec.read(in, metrics);
+                metrics.record(Metrics.Phase.SERIALIZE, start);
+            }
+            recordTransfer(roundTrip, in.readLong());
+            if (found) {
+                return sortedDP;
+            }
+            log.debug("node at " + nodeLoc + " no longer has the split");
         }
-
-        return sortedPartitions;
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        request.writeLong(splitKey);
+        log.debug("sending DP partition");
+        DataPackageCodec.write(request, partition, wireCodec, metrics);
+        log.debug("writing node list");
+        // the node may hand the partition on to one of its live peers
+        NetworkLocation.writeList(request, membership.liveNodes());
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        log.debug("requesting sort at " + nodeLoc);
+        start = System.nanoTime();
+        Frame reply = connections.call(nodeLoc, Protocol.Type.SORTDATA, body);
+        long roundTrip = System.nanoTime() - start;
+        start = System.nanoTime();
+        DataInputStream in = reply.bodyStream();
+        DataPackage sortedDP = DataPackageCodec.read(in, metrics);
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        recordTransfer(roundTrip, in.readLong());
+        log.debug("got sorted DP partition");
+        return sortedDP;
     }
     
     /**
-     * Get a partition of total rows
+     * Record a request's round trip as transfer time, less the time the
+     * node said it spent serving the request
      */
-    private DataPackage getPartition (
-            int partitionNumber, int numberOfPartitions, ArrayList<DataRow> rows) {
-        int totalNumberOfRows = rows.size();
-        int maxNumRowsPerPartition = (int) totalNumberOfRows/numberOfPartitions;
-        log.info("Splitting data into " + numberOfPartitions + " partitions.");
-        log.info("Each partition will contain at most " + 
-                maxNumRowsPerPartition + " rows");
-        
-        /*
-         * get upper and lower bounds on the indices where the partition on the 
-         * data rows are 
-         */
-        int lowerBoundIndex = partitionNumber*maxNumRowsPerPartition;
-        int upperBoundIndex = lowerBoundIndex + maxNumRowsPerPartition;
-        
-        /* if upper bound is over the total number of rows 
-         * (which it will be for the last partition)
-         * then assign it to the total number of rows-1 (the last row)
-         */
-        upperBoundIndex = (upperBoundIndex > totalNumberOfRows-1)?totalNumberOfRows:upperBoundIndex;
-        
-        // create new arraylist of rows to store partition of data rows
-        DataRow[] rowsPartition = new DataRow[maxNumRowsPerPartition];
+    private void recordTransfer(long roundTripNanos, long serviceNanos) {
+        metrics.recordNanos(Metrics.Phase.TRANSFER, 
+                Math.max(0, roundTripNanos - serviceNanos));
+    }
+    
+    /**
+     * Sorts one copy of a partition on one node, run on the dispatch pool
+     */
+    private class SortTask implements Callable<PartitionResult> {
+        private final int partitionNumber;
+        private final NetworkLocation node;
+        private final DataPackage partition;
+        private final long splitKey;
+        private final boolean retained;
+        private final PartitionRace race;
+        private final boolean backup;
+        private final long startMillis;
         
-        // currentRow is the index into the insert row number
-        int currentRow = 0;
+        SortTask(int partitionNumber, NetworkLocation node, DataPackage partition, 
+                long splitKey, boolean retained, PartitionRace race, boolean backup) {
+            this.partitionNumber = partitionNumber;
+            this.node = node;
+            this.partition = partition;
+            this.splitKey = splitKey;
+            this.retained = retained;
+            this.race = race;
+            this.backup = backup;
+            this.startMillis = System.currentTimeMillis();
+            race.attemptsRunning++;
+        }
+
+        @Override
+        public PartitionResult call() {
+            PartitionResult result = new PartitionResult(partitionNumber, node, backup);
+            long start = System.currentTimeMillis();
+            try {
+                result.sortedDP = sortOnNode(node, partition, splitKey, retained);
+            } catch (IOException ex) {
+                log.error("io exception: " + ex);
+                result.failedConnection = true;
+            }
+            long end = System.currentTimeMillis();
+            result.elapsedMillis = end - start;
+            if (!backup && race.backupWonAtMillis > 0) {
+                // the job went on without this copy from the moment the
+                // backup won, until now
+                stats.speculationMillisSaved.addAndGet(end - race.backupWonAtMillis);
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Progress of the copies of one partition. The counts are only touched
+     * by the map thread, backupWonAtMillis is also read by the primary's task.
+     */
+    private static class PartitionRace {
+        int attemptsRunning;
+        boolean speculated;
+        boolean finished;
+        volatile long backupWonAtMillis;
         
-        // from the lower bound index of the partition of rows to the upper bound
-        // gatther the data rows to return
-        for (int i=lowerBoundIndex; i<upperBoundIndex; i++) {
-            rowsPartition[currentRow] = rows.get(i);
-            // increment the current row index
-            currentRow++;
+        void finish(boolean byBackup) {
+            finished = true;
+            if (byBackup) {
+                backupWonAtMillis = System.currentTimeMillis();
+            }
         }
+    }
+    
+    /**
+     * Outcome of sorting one copy of a partition on one node
+     */
+    private static class PartitionResult {
+        final int partitionNumber;
+        final NetworkLocation node;
+        final boolean backup;
+        DataPackage sortedDP;
+        boolean failedConnection;
+        long elapsedMillis;
         
-        return new DataPackage(rowsPartition);
+        PartitionResult(int partitionNumber, NetworkLocation node, boolean backup) {
+            this.partitionNumber = partitionNumber;
+            this.node = node;
+            this.backup = backup;
+        }
+    }
+    
+    /**
+     * Split the rows according to partition mode, partition p getting
+     * about shares[p] of them
+     */
+    private ArrayList<DataPackage> partition(DataPackage dp, double[] shares) {
+        long start = System.nanoTime();
+        int numberOfPartitions = shares.length;
+        ArrayList<DataPackage> partitions;
+        if (partitionMode == PartitionMode.RANGE) {
+            RangePartitioner partitioner = RangePartitioner.fromSample(
+                    dp, shares, random);
+            partitions = partitioner.partition(dp);
+        } else {
+            int[] bounds = PartitionSizer.bounds(shares, dp.getSize());
+            partitions = new ArrayList<DataPackage>(numberOfPartitions);
+            for (int p = 0; p < numberOfPartitions; p++) {
+                partitions.add(getPartition(bounds[p], bounds[p + 1], dp));
+            }
+        }
+        metrics.record(Metrics.Phase.PARTITION, start);
+        return partitions;
+    }
+    
+    /**
+     * Log and record how many rows each node was first given, node i
+     * starting with splits firstSplit[i] up to firstSplit[i + 1]
+     */
+    private void recordSizing(ArrayList<NetworkLocation> nodes, 
+            ArrayList<DataPackage> splits, int[] firstSplit) {
+        int[] rows = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int split = firstSplit[i]; split < firstSplit[i + 1]; split++) {
+                rows[i] += splits.get(split).getSize();
+            }
+        }
+        String plan = partitionSizer.describe(nodes, rows);
+        log.info("Split data into " + splits.size() + " " 
+                + (partitionMode == PartitionMode.RANGE ? "key ranges" : "splits") 
+                + " for " + nodes.size() + " nodes: " + plan);
+        stats.recordPartitionSizing(plan);
+    }
+    
+    /**
+     * Get the partition of rows from lowerBoundIndex up to upperBoundIndex
+     */
+    private DataPackage getPartition (
+            int lowerBoundIndex, int upperBoundIndex, DataPackage dp) {
+        // copy the partition's rows straight out of the key/payload columns
+        return dp.slice(lowerBoundIndex, upperBoundIndex);
     }
     
     /**
      * Reduce function
+     * Merges the sorted partitions as a tree: at each level, groups of up to
+     * reduceFanIn packages are merged on different nodes in parallel, and
+     * the merged packages feed the next level until one group is left,
+     * which is merged and sent back to the server.
+     * Below the last level a node keeps what it merged, and the node that
+     * merges it next fetches it straight from there, so the server only
+     * sends the partitions out once and gets the result back once. The
+     * server remembers what went into each merge, so a merge whose node
+     * went down (or dropped it) is redone from its own inputs.
+     * Returns null if some group could not be merged on any node.
      */
     private DataPackage reduce(ArrayList<DataPackage> partitions) {
-        try {
-            // get a node index to do reduce on
-            int nodeIndex = fetchRandomNodeIndex();
-            // get its network location and the node instance
-            NetworkLocation nodeLoc = nodeList.get(nodeIndex);
-            Socket socket = new Socket(nodeLoc.ip, nodeLoc.port);
-            
-            Protocol reduceProtocol = new Protocol(Protocol.Type.REDUCE);
+        long start = System.nanoTime();
+        ArrayList<NetworkLocation> nodes = membership.liveNodes();
+        if (nodes.isEmpty()) {
+            log.error("no nodes to reduce on");
+            return null;
+        }
+        // start at a random node so reduce work is spread across jobs
+        int nextNode = random.nextInt(nodes.size());
+        
+        ArrayList<ReduceInput> level = new ArrayList<ReduceInput>(partitions.size());
+        for (DataPackage partition : partitions) {
+            level.add(new ReduceInput(partition));
+        }
+        int levelNumber = 0;
+        while (level.size() > reduceFanIn) {
+            int numGroups = (level.size() + reduceFanIn - 1) / reduceFanIn;
+            log.debug("reduce level " + levelNumber + ": merging " 
+                    + level.size() + " packages in " + numGroups + " groups");
             
-            ObjectOutputStream oos
-                    = new ObjectOutputStream(socket.getOutputStream());
-            log.debug("requesting " + nodeLoc + " to reduce");
-            oos.writeObject(reduceProtocol);
-            oos.flush();
-            log.debug("sending partitions");
-            oos.writeObject(partitions);
-            oos.flush();
-            ObjectInputStream ois
-                    = new ObjectInputStream(socket.getInputStream());
-            log.debug("getting reduced rows");
-            ArrayList<DataRow> reducedRows = (ArrayList<DataRow>) ois.readObject();
-            // create new sorted data package after reducing from reduce node
-            DataPackage sortedDataPackage = new DataPackage(reducedRows);
-            return sortedDataPackage;
-        } catch (ClassNotFoundException ex) {
-            log.error("class not found: " + ex);
-        } catch (UnknownHostException ex) {
-            log.error("unknown host: " + ex);
-        } catch (IOException ex) {
-            log.error("io exception: " + ex);
+            ArrayList<ReduceInput> nextLevel = new ArrayList<ReduceInput>(numGroups);
+            ArrayList<Future<Boolean>> merges = new ArrayList<Future<Boolean>>(numGroups);
+            for (int g = 0; g < numGroups; g++) {
+                int from = g * reduceFanIn;
+                int to = Math.min(from + reduceFanIn, level.size());
+                if (to - from == 1) {
+                    // nothing to merge it with, it moves up a level as is
+                    nextLevel.add(level.get(from));
+                    continue;
+                }
+                ReduceInput merged = new ReduceInput(
+                        new ArrayList<ReduceInput>(level.subList(from, to)));
+                nextLevel.add(merged);
+                merges.add(dispatchPool.submit(
+                        new MergeTask(merged, true, nodes, nextNode)));
+                nextNode = (nextNode + 1) % nodes.size();
+            }
+            for (Future<Boolean> merge : merges) {
+                Boolean merged = await(merge);
+                if (merged == null || !merged) {
+                    log.error("error, returning null");
+                    return null;
+                }
+            }
+            level = nextLevel;
+            levelNumber++;
         }
-        log.error("error, returning null");
-        return null;
+        
+        ReduceInput root;
+        if (level.size() == 1 && level.get(0).rows != null) {
+            root = level.get(0);
+        } else {
+            root = new ReduceInput(level);
+            if (!new MergeTask(root, false, nodes, nextNode).call()) {
+                log.error("error, returning null");
+                return null;
+            }
+        }
+        DataPackage sortedDataPackage = root.rows;
+        sortedDataPackage.sorted(true);
+        metrics.record(Metrics.Phase.MERGE, start);
+        metrics.addRows(sortedDataPackage.getSize());
+        return sortedDataPackage;
     }
-
+    
     /**
-     * Gather nodes that are still up
+     * Join sorted key ranges, in order, into one sorted package
      */
-    private ArrayList<Socket> gatherNodes() {
-        ArrayList <Socket> nodes = new ArrayList<Socket>();
-
-        for (NetworkLocation n : nodeList) {
-            try {
-                Socket node;
+    private DataPackage concatenate(ArrayList<DataPackage> sortedRanges) {
+        long start = System.nanoTime();
+        DataPackage joined = RangePartitioner.concatenate(sortedRanges);
+        metrics.record(Metrics.Phase.MERGE, start);
+        metrics.addRows(joined.getSize());
+        return joined;
+    }
+    
+    /**
+     * Send the inputs of a merge to a node, the server's own rows in full
+     * and the rest as where they are held. If hold, the node keeps the
+     * merged package and target records where, otherwise the merged
+     * package comes back into target.rows.
+     * Returns MERGED, FAILED, or the index of an input the node couldn't
+     * fetch from its holder.
+     */
+    private int mergeOnNode(NetworkLocation nodeLoc, ReduceInput target, 
+            boolean hold) throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        log.debug("sending partitions");
+        request.writeBoolean(hold);
+        request.writeInt(target.group.size());
+        for (ReduceInput input : target.group) {
+            // read once, a redo may be changing it
+            DataPackage rows = input.rows;
+            request.writeBoolean(rows == null);
+            if (rows == null) {
+                input.holder.writeTo(request);
+                request.writeLong(input.resultId);
+            } else {
+                DataPackageCodec.write(request, rows, wireCodec, metrics);
+            }
+        }
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        log.debug("requesting " + nodeLoc + " to reduce");
+        start = System.nanoTime();
+        Frame reply = connections.call(nodeLoc, Protocol.Type.REDUCE, body);
+        long roundTrip = System.nanoTime() - start;
+        log.debug("getting reduced rows");
+        start = System.nanoTime();
+        DataInputStream in = reply.bodyStream();
+        int status = in.readInt();
+        int result = MERGED;
+        if (status == Node.REDUCE_MERGED) {
+            // sorted data package after reducing from reduce node
+            target.rows = DataPackageCodec.readBlocks(in, metrics);
+        } else if (status == Node.REDUCE_HELD) {
+            target.resultId = in.readLong();
+            target.holder = nodeLoc;
+        } else if (status == Node.REDUCE_MISSING) {
+            result = in.readInt();
+        } else {
+            result = FAILED;
+        }
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        recordTransfer(roundTrip, in.readLong());
+        return result;
+    }
+    
+    // results of mergeOnNode other than a missing input's index
+    private static final int MERGED = -1;
+    private static final int FAILED = -2;
+    
+    /**
+     * An input of a reduce level: rows the server has, or the merged
+     * package of a group of the level below, which the node that merged it
+     * holds until it is fetched
+     */
+    private static class ReduceInput {
+        volatile DataPackage rows;
+        // what was merged into it, to merge it again if it is lost
+        final ArrayList<ReduceInput> group;
+        volatile NetworkLocation holder;
+        volatile long resultId;
+        
+        ReduceInput(DataPackage rows) {
+            this.rows = rows;
+            this.group = null;
+        }
+        
+        ReduceInput(ArrayList<ReduceInput> group) {
+            this.group = group;
+        }
+    }
+    
+    /**
+     * Merges one group of a reduce level, trying each node in turn starting
+     * from the preferred one until a merge succeeds. An input that can no
+     * longer be fetched from its holder is merged again first.
+     */
+    private class MergeTask implements Callable<Boolean> {
+        private final ReduceInput target;
+        private final boolean hold;
+        private final ArrayList<NetworkLocation> nodes;
+        private final int preferredNode;
+        
+        MergeTask(ReduceInput target, boolean hold, 
+                ArrayList<NetworkLocation> nodes, int preferredNode) {
+            this.target = target;
+            this.hold = hold;
+            this.nodes = nodes;
+            this.preferredNode = preferredNode;
+        }
 
-                node = new Socket(n.ip, n.port);
-                    
-                if (node != null) {
-                    log.info("Adding node at " + n + " to nodes used for sorting.");
-                    nodes.add(node);
-                } else {
-                    log.warn("Node is down at " + n);
+        @Override
+        public Boolean call() {
+            int attempts = Math.max(NUM_TRIES, nodes.size());
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                NetworkLocation nodeLoc = 
+                        nodes.get((preferredNode + attempt) % nodes.size());
+                try {
+                    int result = mergeOnNode(nodeLoc, target, hold);
+                    if (result == MERGED) {
+                        return true;
+                    }
+                    if (result >= 0) {
+                        ReduceInput lost = target.group.get(result);
+                        log.warn("merged input lost at " + lost.holder 
+                                + ", merging it again");
+                        if (!new MergeTask(lost, true, nodes, 
+                                preferredNode + attempt + 1).call()) {
+                            return false;
+                        }
+                        continue;
+                    }
+                } catch (IOException ex) {
+                    log.error("io exception: " + ex);
+                    membership.suspect(nodeLoc);
                 }
-            } catch (UnknownHostException ex) {
-                log.error("unknown host: " + ex);
-            } catch (IOException ex) {
-                log.error("io exception: " + ex);
+                log.warn("merge failed at " + nodeLoc + ", retrying group");
             }
+            return false;
+        }
+    }
+
+    /**
+     * Send a split of a job to a node to be mapped, returns its pairs in
+     * numReducers packages, or null if the node failed to map it
+     */
+    private ArrayList<DataPackage> mapJobOnNode(NetworkLocation nodeLoc, 
+            JobSpec job, DataPackage split, int numReducers) throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        request.writeUTF(job.toString());
+        request.writeInt(numReducers);
+        DataPackageCodec.write(request, split, wireCodec, metrics);
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        log.debug("requesting " + nodeLoc + " to map");
+        start = System.nanoTime();
+        Frame reply = connections.call(nodeLoc, Protocol.Type.MAPJOB, body);
+        long roundTrip = System.nanoTime() - start;
+        start = System.nanoTime();
+        DataInputStream in = reply.bodyStream();
+        int count = in.readInt();
+        ArrayList<DataPackage> partitions = null;
+        if (count >= 0) {
+            partitions = new ArrayList<DataPackage>(count);
+            for (int i = 0; i < count; i++) {
+                partitions.add(DataPackageCodec.read(in, metrics));
+            }
+        }
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        recordTransfer(roundTrip, in.readLong());
+        return partitions;
+    }
+    
+    /**
+     * Send a slice of the rows to a node for its count smallest (or
+     * largest) rows, returns them in order, or null if the node failed
+     */
+    private DataPackage selectOnNode(NetworkLocation nodeLoc, DataPackage split, 
+            int count, boolean largest) throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        request.writeInt(count);
+        request.writeBoolean(largest);
+        DataPackageCodec.write(request, split, wireCodec, metrics);
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        log.debug("requesting " + nodeLoc + " to select");
+        start = System.nanoTime();
+        Frame reply = connections.call(nodeLoc, Protocol.Type.SELECT, body);
+        long roundTrip = System.nanoTime() - start;
+        start = System.nanoTime();
+        DataInputStream in = reply.bodyStream();
+        DataPackage selected = DataPackageCodec.read(in, metrics);
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        recordTransfer(roundTrip, in.readLong());
+        return selected;
+    }
+    
+    /**
+     * Send one partition of every map task's pairs to a node to be
+     * reduced, returns the output pairs, or null if the node failed
+     */
+    private DataPackage reduceJobOnNode(NetworkLocation nodeLoc, JobSpec job, 
+            ArrayList<DataPackage> partitions) throws IOException {
+        long start = System.nanoTime();
+        Frame.BodyWriter request = new Frame.BodyWriter();
+        request.writeUTF(job.toString());
+        request.writeInt(partitions.size());
+        for (DataPackage partition : partitions) {
+            DataPackageCodec.write(request, partition, wireCodec, metrics);
+        }
+        byte[] body = request.toByteArray();
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        log.debug("requesting " + nodeLoc + " to reduce " + job);
+        start = System.nanoTime();
+        Frame reply = connections.call(nodeLoc, Protocol.Type.REDUCEJOB, body);
+        long roundTrip = System.nanoTime() - start;
+        start = System.nanoTime();
+        DataInputStream in = reply.bodyStream();
+        DataPackage reduced = DataPackageCodec.read(in, metrics);
+        metrics.record(Metrics.Phase.SERIALIZE, start);
+        recordTransfer(roundTrip, in.readLong());
+        return reduced;
+    }
+    
+    /**
+     * A map, reduce or selection task of a job, tried on each node in turn starting
+     * from the preferred one until one runs it, and at least NUM_TRIES
+     * times since a node may fail a task only by chance
+     */
+    private abstract class JobTask<T> implements Callable<T> {
+        protected final JobSpec job;
+        private final ArrayList<NetworkLocation> nodes;
+        private final int preferredNode;
+        
+        JobTask(JobSpec job, ArrayList<NetworkLocation> nodes, int preferredNode) {
+            this.job = job;
+            this.nodes = nodes;
+            this.preferredNode = preferredNode;
         }
         
-        return nodes;
+        /**
+         * Run the task on a node, returns null if the node failed it
+         */
+        abstract T runOn(NetworkLocation nodeLoc) throws IOException;
+        
+        @Override
+        public T call() {
+            int attempts = Math.max(NUM_TRIES, nodes.size());
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                NetworkLocation nodeLoc = 
+                        nodes.get((preferredNode + attempt) % nodes.size());
+                try {
+                    T result = runOn(nodeLoc);
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (IOException ex) {
+                    log.error("io exception: " + ex);
+                    membership.suspect(nodeLoc);
+                }
+                log.warn("task of " + job + " failed at " + nodeLoc + ", retrying");
+            }
+            return null;
+        }
     }
 
     /**
@@ -392,17 +1563,49 @@ public class Server extends Thread {
      * available for work
      */
     public void addNodeInfo(NetworkLocation nodeLocation) {
-        nodeList.add(nodeLocation);
+        // a node that rejoins is only listed once
+        membership.join(nodeLocation);
     }
 
     private void init() throws IOException {
                 // get an available port
-        ss = new ServerSocket(0);
-        int port = ss.getLocalPort();
+        frameServer = new FrameServer(this, requestExecutor, metrics);
+        int port = frameServer.getPort();
         // get my ip address
         String ip = Utils.getIPAddress();
         // create NetworkLocation with this info
         location = new NetworkLocation(ip, port);
+        // a negative port leaves the endpoint off, 0 picks a free one
+        if (metricsPort >= 0) {
+            metricsEndpoint = new MetricsEndpoint(metricsPort, 
+                    new MetricsEndpoint.Source() {
+                        @Override
+                        public void appendMetrics(StringBuilder text) {
+                            getStats().appendMetrics(text);
+                        }
+                    });
+        }
+    }
+    
+    /**
+     * Stop serving and release the server's threads and connections, for
+     * a server started inside another program
+     */
+    public void shutdown() {
+        membershipTimer.shutdownNow();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        if (frameServer != null) {
+            try {
+                frameServer.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close server socket: " + ex);
+            }
+        }
+        requestExecutor.shutdown();
+        dispatchPool.shutdown();
+        connections.closeAll();
     }
     
     int getPort() {
@@ -417,60 +1620,31 @@ public class Server extends Thread {
         return location;
     }
     
-    /**
-     * fetch a random node (for reduce operation for example)
-     */
-    int fetchRandomNodeIndex() {
-        Random r = new Random();
-        int randInt = r.nextInt(this.nodeList.size());
-        return randInt;
-    }
-
     /**
      * RMI method Get server statistics
+     * The nodes' stats arrive with their heartbeats, so this returns
+     * straight away with the latest of them.
      */
     public ServerStats getStats() {
-        /*
-         * need to gather stats of all nodes to have something 
-         * interesting for the server to report
-         */
-        gatherStats();
+        refreshStats();
         return stats;
     }
     
     /**
-     * Gather stats from all nodes
+     * Rebuild the stats snapshot from what the nodes last sent with their
+     * heartbeats. Only reads memory, so it is cheap enough to run anywhere.
      */
-    private void gatherStats() {
-        ArrayList<Socket> nodes = gatherNodes();
+    private void refreshStats() {
         ArrayList<NodeStats> ns = new ArrayList<NodeStats>();
-        Protocol statsProtocol = new Protocol(Protocol.Type.STATS);
-        for (Socket n : nodes) {
-            ObjectOutputStream oos = null;
-            try {
-                oos = new ObjectOutputStream(n.getOutputStream());
-                log.debug("request stats");
-                oos.writeObject(statsProtocol);
-                oos.flush();
-                ObjectInputStream ois
-                        = new ObjectInputStream(n.getInputStream());
-                log.debug("get stats");
-                NodeStats stats = (NodeStats) ois.readObject();
-                log.debug("add to list");
-                ns.add(stats);
-            } catch (ClassNotFoundException ex) {
-                log.error("class not found: " + ex);
-            } catch (IOException ex) {
-                log.error("io exception: " + ex);
-            } finally {
-                try {
-                    oos.close();
-                } catch (IOException ex) {
-                    log.error("io exception: " + ex);
-                }
+        for (Membership.Member member : membership.members()) {
+            if (member.getStats() != null) {
+                ns.add(member.getStats());
             }
-
         }
         stats.setNodeStats(ns);
+        stats.liveNodes = membership.liveNodes().size();
+        stats.knownNodes = membership.size();
+        stats.requestQueueDepth = requestExecutor.getQueueDepth();
+        stats.maxRequestQueueDepth = requestExecutor.getMaxQueueDepth();
     }
 }
@@ -2,22 +2,70 @@ package pa3;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ServerStats
  * Class to house a number of server statistics as per reqs
+ * Counters are atomic since the server serves many requests at once.
  * @author mark
  */
 public class ServerStats implements Serializable {
     
     public int numberOfFaults;
     public double averageLoad;
-    public int numberOfSortRequestsSinceStartup;
+    public final AtomicInteger numberOfSortRequestsSinceStartup = new AtomicInteger();
+    // jobs other than sort, see JobSpec
+    public final AtomicInteger numberOfJobRequestsSinceStartup = new AtomicInteger();
+    
+    /**
+     * Backup copies sent for straggling partitions, how many of them came
+     * back before the original, and the time the job didn't have to wait
+     * for the originals
+     */
+    public final AtomicInteger numberOfSpeculativeAttempts = new AtomicInteger();
+    public final AtomicInteger numberOfSpeculativeWins = new AtomicInteger();
+    public final AtomicLong speculationMillisSaved = new AtomicLong();
+    
+    /**
+     * Requests waiting for a worker when the stats were taken, and the
+     * most that have waited at once
+     */
+    public volatile int requestQueueDepth;
+    public volatile int maxRequestQueueDepth;
+    
+    /**
+     * Splits sorted by the nodes, how many a node took from another's
+     * queue, and how many were retried on the node that kept their rows
+     */
+    public final AtomicLong numberOfSplits = new AtomicLong();
+    public final AtomicLong numberOfSplitSteals = new AtomicLong();
+    public final AtomicLong numberOfLocalRetries = new AtomicLong();
+    
+    /**
+     * Number of times rows were split across the nodes, and how the last
+     * split sized each node's partition
+     */
+    public final AtomicInteger numberOfPartitionings = new AtomicInteger();
+    public volatile String lastPartitionSizing = "none";
+    
+    /**
+     * Nodes that could be given work, and all nodes in the membership table
+     */
+    public volatile int liveNodes;
+    public volatile int knownNodes;
     
     /**
      * maintain a list of all of the node's statistics
      */
-    ArrayList<NodeStats> nodeStatList;
+    volatile ArrayList<NodeStats> nodeStatList;
+    
+    /**
+     * Where the server's own time goes, and the nodes' added together
+     */
+    public final Metrics metrics = new Metrics();
+    volatile Metrics nodeMetrics = new Metrics();
     
     /**
      * Default constructor
@@ -26,7 +74,6 @@ public class ServerStats implements Serializable {
         nodeStatList = new ArrayList<NodeStats>();
         numberOfFaults = 0;
         averageLoad = 0.0;
-        numberOfSortRequestsSinceStartup = 0;
     }
     
     /**
@@ -36,7 +83,7 @@ public class ServerStats implements Serializable {
     private int getTotalNumberOfJobMigrations() {
         int total = 0;
         for (NodeStats n : nodeStatList) {
-            total += n.numberOfMigrations;
+            total += n.numberOfMigrations.get();
         }
         return total;
     }
@@ -50,35 +97,92 @@ public class ServerStats implements Serializable {
     }
     
     private double getAverageLoad() {
-        return getTotalLoad() / nodeStatList.size();
+        ArrayList<NodeStats> nodes = nodeStatList;
+        return nodes.isEmpty() ? 0.0 : getTotalLoad() / nodes.size();
     }
     
     private int getNumberOfFaults() {
         int num = 0;
         for (NodeStats n : nodeStatList) {
-            num += n.numberOfFaults;
+            num += n.numberOfFaults.get();
         }
         return num;
     }
     
+    /**
+     * Time nodes spent writing intermediate files off the sort path
+     */
+    private long getIntermediateMillisSaved() {
+        long total = 0;
+        for (NodeStats n : nodeStatList) {
+            total += n.intermediateMillisSaved.get();
+        }
+        return total;
+    }
+    
     private int getNumberOfRequestsSinceStartup() {
-        return this.numberOfSortRequestsSinceStartup;
+        return this.numberOfSortRequestsSinceStartup.get();
     }
     
     public void setNodeStats(ArrayList<NodeStats> ns) {
+        ArrayList<Metrics> all = new ArrayList<Metrics>(ns.size());
+        for (NodeStats n : ns) {
+            all.add(n.metrics);
+        }
+        this.nodeMetrics = Metrics.sum(all);
         this.nodeStatList = ns;
     }
     
+    /**
+     * Append the server's metrics, each node's and the nodes' total, in
+     * the metrics endpoint's text format
+     */
+    public void appendMetrics(StringBuilder text) {
+        metrics.appendText(text, "component=\"server\"");
+        nodeMetrics.appendText(text, "component=\"nodes\"");
+        for (NodeStats n : nodeStatList) {
+            n.metrics.appendText(text, 
+                    "component=\"node\",node=\"" + n.location.ip + ":" 
+                    + n.location.port + "\"");
+        }
+    }
+    
+    /**
+     * Record how the rows of one job (or stream chunk) were split
+     */
+    public void recordPartitionSizing(String plan) {
+        numberOfPartitionings.incrementAndGet();
+        lastPartitionSizing = plan;
+    }
+    
     @Override
     public String toString() {
         return    " :: Server Stats ::\n" 
                 + ". total number of requests since startup = " 
                 + getNumberOfRequestsSinceStartup() + "\n"
+                + ". map/reduce jobs other than sort ------ = "
+                + numberOfJobRequestsSinceStartup + "\n"
                 + ". total number of faults (all nodes) =-- = "
                 + getNumberOfFaults() + "\n"
                 + ". average load over all nodes ---------- = "
                 + getAverageLoad() + "\n"
                 + ". total number of job migrations ------- = "
-                + getTotalNumberOfJobMigrations() + "\n";
+                + getTotalNumberOfJobMigrations() + "\n"
+                + ". intermediate writes off sort path (ms) = "
+                + getIntermediateMillisSaved() + "\n"
+                + ". speculative copies (won / sent) ------ = "
+                + numberOfSpeculativeWins + " / " + numberOfSpeculativeAttempts 
+                + ", " + speculationMillisSaved + "ms saved\n"
+                + ". server request queue depth ----------- = "
+                + requestQueueDepth + " (max " + maxRequestQueueDepth + ")\n"
+                + ". nodes (live / known) ----------------- = "
+                + liveNodes + " / " + knownNodes + "\n"
+                + ". splits (stolen / retried in place) --- = "
+                + numberOfSplits + " (" + numberOfSplitSteals + " / " 
+                + numberOfLocalRetries + ")\n"
+                + ". partitionings (last split) ----------- = "
+                + numberOfPartitionings + " (" + lastPartitionSizing + ")\n"
+                + " :: Server Phases ::\n" + metrics
+                + " :: Node Phases (all nodes) ::\n" + nodeMetrics;
     }
 }
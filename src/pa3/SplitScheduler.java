@@ -0,0 +1,137 @@
+package pa3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * SplitScheduler
+ * Decides which split of a job each node sorts next. The job is cut into
+ * many more splits than nodes, and every node starts with its own queue of
+ * neighbouring splits. A node that finishes a split takes the next one from
+ * the front of its own queue; once that is empty it steals from the back of
+ * the longest queue left, so fast nodes end up sorting more splits and slow
+ * or failed nodes hold up less of the job.
+ *
+ * A split that a node failed to sort goes back to the front of that node's
+ * queue, since the node keeps the rows of a split it failed and can retry
+ * it without them being sent again. The split of an unreachable node, and
+ * its whole queue, are left for the others to steal.
+ *
+ * Only used by the thread running a map, so not thread-safe.
+ */
+public class SplitScheduler {
+
+    // splits waiting for each node, by node
+    private final HashMap<NetworkLocation, LinkedList<Integer>> queues =
+            new HashMap<NetworkLocation, LinkedList<Integer>>();
+
+    // splits whose node went down, taken before stealing
+    private final LinkedList<Integer> orphans = new LinkedList<Integer>();
+
+    // the node that still has the rows of a split it failed, by split
+    private final HashMap<Integer, NetworkLocation> retainedOn =
+            new HashMap<Integer, NetworkLocation>();
+
+    private int numberOfSteals;
+    private int numberOfLocalRetries;
+
+    /**
+     * Constructor
+     * @param nodes the nodes to sort on
+     * @param firstSplit node i starts with splits firstSplit[i] up to
+     *        firstSplit[i + 1], so it has one more entry than nodes
+     */
+    public SplitScheduler(ArrayList<NetworkLocation> nodes, int[] firstSplit) {
+        for (int i = 0; i < nodes.size(); i++) {
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+            for (int split = firstSplit[i]; split < firstSplit[i + 1]; split++) {
+                queue.add(split);
+            }
+            queues.put(nodes.get(i), queue);
+        }
+    }
+
+    /**
+     * The split node should sort next, or null if there is nothing left
+     * to hand out
+     */
+    public Integer next(NetworkLocation node) {
+        LinkedList<Integer> own = queues.get(node);
+        if (own != null && !own.isEmpty()) {
+            return own.removeFirst();
+        }
+        if (!orphans.isEmpty()) {
+            return orphans.removeFirst();
+        }
+        // steal from the far end of the most backed up queue, which is the
+        // work its owner would get to last
+        LinkedList<Integer> victim = null;
+        for (LinkedList<Integer> queue : queues.values()) {
+            if (victim == null || queue.size() > victim.size()) {
+                victim = queue;
+            }
+        }
+        if (victim == null || victim.isEmpty()) {
+            return null;
+        }
+        numberOfSteals++;
+        return victim.removeLast();
+    }
+
+    /**
+     * Whether node still has the rows of split from a sort it failed
+     */
+    public boolean isRetainedOn(int split, NetworkLocation node) {
+        return node.equals(retainedOn.get(split));
+    }
+
+    /**
+     * node failed to sort split, it is the next split the node gets
+     */
+    public void retry(int split, NetworkLocation node) {
+        LinkedList<Integer> own = queues.get(node);
+        if (own == null) {
+            orphans.add(split);
+            return;
+        }
+        retainedOn.put(split, node);
+        numberOfLocalRetries++;
+        own.addFirst(split);
+    }
+
+    /**
+     * node is unreachable, split (if it was sorting one) and its queue go
+     * to the other nodes
+     */
+    public void remove(NetworkLocation node, Integer split) {
+        if (split != null) {
+            orphans.add(split);
+        }
+        LinkedList<Integer> own = queues.remove(node);
+        if (own != null) {
+            orphans.addAll(own);
+        }
+    }
+
+    /**
+     * split has been sorted
+     */
+    public void done(int split) {
+        retainedOn.remove(split);
+    }
+
+    /**
+     * Number of splits taken from another node's queue
+     */
+    public int getNumberOfSteals() {
+        return numberOfSteals;
+    }
+
+    /**
+     * Number of failed splits given back to the node that failed them
+     */
+    public int getNumberOfLocalRetries() {
+        return numberOfLocalRetries;
+    }
+}
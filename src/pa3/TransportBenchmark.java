@@ -0,0 +1,127 @@
+package pa3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * TransportBenchmark
+ * Measures request/reply throughput and latency of the FrameServer
+ * transport over loopback. Each connection has its own thread that sends
+ * an echo request, waits for the reply and sends the next one.
+ *
+ * Usage: TransportBenchmark [requests per level] [body bytes]
+ */
+public class TransportBenchmark {
+
+    private static final int[] CONNECTION_COUNTS = {1, 10, 100};
+
+    public static void main(String args[]) throws Exception {
+        int requests = (args.length > 0) ? Integer.valueOf(args[0]) : 100000;
+        int bodyBytes = (args.length > 1) ? Integer.valueOf(args[1]) : 128;
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        final FrameServer server = new FrameServer(new Echo(),
+                new RequestExecutor("Echo", RequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS));
+        Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ex) {
+                    // closed at the end of the run
+                }
+            }
+        }, "FrameServer");
+        serving.setDaemon(true);
+        serving.start();
+        NetworkLocation location = new NetworkLocation("127.0.0.1", server.getPort());
+        byte[] body = new byte[bodyBytes];
+
+        // one untimed round to warm up the JIT
+        run(location, 10, requests / 10, body);
+
+        System.out.println("connections   requests    msgs/sec    p50(us)    p99(us)");
+        for (int connections : CONNECTION_COUNTS) {
+            long[] latencies = new long[requests - requests % connections];
+            long start = System.nanoTime();
+            latencies = run(location, connections, latencies.length / connections, body);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.println(String.format("%11d %10d %11.0f %10.1f %10.1f",
+                    connections, latencies.length, latencies.length / seconds,
+                    percentile(latencies, 0.50) / 1e3,
+                    percentile(latencies, 0.99) / 1e3));
+        }
+        server.close();
+    }
+
+    /**
+     * Send perConnection requests on each of the connections at once,
+     * returns the latency of every request in nanoseconds
+     */
+    private static long[] run(final NetworkLocation location, int connections,
+            final int perConnection, final byte[] body) throws Exception {
+        final long[] latencies = new long[connections * perConnection];
+        final CountDownLatch ready = new CountDownLatch(connections);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final Connection[] open = new Connection[connections];
+        for (int c = 0; c < connections; c++) {
+            open[c] = new Connection(location);
+            final Connection connection = open[c];
+            final int offset = c * perConnection;
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        go.await();
+                        for (int i = 0; i < perConnection; i++) {
+                            long start = System.nanoTime();
+                            connection.call(Protocol.Type.SORTDATA, body);
+                            latencies[offset + i] = System.nanoTime() - start;
+                        }
+                    } catch (Exception ex) {
+                        System.err.println("request failed: " + ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            sender.start();
+        }
+        ready.await();
+        go.countDown();
+        done.await();
+        for (Connection connection : open) {
+            connection.close();
+        }
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    /**
+     * Replies with the request body
+     */
+    private static class Echo implements RequestHandler {
+        @Override
+        public void dispatch(Protocol protocol, DataInputStream in,
+                DataOutputStream out) throws IOException {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+}
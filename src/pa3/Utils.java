@@ -7,7 +7,6 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.ArrayList;
 import org.apache.log4j.Logger;
 
 public class Utils {
@@ -80,15 +79,4 @@ public class Utils {
             return null;
         }
     }
-    
-    /**
-     * Get values of arraylist from offset to end
-     */
-    public static <T> ArrayList<T> getRest (int offset, ArrayList<T> li) {
-        ArrayList<T> returnList = new ArrayList<T>();
-        for (int idx=offset; idx < li.size(); idx++) {
-            returnList.add(li.get(idx));
-        }
-        return returnList;
-    }
 }
@@ -0,0 +1,36 @@
+package pa3;
+
+import java.util.List;
+
+/**
+ * WordCountJob
+ * Built-in job "wordcount": how many times each word appears, words being
+ * whatever is between whitespace. Outputs "word<tab>count" in word order.
+ */
+public class WordCountJob implements Mapper, Combiner, Reducer {
+
+    private static final String ONE = "1";
+
+    @Override
+    public void map(String row, Emitter out) {
+        for (String word : row.split("\\s+")) {
+            if (!word.isEmpty()) {
+                out.emit(word, ONE);
+            }
+        }
+    }
+
+    @Override
+    public String combine(String key, String a, String b) {
+        return Long.toString(Long.parseLong(a) + Long.parseLong(b));
+    }
+
+    @Override
+    public void reduce(String key, List<String> values, Emitter out) {
+        long count = 0;
+        for (String value : values) {
+            count += Long.parseLong(value);
+        }
+        out.emit(key, Long.toString(count));
+    }
+}